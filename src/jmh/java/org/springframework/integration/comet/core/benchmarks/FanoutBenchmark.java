@@ -0,0 +1,151 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.benchmarks;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.integration.comet.core.CometMessage;
+import org.springframework.integration.comet.core.providers.AtmosphereCometServiceProvider;
+
+/**
+ * Measures the broadcast of a message to the subscribers of a topic of the
+ * {@link AtmosphereCometServiceProvider}, against an in JVM stand in for the servlet
+ * container whose responses discard the bytes written. The writes are made by the 
+ * broadcasting thread, so the time includes the serialization, the queuing and the 
+ * write to every subscriber.
+ *
+ * @author Amol Nayak
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanoutBenchmark {
+
+	private static final String TOPIC = "topic";
+
+	@Param({"1", "100", "1000"})
+	private int subscribers;
+
+	@Param({"64", "1024"})
+	private int payloadSize;
+
+	private AtmosphereCometServiceProvider provider;
+
+	private CometMessage message;
+
+	@Setup
+	public void setUp() throws Exception {
+		provider = new AtmosphereCometServiceProvider();
+		provider.setWriteExecutor(new SyncTaskExecutor());
+		provider.afterPropertiesSet();
+		final HttpServletRequest request = stub(HttpServletRequest.class, null);
+		for(int i = 0; i < subscribers; i++) {
+			final HttpServletResponse response = stub(HttpServletResponse.class, new DiscardingOutputStream());
+			//Without atmosphere the subscription holds its thread till the provider is destroyed
+			Thread subscriber = new Thread(new Runnable() {
+				public void run() {
+					try {
+						provider.receiveSubscription(TOPIC, request, response);
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}, "subscriber-" + i);
+			subscriber.setDaemon(true);
+			subscriber.start();
+		}
+		while(provider.getSubscriberCount(TOPIC) < subscribers)
+			Thread.sleep(10);
+		message = SerializerBenchmark.createMessage(payloadSize);
+	}
+
+	@TearDown
+	public void tearDown() {
+		provider.destroy();
+	}
+
+	@Benchmark
+	public void broadcast() {
+		provider.broadcast(TOPIC, message);
+	}
+
+	/**
+	 * Creates a stub of the servlet interface returning the given output stream, null, 
+	 * false or zero from the other methods
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> T stub(Class<T> type, final ServletOutputStream out) {
+		return (T)Proxy.newProxyInstance(FanoutBenchmark.class.getClassLoader(), new Class<?>[]{type}, 
+				new InvocationHandler() {
+			
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				Class<?> returnType = method.getReturnType();
+				if(returnType == ServletOutputStream.class)
+					return out;
+				if(returnType == boolean.class)
+					return Boolean.FALSE;
+				if(returnType == int.class)
+					return 0;
+				if(returnType == long.class)
+					return 0L;
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Counts and discards the bytes written
+	 */
+	private static class DiscardingOutputStream extends ServletOutputStream {
+
+		private long written;
+
+		@Override
+		public void write(int b) throws IOException {
+			written++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			written += len;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.integration.comet.core.CometHeaderValueContainer;
+import org.springframework.integration.comet.core.CometMessage;
+import org.springframework.integration.comet.core.serializers.CometMessageJSONSerializer;
+import org.springframework.integration.comet.core.serializers.CometMessageSmileSerializer;
+import org.springframework.integration.comet.core.serializers.CometMessageStreamSerializer;
+
+/**
+ * Compares the JSON and the Smile serializers, measuring the serialization of the messages 
+ * to a String and to a stream and their deserialization from a String and from the bytes 
+ * of a frame, for payloads of several sizes. The size of the serialized messages is 
+ * printed once per trial.
+ *
+ * @author Amol Nayak
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+
+	@Param({"json", "smile"})
+	private String serializerName;
+
+	@Param({"64", "1024", "16384"})
+	private int payloadSize;
+
+	private CometMessageStreamSerializer serializer;
+
+	private CometMessage message;
+
+	private String serialized;
+
+	private byte[] serializedBytes;
+
+	private ByteArrayOutputStream out;
+
+	@Setup
+	public void setUp() throws Exception {
+		serializer = "smile".equals(serializerName) 
+				? new CometMessageSmileSerializer() : new CometMessageJSONSerializer();
+		message = createMessage(payloadSize);
+		serialized = serializer.serialize(message);
+		out = new ByteArrayOutputStream(payloadSize * 2 + 256);
+		serializer.serialize(message, out);
+		serializedBytes = out.toByteArray();
+		System.out.println(serializerName + " serializes a payload of " + payloadSize 
+				+ " characters to " + serializedBytes.length + " bytes");
+	}
+
+	@Benchmark
+	public String serialize() {
+		return serializer.serialize(message);
+	}
+
+	@Benchmark
+	public int serializeStream() throws IOException {
+		out.reset();
+		serializer.serialize(message, out);
+		return out.size();
+	}
+
+	@Benchmark
+	public CometMessage deserialize() {
+		return serializer.deserialize(serialized);
+	}
+
+	@Benchmark
+	public CometMessage deserializeBytes() {
+		return serializer.deserialize(serializedBytes, 0, serializedBytes.length);
+	}
+
+	/**
+	 * Creates a message with a couple of headers and a payload of the given number
+	 * of characters, including some needing to be escaped
+	 */
+	static CometMessage createMessage(int payloadSize) {
+		char[] chars = new char[payloadSize];
+		Arrays.fill(chars, 'a');
+		for(int i = 0; i < payloadSize; i += 64)
+			chars[i] = '"';
+		Map<String, CometHeaderValueContainer> headers = new HashMap<String, CometHeaderValueContainer>();
+		headers.put("id", new CometHeaderValueContainer("42", Long.class.getName()));
+		headers.put("source", new CometHeaderValueContainer("benchmark", String.class.getName()));
+		return new CometMessage(headers, new String(chars), String.class.getName());
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.benchmarks;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.integration.comet.core.CometMessage;
+import org.springframework.integration.comet.core.CometMessageListener;
+import org.springframework.integration.comet.core.CometMessageTransformer;
+import org.springframework.integration.comet.core.CometMessagingServices;
+import org.springframework.integration.comet.core.CometSubscription;
+import org.springframework.integration.comet.core.transport.CometMessagingTransport;
+
+/**
+ * Measures {@link CometMessagingServices#convertAndSend(Object, String)} with a transport
+ * doing nothing, i.e. the transformation of the message and the building of the 
+ * complete URL of the topic
+ *
+ * @author Amol Nayak
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServicesSendBenchmark {
+
+	@Param({"http://localhost:8080/pubsub", "http://localhost:8080/pubsub/"})
+	private String endpointUrl;
+
+	private CometMessagingServices<String> services;
+
+	private final UrlKeepingTransport transport = new UrlKeepingTransport();
+
+	@Setup
+	public void setUp() throws Exception {
+		services = new CometMessagingServices<String>();
+		services.setEndpointUrl(endpointUrl);
+		services.setDefaultMimeType("application/json");
+		services.setTransport(transport);
+		services.setTransformer(new CometMessageTransformer<String>() {
+
+			public CometMessage toCometMessage(String message) {
+				return new CometMessage(null, message, String.class.getName());
+			}
+
+			public String fromCometMessage(CometMessage message) {
+				return message.getPayload();
+			}
+		});
+		services.afterPropertiesSet();
+	}
+
+	@Benchmark
+	public String convertAndSend() {
+		services.convertAndSend("payload", "topic");
+		return transport.lastEndpointUrl;
+	}
+
+	/**
+	 * Keeps the URL the message is sent to
+	 */
+	private static class UrlKeepingTransport implements CometMessagingTransport {
+
+		private String lastEndpointUrl;
+
+		public void send(String endpointUrl, String contentType, CometMessage message) {
+			lastEndpointUrl = endpointUrl;
+		}
+
+		public CompletableFuture<Void> sendAsync(String endpointUrl, String contentType, CometMessage message) {
+			lastEndpointUrl = endpointUrl;
+			return CompletableFuture.completedFuture(null);
+		}
+
+		public CometSubscription subscribe(String topic, String expectedContentType,
+				String expectedEncoding, CometMessageListener<CometMessage> listener) {
+			throw new UnsupportedOperationException("The benchmark transport only sends");
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.integration.comet.core.CometMessage;
+import org.springframework.integration.comet.core.CometMessageListener;
+import org.springframework.integration.comet.core.CometSubscription;
+import org.springframework.integration.comet.core.transport.AbstractCometMessagingTransport;
+
+/**
+ * Measures the overhead of {@link AbstractCometMessagingTransport#send(String, String, CometMessage)}
+ * up to the transport specific send, i.e. the serialization, the encoding of the body 
+ * in form, raw or gzip compressed mode and the request headers
+ *
+ * @author Amol Nayak
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportSendBenchmark {
+
+	@Param({"64", "1024", "16384"})
+	private int payloadSize;
+
+	@Param({"form", "raw", "gzip"})
+	private String mode;
+
+	private NoOpTransport transport;
+
+	private CometMessage message;
+
+	@Setup
+	public void setUp() throws Exception {
+		transport = new NoOpTransport();
+		if("raw".equals(mode)) {
+			transport.setRawBody(true);
+		} else if("gzip".equals(mode)) {
+			transport.setCompression("gzip");
+			transport.setCompressionThreshold(0);
+		}
+		transport.initializeTransport();
+		message = SerializerBenchmark.createMessage(payloadSize);
+	}
+
+	@TearDown
+	public void tearDown() {
+		transport.destroyTransport();
+	}
+
+	@Benchmark
+	public byte[] send() {
+		transport.send("http://localhost:8080/pubsub/topic", "application/json", message);
+		return transport.lastRequestMessage;
+	}
+
+	/**
+	 * Keeps the encoded bytes instead of sending them
+	 */
+	private static class NoOpTransport extends AbstractCometMessagingTransport {
+
+		private byte[] lastRequestMessage;
+
+		@Override
+		protected void doSend(String endpointString, Map<String, String> requestHeaders,
+				byte[] requestMessage, String contentEncoding, CometMessage message) {
+			lastRequestMessage = requestMessage;
+		}
+
+		public CometSubscription subscribe(String topic, String expectedContentType,
+				String expectedEncoding, CometMessageListener<CometMessage> listener) {
+			throw new UnsupportedOperationException("The benchmark transport only sends");
+		}
+	}
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.load;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.integration.comet.EmbeddedCometServer;
+import org.springframework.integration.comet.core.CometMessageListener;
+import org.springframework.integration.comet.core.CometMessagingServer;
+import org.springframework.integration.comet.core.CometMessagingServices;
+import org.springframework.integration.comet.core.CometSubscription;
+import org.springframework.integration.comet.core.StringToCometMessageTransformer;
+import org.springframework.integration.comet.core.providers.AtmosphereCometServiceProvider;
+import org.springframework.integration.comet.core.transport.CometMessagingDefaultTransport;
+import org.springframework.integration.comet.core.transport.CometMessagingNioTransport;
+
+/**
+ * Drives publishers and subscribers through {@link CometMessagingServices} against a
+ * {@link CometMessagingServer} started on an ephemeral port of the {@link EmbeddedCometServer},
+ * and reports the throughput, the end to end latency percentiles, the garbage collections 
+ * and the thread counts. Run with the loadtest profile, the settings are given as
+ * key=value arguments, e.g.
+ * 
+ * mvn -Ploadtest test-compile exec:exec -Dload.args="transport=nio subscribers=100 messages=20000"
+ * 
+ * transport		default (a thread per subscription) or nio, default default
+ * publishers		the number of threads publishing, default 4
+ * subscribers		the number of subscriptions, default 10
+ * messages		the messages published by each publisher, default 10000
+ * warmup		the messages published by each publisher before measuring, default 1000
+ * payloadSize		the number of characters of the payloads, default 256
+ * maxQueuedMessages	the messages queued per subscriber on the server, default 10000
+ * timeout		the seconds to wait for the messages to be delivered, default 60
+ * 
+ * The latency is measured from the send of a message to its delivery to the listener of
+ * a subscriber, the publish time is carried in the payload.
+ *
+ * @author Amol Nayak
+ *
+ */
+public class CometLoadHarness {
+
+	private static final String TOPIC = "load";
+
+	private static final String WARMUP_PREFIX = "w";
+
+	private final Map<String, String> settings;
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> settings = new HashMap<String, String>();
+		for(String arg:args) {
+			int separator = arg.indexOf('=');
+			if(separator <= 0)
+				throw new IllegalArgumentException("Expected key=value arguments, found \"" + arg + "\"");
+			settings.put(arg.substring(0, separator).trim(), arg.substring(separator + 1).trim());
+		}
+		new CometLoadHarness(settings).run();
+		System.exit(0);
+	}
+
+	public CometLoadHarness(Map<String, String> settings) {
+		this.settings = settings;
+	}
+
+	public void run() throws Exception {
+		String transportType = getSetting("transport", "default");
+		final int publishers = getIntSetting("publishers", 4);
+		int subscribers = getIntSetting("subscribers", 10);
+		final int messages = getIntSetting("messages", 10000);
+		final int warmup = getIntSetting("warmup", 1000);
+		int payloadSize = getIntSetting("payloadSize", 256);
+		int maxQueuedMessages = getIntSetting("maxQueuedMessages", 10000);
+		int timeout = getIntSetting("timeout", 60);
+		if(!"default".equals(transportType) && !"nio".equals(transportType))
+			throw new IllegalArgumentException("Unknown transport \"" + transportType + "\", expected default or nio");
+
+		//The server side, without atmosphere the subscriptions hold a server thread each
+		final CometMessagingServer<String> cometServer = new CometMessagingServer<String>();
+		cometServer.setEndpointUrl("http://localhost/pubsub");
+		cometServer.setTransformer(new StringToCometMessageTransformer());
+		AtmosphereCometServiceProvider provider = (AtmosphereCometServiceProvider)cometServer.getCometProvider();
+		provider.setMaxQueuedMessages(maxQueuedMessages);
+		cometServer.afterPropertiesSet();
+		EmbeddedCometServer server = new EmbeddedCometServer();
+		server.initialize(0, subscribers + publishers + 50);
+		server.addServlet(new HttpServlet() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void service(HttpServletRequest request, HttpServletResponse response)
+					throws ServletException, IOException {
+				cometServer.handleRequest(request, response);
+			}
+		}, "/pubsub", "/*");
+		server.start();
+		String endpointUrl = "http://localhost:" + server.getPort() + "/pubsub/";
+
+		//The subscribers share a transport, as do the publishers
+		CometMessagingDefaultTransport subscriberTransport = "nio".equals(transportType) 
+				? new CometMessagingNioTransport() : new CometMessagingDefaultTransport();
+		subscriberTransport.setExecutor(new SimpleAsyncTaskExecutor("load-subscriber-"));
+		subscriberTransport.setAutoReconnect(false);
+		CometMessagingServices<String> subscriberServices = createServices(endpointUrl, subscriberTransport);
+		CometMessagingDefaultTransport publisherTransport = new CometMessagingDefaultTransport();
+		publisherTransport.setMaxConnectionsPerRoute(publishers);
+		publisherTransport.setMaxTotalConnections(publishers);
+		final CometMessagingServices<String> publisherServices = createServices(endpointUrl, publisherTransport);
+
+		long expected = (long)subscribers * publishers * (messages + warmup);
+		final CountDownLatch delivered = new CountDownLatch(1);
+		final AtomicLong remaining = new AtomicLong(expected);
+		final AtomicLong lastDelivery = new AtomicLong();
+		List<LatencyRecorder> recorders = new ArrayList<LatencyRecorder>(subscribers);
+		List<CometSubscription> subscriptions = new ArrayList<CometSubscription>(subscribers);
+		for(int i = 0; i < subscribers; i++) {
+			final LatencyRecorder recorder = new LatencyRecorder(publishers * messages);
+			recorders.add(recorder);
+			subscriptions.add(subscriberServices.subscribe(TOPIC, "application/json", new CometMessageListener<String>() {
+				public void onMessage(String message) {
+					long now = System.nanoTime();
+					if(!message.startsWith(WARMUP_PREFIX))
+						recorder.record(now - Long.parseLong(message.substring(0, message.indexOf(' '))));
+					if(remaining.decrementAndGet() == 0) {
+						lastDelivery.set(now);
+						delivered.countDown();
+					}
+				}
+			}));
+		}
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeout);
+		while(provider.getSubscriberCount(TOPIC) < subscribers) {
+			if(System.currentTimeMillis() > deadline)
+				throw new IllegalStateException("Only " + provider.getSubscriberCount(TOPIC) 
+						+ " of the " + subscribers + " subscribers connected");
+			Thread.sleep(10);
+		}
+
+		char[] padding = new char[payloadSize];
+		Arrays.fill(padding, 'x');
+		final String paddingString = new String(padding);
+		publish(publisherServices, publishers, warmup, new PayloadFactory() {
+			public String createPayload() {
+				return WARMUP_PREFIX + " " + paddingString;
+			}
+		});
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+		long[] gcBefore = getGcCounts();
+		long start = System.nanoTime();
+		publish(publisherServices, publishers, messages, new PayloadFactory() {
+			public String createPayload() {
+				return System.nanoTime() + " " + paddingString;
+			}
+		});
+		long published = System.nanoTime();
+		boolean complete = delivered.await(timeout, TimeUnit.SECONDS);
+		long end = complete ? lastDelivery.get() : System.nanoTime();
+		long[] gcAfter = getGcCounts();
+
+		long[] latencies = LatencyRecorder.merge(recorders);
+		long measured = (long)publishers * messages;
+		System.out.println("transport            " + transportType);
+		System.out.println("publishers           " + publishers + " x " + messages + " messages of " 
+				+ payloadSize + " characters, " + warmup + " warmup each");
+		System.out.println("subscribers          " + subscribers);
+		System.out.println("publish throughput   " + rate(measured, published - start) + " messages/s");
+		System.out.println("delivery throughput  " + rate(latencies.length, end - start) + " messages/s");
+		System.out.println("delivered            " + latencies.length + " of " + measured * subscribers 
+				+ (complete ? "" : ", timed out"));
+		System.out.println("dropped by server    " + provider.getDroppedMessageCount());
+		System.out.println("latency p50          " + micros(percentile(latencies, 0.5)) + " us");
+		System.out.println("latency p99          " + micros(percentile(latencies, 0.99)) + " us");
+		System.out.println("latency p999         " + micros(percentile(latencies, 0.999)) + " us");
+		System.out.println("latency max          " + micros(latencies.length == 0 ? 0 : latencies[latencies.length - 1]) + " us");
+		System.out.println("gc collections       " + (gcAfter[0] - gcBefore[0]) + ", " + (gcAfter[1] - gcBefore[1]) + " ms");
+		System.out.println("threads              " + threads.getThreadCount() + " live, " 
+				+ threads.getPeakThreadCount() + " peak");
+
+		for(CometSubscription subscription:subscriptions)
+			subscription.unsubscribe();
+		publisherServices.destroy();
+		subscriberServices.destroy();
+		cometServer.destroy();
+		server.stop();
+	}
+
+	private CometMessagingServices<String> createServices(String endpointUrl, 
+			CometMessagingDefaultTransport transport) throws Exception {
+		CometMessagingServices<String> services = new CometMessagingServices<String>();
+		services.setEndpointUrl(endpointUrl);
+		services.setDefaultMimeType("application/json");
+		services.setTransformer(new StringToCometMessageTransformer());
+		services.setTransport(transport);
+		services.afterPropertiesSet();
+		return services;
+	}
+
+	/**
+	 * Publishes the given number of messages from each of the publisher threads and
+	 * waits for them to finish
+	 */
+	private void publish(final CometMessagingServices<String> services, int publishers, 
+			final int messages, final PayloadFactory payloadFactory) throws InterruptedException {
+		final AtomicInteger failures = new AtomicInteger();
+		Thread[] threads = new Thread[publishers];
+		for(int i = 0; i < publishers; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					for(int j = 0; j < messages; j++) {
+						try {
+							services.convertAndSend(payloadFactory.createPayload(), TOPIC);
+						} catch (RuntimeException e) {
+							failures.incrementAndGet();
+						}
+					}
+				}
+			}, "load-publisher-" + i);
+			threads[i].start();
+		}
+		for(Thread thread:threads)
+			thread.join();
+		if(failures.get() > 0)
+			System.out.println(failures.get() + " messages failed to be published");
+	}
+
+	/**
+	 * The total number of collections and their total time in milliseconds
+	 */
+	private static long[] getGcCounts() {
+		long[] counts = new long[2];
+		for(GarbageCollectorMXBean collector:ManagementFactory.getGarbageCollectorMXBeans()) {
+			counts[0] += Math.max(0, collector.getCollectionCount());
+			counts[1] += Math.max(0, collector.getCollectionTime());
+		}
+		return counts;
+	}
+
+	private static long percentile(long[] sorted, double percentile) {
+		if(sorted.length == 0)
+			return 0;
+		int index = (int)Math.ceil(percentile * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+
+	private static long rate(long count, long nanos) {
+		return nanos <= 0 ? 0 : count * TimeUnit.SECONDS.toNanos(1) / nanos;
+	}
+
+	private static String micros(long nanos) {
+		return String.valueOf(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	private String getSetting(String key, String defaultValue) {
+		String value = settings.get(key);
+		return value == null ? defaultValue : value;
+	}
+
+	private int getIntSetting(String key, int defaultValue) {
+		String value = settings.get(key);
+		if(value == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Expected a number for " + key + ", found \"" + value + "\"");
+		}
+	}
+
+	private interface PayloadFactory {
+
+		String createPayload();
+	}
+
+	/**
+	 * The latencies of the messages delivered to one subscriber
+	 */
+	private static class LatencyRecorder {
+
+		private final long[] latencies;
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		LatencyRecorder(int capacity) {
+			latencies = new long[capacity];
+		}
+
+		void record(long latency) {
+			int index = count.getAndIncrement();
+			if(index < latencies.length)
+				latencies[index] = latency;
+		}
+
+		/**
+		 * The sorted latencies of all the recorders
+		 */
+		static long[] merge(List<LatencyRecorder> recorders) {
+			int total = 0;
+			for(LatencyRecorder recorder:recorders)
+				total += Math.min(recorder.count.get(), recorder.latencies.length);
+			long[] merged = new long[total];
+			int offset = 0;
+			for(LatencyRecorder recorder:recorders) {
+				int count = Math.min(recorder.count.get(), recorder.latencies.length);
+				System.arraycopy(recorder.latencies, 0, merged, offset, count);
+				offset += count;
+			}
+			Arrays.sort(merged);
+			return merged;
+		}
+	}
+}
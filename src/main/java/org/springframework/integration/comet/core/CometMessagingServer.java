@@ -16,15 +16,38 @@
 package org.springframework.integration.comet.core;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.springframework.beans.factory.BeanDefinitionStoreException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.integration.comet.core.metrics.MetricNames;
+import org.springframework.integration.comet.core.metrics.MetricsRegistry.Counter;
+import org.springframework.integration.comet.core.metrics.NoOpMetricsRegistry;
+import org.springframework.integration.comet.core.metrics.RateSampler;
 import org.springframework.integration.comet.core.providers.AtmosphereCometServiceProvider;
 import org.springframework.integration.comet.core.providers.CometServiceProvider;
+import org.springframework.integration.comet.core.serializers.CometMessageJSONSerializer;
+import org.springframework.integration.comet.core.serializers.CometMessageSerializationException;
+import org.springframework.integration.comet.core.serializers.CometMessageSerializer;
+import org.springframework.integration.comet.core.serializers.CometMessageStreamSerializer;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.util.Assert;
+import org.springframework.util.FileCopyUtils;
+import org.springframework.util.StringUtils;
 import org.springframework.web.HttpRequestHandler;
 
 /**
@@ -36,17 +59,62 @@ import org.springframework.web.HttpRequestHandler;
  * In order for this service to act as the comet service provider it should have an
  * implementation of {@link CometServiceProvider}
  * 
+ * The statistics of the messages published are exported when the server is exported by
+ * a Spring annotation MBean exporter, those of the topics when the provider is declared
+ * as a bean of its own and set as the cometProvider.
+ * 
  * @author Amol Nayak
  *
  */
+@ManagedResource(description = "Comet messaging server")
 public class CometMessagingServer<T> extends CometMessagingServices<T> implements HttpRequestHandler {
 
+	private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+	
+	private static final String CONTENT_ENCODING = "Content-Encoding";
+
 	/**
 	 * The implementation that will be used to provide comet services to the remote clients 
 	 */
 	//Default is atmosphere implementation
 	private CometServiceProvider cometProvider = new AtmosphereCometServiceProvider();
 	
+	/**
+	 * The name of the request parameter carrying the messages published to the topic, 
+	 * a batch of messages is posted as repeated parameters of this name 
+	 */
+	private String messageParamName = "message";
+	
+	/**
+	 * The serializer used to deserialize the messages published to the topic
+	 */
+	private CometMessageSerializer messageSerializer = new CometMessageJSONSerializer();
+	
+	/**
+	 * The content type of the raw bodies read with the messageSerializer
+	 */
+	private String contentType = "application/json";
+	
+	/**
+	 * The serializers of the other content types of the raw bodies
+	 */
+	private Map<String, CometMessageSerializer> serializerMap;
+	
+	private Counter publishes = NoOpMetricsRegistry.INSTANCE.counter(MetricNames.SERVER_PUBLISHES);
+	
+	private Counter publishesRejected = NoOpMetricsRegistry.INSTANCE.counter(MetricNames.SERVER_PUBLISHES_REJECTED);
+	
+	private Counter bytesIn = NoOpMetricsRegistry.INSTANCE.counter(MetricNames.SERVER_BYTES_IN);
+	
+	/**
+	 * The messages published and rejected, kept regardless of the metrics registry for the MBean
+	 */
+	private final LongAdder publishedMessages = new LongAdder();
+	
+	private final LongAdder rejectedPublishes = new LongAdder();
+	
+	private final RateSampler publishRate = new RateSampler(publishedMessages);
+	
 	//TODO: Have provision to receive unsubscription too
 	
 	/**
@@ -54,14 +122,251 @@ public class CometMessagingServer<T> extends CometMessagingServices<T> implement
 	 * This method will be invoked whenever a remote client wants to subscribe to 
 	 * the comet events being posted out from this service which acts a comet messaging
 	 * provider. Will throw an exception if {@link CometServiceProvider} instance is not set.
+	 * Responds with a 400 status if the request has no topic.
 	 * 
 	 */
-	public void receiveSubscription(HttpServletRequest request,HttpServletResponse response) {
+	public void receiveSubscription(HttpServletRequest request,HttpServletResponse response) 
+			throws IOException {
 		Assert.notNull(request, "Non null instance of HttpServletRequest is required");
 		if(cometProvider == null)
 			throw new CometMessagingException("Cannot receive subscriptions as no CometServiceProvider registered");
 		
-		cometProvider.receiveSubscription(request, response);		
+		String topic = getTopic(request);
+		if(!StringUtils.hasText(topic)) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No topic found in the request URI");
+			return;
+		}
+		cometProvider.receiveSubscription(topic, request, response);		
+	}
+	
+	/**
+	 * Invoked when a remote client publishes messages to a topic of this service. 
+	 * A form request may carry a batch of messages as repeated message parameters, each
+	 * of which is deserialized and broadcast to the subscribers of the topic in order.
+	 * A request of any other content type carries one serialized message as its body,
+	 * read with the serializer of its content type, the messageSerializer for the 
+	 * contentType or the one in the serializerMap. The body may be compressed with the 
+	 * gzip or deflate content encoding.
+	 * Responds with a 400 status if the topic or the messages are missing or garbled, 
+	 * with a 415 status if the content type or the encoding of the body is not supported
+	 * 
+	 */
+	public void receivePublish(HttpServletRequest request,HttpServletResponse response) throws IOException {
+		Assert.notNull(request, "Non null instance of HttpServletRequest is required");
+		if(cometProvider == null)
+			throw new CometMessagingException("Cannot broadcast messages as no CometServiceProvider registered");
+		
+		String topic = getTopic(request);
+		if(!StringUtils.hasText(topic)) {
+			recordRejected();
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No topic found in the request URI");
+			return;
+		}
+		if(request.getContentLength() > 0)
+			bytesIn.add(request.getContentLength());
+		String contentEncoding = request.getHeader(CONTENT_ENCODING);
+		if(contentEncoding != null && "identity".equalsIgnoreCase(contentEncoding.trim()))
+			contentEncoding = null;
+		InputStream body = null;
+		if(contentEncoding != null) {
+			body = getDecompressedBody(request, contentEncoding.trim());
+			if(body == null) {
+				recordRejected();
+				response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, 
+						"Unsupported content encoding \"" + contentEncoding + "\"");
+				return;
+			}
+		}
+		if(!isFormRequest(request)) {
+			receiveRawPublish(topic, request, body == null ? request.getInputStream() : body, response);
+			return;
+		}
+		//The container doesn't parse the parameters of a compressed form body
+		String[] serializedMessages = body == null ? request.getParameterValues(messageParamName) 
+				: readFormParameterValues(body, request.getCharacterEncoding());
+		if(serializedMessages == null || serializedMessages.length == 0) {
+			recordRejected();
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, 
+					"No \"" + messageParamName + "\" parameter found in the request");
+			return;
+		}
+		List<CometMessage> messages = new ArrayList<CometMessage>(serializedMessages.length);
+		for(String serializedMessage:serializedMessages) {
+			try {
+				messages.add(messageSerializer.deserialize(serializedMessage));
+			} catch (CometMessageSerializationException e) {
+				logger.warn("Rejecting the messages published to topic \"" + topic + "\"", e);
+				recordRejected();
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Cannot deserialize the published message");
+				return;
+			}
+		}
+		for(CometMessage message:messages) {
+			if(isLatencyStamping())
+				stampReceipt(topic, message);
+			cometProvider.broadcast(topic, message);
+		}
+		recordPublished(messages.size());
+		response.setStatus(HttpServletResponse.SC_OK);
+	}
+	
+	/**
+	 * Deserializes the single message in the body of the request with the serializer of
+	 * its content type and broadcasts it to the topic. A {@link CometMessageStreamSerializer} 
+	 * reads the body directly if it is in the charset of the serializer
+	 */
+	private void receiveRawPublish(String topic, HttpServletRequest request, InputStream body, 
+			HttpServletResponse response) throws IOException {
+		CometMessageSerializer serializer = getSerializerForContentType(request.getContentType());
+		if(serializer == null) {
+			recordRejected();
+			response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, 
+					"Unsupported content type \"" + request.getContentType() + "\"");
+			return;
+		}
+		String charset = request.getCharacterEncoding();
+		CometMessage message;
+		try {
+			if(serializer instanceof CometMessageStreamSerializer
+					&& (charset == null || charset.equalsIgnoreCase(
+							((CometMessageStreamSerializer)serializer).getCharset()))) {
+				message = ((CometMessageStreamSerializer)serializer).deserialize(body);
+			} else {
+				String serializedMessage = FileCopyUtils.copyToString(
+						new InputStreamReader(body, charset == null ? "UTF-8" : charset));
+				if(!StringUtils.hasText(serializedMessage)) {
+					recordRejected();
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No message found in the request body");
+					return;
+				}
+				message = serializer.deserialize(serializedMessage);
+			}
+		} catch (CometMessageSerializationException e) {
+			logger.warn("Rejecting the message published to topic \"" + topic + "\"", e);
+			recordRejected();
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Cannot deserialize the published message");
+			return;
+		}
+		if(isLatencyStamping())
+			stampReceipt(topic, message);
+		cometProvider.broadcast(topic, message);
+		recordPublished(1);
+		response.setStatus(HttpServletResponse.SC_OK);
+	}
+	
+	/**
+	 * Gets the serializer of the given content type, ignoring its parameters, null if 
+	 * the content type is not served
+	 */
+	private CometMessageSerializer getSerializerForContentType(String type) {
+		int parameters = type.indexOf(';');
+		if(parameters >= 0)
+			type = type.substring(0, parameters);
+		type = type.trim();
+		if(contentType.equalsIgnoreCase(type))
+			return messageSerializer;
+		if(serializerMap != null) {
+			for(Map.Entry<String, CometMessageSerializer> entry:serializerMap.entrySet()) {
+				if(entry.getKey().trim().equalsIgnoreCase(type))
+					return entry.getValue();
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Records the time the message took to reach the server and stamps the time it is received
+	 */
+	private void stampReceipt(String topic, CometMessage message) {
+		recordLatency(getMetricsRegistry().histogram(MetricNames.SERVER_PUBLISH_LATENCY, "topic", topic), 
+				message, getPublishTimeHeaderName(), currentTimeMicros());
+		stampTime(message, getServerTimeHeaderName());
+	}
+	
+	private void recordPublished(int count) {
+		publishes.add(count);
+		publishedMessages.add(count);
+	}
+	
+	private void recordRejected() {
+		publishesRejected.increment();
+		rejectedPublishes.increment();
+	}
+	
+	/**
+	 * Gets the number of messages published to the topics of this server
+	 */
+	@ManagedAttribute(description = "The number of messages published")
+	public long getPublishedMessageCount() {
+		return publishedMessages.sum();
+	}
+	
+	/**
+	 * Gets the number of publish requests rejected
+	 */
+	@ManagedAttribute(description = "The number of publish requests rejected")
+	public long getRejectedPublishCount() {
+		return rejectedPublishes.sum();
+	}
+	
+	/**
+	 * Gets the messages published per second since the previous read of the rate
+	 */
+	@ManagedAttribute(description = "The messages published per second")
+	public double getPublishRate() {
+		return publishRate.getRate();
+	}
+	
+	/**
+	 * Gets the stream decompressing the body of the request, null if the content 
+	 * encoding isn't gzip or deflate
+	 */
+	private static InputStream getDecompressedBody(HttpServletRequest request, String contentEncoding) 
+			throws IOException {
+		if("gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding))
+			return new GZIPInputStream(request.getInputStream());
+		if("deflate".equalsIgnoreCase(contentEncoding))
+			return new InflaterInputStream(request.getInputStream());
+		return null;
+	}
+	
+	/**
+	 * Reads the values of the message parameter from a form encoded body 
+	 */
+	private String[] readFormParameterValues(InputStream body, String charset) throws IOException {
+		if(charset == null)
+			charset = "UTF-8";
+		//The form encoded body is ASCII
+		String form = FileCopyUtils.copyToString(new InputStreamReader(body, "US-ASCII"));
+		List<String> values = new ArrayList<String>();
+		for(String pair:StringUtils.delimitedListToStringArray(form, "&")) {
+			int equals = pair.indexOf('=');
+			if(equals > 0 && messageParamName.equals(URLDecoder.decode(pair.substring(0, equals), charset)))
+				values.add(URLDecoder.decode(pair.substring(equals + 1), charset));
+		}
+		return values.toArray(new String[values.size()]);
+	}
+	
+	private static boolean isFormRequest(HttpServletRequest request) {
+		String contentType = request.getContentType();
+		return contentType == null 
+			|| contentType.regionMatches(true, 0, FORM_CONTENT_TYPE, 0, FORM_CONTENT_TYPE.length());
+	}
+	
+	/**
+	 * Gets the topic from the request, which is the last path segment of the request URI
+	 * 
+	 * e.g. the topic of the request to http://abc.com:8080/pubsub/topic is "topic"
+	 * @param request
+	 */
+	protected String getTopic(HttpServletRequest request) {
+		String uri = request.getRequestURI();
+		if(uri == null)
+			return null;
+		int end = uri.length();
+		while(end > 0 && uri.charAt(end - 1) == '/')
+			end--;
+		return uri.substring(uri.lastIndexOf('/', end - 1) + 1, end);
 	}
 
 	/**
@@ -78,7 +383,7 @@ public class CometMessagingServer<T> extends CometMessagingServices<T> implement
 		if("GET".equalsIgnoreCase(requestMethod)) {
 			receiveSubscription(request, response);
 		} else if("POST".equalsIgnoreCase(requestMethod)){
-			//TODO: Broadcast
+			receivePublish(request, response);
 		}
 		
 	}
@@ -89,6 +394,39 @@ public class CometMessagingServer<T> extends CometMessagingServices<T> implement
 		super.afterPropertiesSet();
 		if(cometProvider == null)
 			throw new BeanDefinitionStoreException("A non null comet service provider is mandatory");
+		publishes = getMetricsRegistry().counter(MetricNames.SERVER_PUBLISHES);
+		publishesRejected = getMetricsRegistry().counter(MetricNames.SERVER_PUBLISHES_REJECTED);
+		bytesIn = getMetricsRegistry().counter(MetricNames.SERVER_BYTES_IN);
+		if(cometProvider instanceof AtmosphereCometServiceProvider) {
+			AtmosphereCometServiceProvider provider = (AtmosphereCometServiceProvider)cometProvider;
+			if(provider.getMetricsRegistry() == NoOpMetricsRegistry.INSTANCE)
+				provider.setMetricsRegistry(getMetricsRegistry());
+		}
+		if(cometProvider instanceof InitializingBean)
+			((InitializingBean)cometProvider).afterPropertiesSet();
+		if(!StringUtils.hasText(messageParamName))
+			throw new BeanDefinitionStoreException("A non null non empty message parameter name is required");
+		if(messageSerializer == null)
+			throw new BeanDefinitionStoreException("A non null message serializer is mandatory");
+		if(!StringUtils.hasText(contentType))
+			throw new BeanDefinitionStoreException("A non null non empty content type is mandatory");
+		if(serializerMap != null) {
+			for(Map.Entry<String, CometMessageSerializer> entry:serializerMap.entrySet()) {
+				if(!StringUtils.hasText(entry.getKey()) || entry.getValue() == null)
+					throw new BeanDefinitionStoreException("The serializerMap should map non empty content " +
+							"types to non null serializers");
+			}
+		}
+	}
+
+	/**
+	 * Closes the subscriptions of the comet service provider along with the transport
+	 */
+	@Override
+	public void destroy() throws Exception {
+		super.destroy();
+		if(cometProvider instanceof DisposableBean)
+			((DisposableBean)cometProvider).destroy();
 	}
 
 	public CometServiceProvider getCometProvider() {
@@ -98,5 +436,52 @@ public class CometMessagingServer<T> extends CometMessagingServices<T> implement
 	public void setCometProvider(CometServiceProvider cometProvider) {
 		this.cometProvider = cometProvider;
 	}
+
+	public String getMessageParamName() {
+		return messageParamName;
+	}
+
+	public void setMessageParamName(String messageParamName) {
+		this.messageParamName = messageParamName;
+	}
+
+	/**
+	 * The serializer used to deserialize the messages published to this service 
+	 * @return
+	 */
+	public CometMessageSerializer getMessageSerializer() {
+		return messageSerializer;
+	}
+
+	public void setMessageSerializer(CometMessageSerializer messageSerializer) {
+		this.messageSerializer = messageSerializer;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * Sets the content type of the raw bodies read with the messageSerializer, the one
+	 * of the messageSerializer
+	 * @param contentType
+	 */
+	public void setContentType(String contentType) {
+		this.contentType = contentType;
+	}
+
+	public Map<String, CometMessageSerializer> getSerializerMap() {
+		return serializerMap;
+	}
+
+	/**
+	 * Sets the serializers of the content types other than the contentType the messages 
+	 * may be published in as raw bodies, e.g. the Smile serializer for 
+	 * application/x-jackson-smile
+	 * @param serializerMap
+	 */
+	public void setSerializerMap(Map<String, CometMessageSerializer> serializerMap) {
+		this.serializerMap = serializerMap;
+	}
 	
 }
@@ -15,10 +15,22 @@
  */
 package org.springframework.integration.comet.core;
 
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.BeanDefinitionStoreException;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.integration.comet.core.metrics.MetricNames;
+import org.springframework.integration.comet.core.metrics.MetricsRegistry;
+import org.springframework.integration.comet.core.metrics.MetricsRegistry.Counter;
+import org.springframework.integration.comet.core.metrics.MetricsRegistry.Histogram;
+import org.springframework.integration.comet.core.metrics.NoOpMetricsRegistry;
 import org.springframework.integration.comet.core.transport.AbstractCometMessagingTransport;
 import org.springframework.integration.comet.core.transport.CometMessagingDefaultTransport;
 import org.springframework.integration.comet.core.transport.CometMessagingTransport;
@@ -37,11 +49,17 @@ import org.springframework.util.StringUtils;
  * remote comet endpoint. In this case it just publishes the message to the remote comet
  * endpoint and closes the connection. It is the responsibility of the remote comet endpoint
  * to publish these messages to subscribes subscribers
+ * 
+ * With latencyStamping set, the messages sent are stamped with the wall clock time of 
+ * the publish in microseconds in the publishTimeHeaderName header, and the latency of
+ * the stamped messages received is recorded per topic to the metrics registry, see
+ * {@link MetricNames#SERVICES_LATENCY}. A {@link CometMessagingServer} with latencyStamping 
+ * set adds the time it received the message in the serverTimeHeaderName header.
  *         
  * @author Amol Nayak
  *
  */
-public class CometMessagingServices<T> implements InitializingBean {
+public class CometMessagingServices<T> implements InitializingBean, DisposableBean {
 
 	
 	protected final Log logger = LogFactory.getLog(getClass());
@@ -83,6 +101,33 @@ public class CometMessagingServices<T> implements InitializingBean {
 	 */
 	private CometMessagingTransport transport = new CometMessagingDefaultTransport();
 	
+	/**
+	 * The registry the metrics of the services are recorded to, also used by the 
+	 * transport if it is not given a registry of its own
+	 */
+	private MetricsRegistry metricsRegistry = NoOpMetricsRegistry.INSTANCE;
+	
+	private Counter messagesSent = NoOpMetricsRegistry.INSTANCE.counter(MetricNames.SERVICES_MESSAGES_SENT);
+	
+	private Counter messagesReceived = NoOpMetricsRegistry.INSTANCE.counter(MetricNames.SERVICES_MESSAGES_RECEIVED);
+	
+	/**
+	 * Whether the messages are stamped with the time they are published and the latency
+	 * of the stamped messages received is recorded
+	 */
+	private boolean latencyStamping;
+	
+	/**
+	 * The header stamped with the time the message is published, in microseconds since the epoch
+	 */
+	private String publishTimeHeaderName = "cometPublishTime";
+	
+	/**
+	 * The header stamped with the time the message is received by the server, in 
+	 * microseconds since the epoch
+	 */
+	private String serverTimeHeaderName = "cometServerTime";
+	
 	
 	//TODO: Validate the input parameters of the methods
 	//TODO:Donot bind the service to one URL, let the endpoint URL be default URL
@@ -93,8 +138,19 @@ public class CometMessagingServices<T> implements InitializingBean {
 		if(!StringUtils.hasText(endpointUrl))
 			throw new BeanDefinitionStoreException("attributes \"endpointUrl\" is mandatory");
 		
+		if(metricsRegistry == null)
+			throw new BeanDefinitionStoreException("A non null metrics registry is required");
+		messagesSent = metricsRegistry.counter(MetricNames.SERVICES_MESSAGES_SENT);
+		messagesReceived = metricsRegistry.counter(MetricNames.SERVICES_MESSAGES_RECEIVED);
+		if(latencyStamping && (!StringUtils.hasText(publishTimeHeaderName) || !StringUtils.hasText(serverTimeHeaderName)))
+			throw new BeanDefinitionStoreException("The publishTimeHeaderName and serverTimeHeaderName are required " +
+					"for the latency stamping");
+		
 		if(transport instanceof AbstractCometMessagingTransport) {
-			((AbstractCometMessagingTransport)transport).initializeTransport();
+			AbstractCometMessagingTransport cometTransport = (AbstractCometMessagingTransport)transport;
+			if(cometTransport.getMetricsRegistry() == NoOpMetricsRegistry.INSTANCE)
+				cometTransport.setMetricsRegistry(metricsRegistry);
+			cometTransport.initializeTransport();
 		}
 		
 		if(transformer == null)
@@ -106,6 +162,15 @@ public class CometMessagingServices<T> implements InitializingBean {
 					" the comet message over to the endpoint");
 	}	
 	
+	/**
+	 * Releases the resources held by the transport
+	 */
+	public void destroy() throws Exception {
+		if(transport instanceof AbstractCometMessagingTransport) {
+			((AbstractCometMessagingTransport)transport).destroyTransport();
+		}
+	}
+	
 	/**
 	 * Convert a message of type T to {@link CometMessage} and send
 	 * to the default topic on the endpoint specified and using the defaultMimeType.
@@ -156,10 +221,70 @@ public class CometMessagingServices<T> implements InitializingBean {
 		
 		//First convert the user provided message to a CometMessage using user provided transformer
 		CometMessage cometMessage = transformer.toCometMessage(message);
-		
+		if(latencyStamping)
+			stampTime(cometMessage, publishTimeHeaderName);
 		
 		transport.send(getCompleteURL(topic), mimeType, cometMessage);		
+		messagesSent.increment();
 	}	
+	
+	/**
+	 * Convert a message of type T to {@link CometMessage} and send it asynchronously
+	 * to the default topic on the endpoint specified and using the defaultMimeType.
+	 * 
+	 * @param message
+	 * @return the future that completes once the message is sent to the endpoint
+	 */
+	public CompletableFuture<Void> convertAndSendAsync(T message) {
+		return convertAndSendAsync(message, defaultTopicName, defaultMimeType);
+	}
+	
+	/**
+	 * Converts the message to a {@link CometMessage} and sends it asynchronously to the 
+	 * topic specified using the serializer of the defaultMimeType.
+	 * 
+	 * @param message
+	 * @param topic
+	 * @return the future that completes once the message is sent to the endpoint
+	 */
+	public CompletableFuture<Void> convertAndSendAsync(T message,String topic) {
+		return convertAndSendAsync(message, topic, defaultMimeType);
+	}
+	
+	/**
+	 * Converts a message to a {@link CometMessage} and sends it to the specified
+	 * topic without blocking the caller on the network I/O. The conversion happens on the
+	 * calling thread, the returned future completes exceptionally if the transport fails
+	 * to send the message. Will result in a {@link CometMessagingException} when the provided 
+	 * message is null or the given topic or mimeType is empty or null
+	 * 
+	 * @param message
+	 * @param topic
+	 * @param mimeType
+	 * @return the future that completes once the message is sent to the endpoint
+	 */
+	public CompletableFuture<Void> convertAndSendAsync(T message,String topic,String mimeType) {
+		if(message == null)
+			throw new CometMessagingException("A non null instance of CometMessage is needed to be sent");
+		if(!StringUtils.hasText(topic))
+			throw new CometMessagingException("A non null, non empty topic needs to be provided");
+		if(!StringUtils.hasText(mimeType))
+			throw new CometMessagingException("A non null, non empty mimeType needs to be provided");
+		
+		CometMessage cometMessage = transformer.toCometMessage(message);
+		if(latencyStamping)
+			stampTime(cometMessage, publishTimeHeaderName);
+		
+		CompletableFuture<Void> future = transport.sendAsync(getCompleteURL(topic), mimeType, cometMessage);
+		//Counted once sent, as the synchronous sends failing with an exception are not
+		future.whenComplete(new BiConsumer<Void, Throwable>() {
+			public void accept(Void result, Throwable failure) {
+				if(failure == null)
+					messagesSent.increment();
+			}
+		});
+		return future;
+	}
 	 
 	/**
 	 * Subscribe to the given topic URL and get notifications on the given listener
@@ -194,12 +319,22 @@ public class CometMessagingServices<T> implements InitializingBean {
 	public CometSubscription subscribe(String topic,String expectedContentType,
 								String expectedEncoding,final CometMessageListener<T> listener) {
 		String completeURL = getCompleteURL(topic);
+		final Histogram latency = latencyStamping 
+				? metricsRegistry.histogram(MetricNames.SERVICES_LATENCY, "topic", topic) : null;
+		final Histogram deliveryLatency = latencyStamping
+				? metricsRegistry.histogram(MetricNames.SERVICES_DELIVERY_LATENCY, "topic", topic) : null;
 		return transport.subscribe(completeURL, expectedContentType, 
 				expectedEncoding, new CometMessageListener<CometMessage>() {					
 					public void onMessage(CometMessage message) {
 						if(message != null) {
+							if(latency != null) {
+								long now = currentTimeMicros();
+								recordLatency(latency, message, publishTimeHeaderName, now);
+								recordLatency(deliveryLatency, message, serverTimeHeaderName, now);
+							}
 							T transformedBack = transformer.fromCometMessage(message);
 							if(transformedBack != null) {
+								messagesReceived.increment();
 								listener.onMessage(transformedBack);
 							} else
 								logger.warn("Comet message was transformed to a null instance, comet message is  " + message);
@@ -210,6 +345,51 @@ public class CometMessagingServices<T> implements InitializingBean {
 				});
 	}	
 	
+	/**
+	 * Stamps the message with the current time in the given header
+	 * 
+	 * @param message
+	 * @param headerName
+	 */
+	protected void stampTime(CometMessage message, String headerName) {
+		//The headers set by the transformer may not be modifiable
+		Map<String, CometHeaderValueContainer> headers = new HashMap<String, CometHeaderValueContainer>();
+		if(message.getHeaders() != null)
+			headers.putAll(message.getHeaders());
+		headers.put(headerName, new CometHeaderValueContainer(Long.toString(currentTimeMicros()), Long.class.getName()));
+		message.setHeaders(headers);
+	}
+	
+	/**
+	 * Records the time elapsed since the time stamped in the given header of the message
+	 * to the histogram in nanoseconds, nothing if the message isn't stamped
+	 * 
+	 * @param histogram
+	 * @param message
+	 * @param headerName
+	 * @param now the current time in microseconds since the epoch
+	 */
+	protected static void recordLatency(Histogram histogram, CometMessage message, String headerName, long now) {
+		if(message.getHeaders() == null)
+			return;
+		CometHeaderValueContainer header = message.getHeaders().get(headerName);
+		if(header == null || header.getHeaderValue() == null)
+			return;
+		try {
+			histogram.record((now - Long.parseLong(header.getHeaderValue())) * 1000);
+		} catch (NumberFormatException e) {
+			//Not stamped by the services
+		}
+	}
+	
+	/**
+	 * Gets the wall clock time in microseconds since the epoch
+	 */
+	protected static long currentTimeMicros() {
+		Instant now = Instant.now();
+		return now.getEpochSecond() * 1000000L + now.getNano() / 1000;
+	}
+	
 	/**
 	 * Concats the endpoint URL and the topic name to generate the complete endpoint URL to 
 	 * which the message needs to be posted to
@@ -277,9 +457,52 @@ public class CometMessagingServices<T> implements InitializingBean {
 		this.transformer = transformer;
 	}
 
+	public MetricsRegistry getMetricsRegistry() {
+		return metricsRegistry;
+	}
+
+	/**
+	 * Sets the registry the metrics are recorded to, see {@link MetricNames}
+	 * @param metricsRegistry
+	 */
+	public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = metricsRegistry;
+	}
+
 	public void setTransport(CometMessagingTransport transport) {
 		this.transport = transport;
 	}
+
+	public boolean isLatencyStamping() {
+		return latencyStamping;
+	}
+
+	/**
+	 * Stamps the messages sent with the time they are published and records the latency
+	 * of the stamped messages received per topic, the hosts are expected to have their 
+	 * clocks synchronized
+	 * 
+	 * @param latencyStamping
+	 */
+	public void setLatencyStamping(boolean latencyStamping) {
+		this.latencyStamping = latencyStamping;
+	}
+
+	public String getPublishTimeHeaderName() {
+		return publishTimeHeaderName;
+	}
+
+	public void setPublishTimeHeaderName(String publishTimeHeaderName) {
+		this.publishTimeHeaderName = publishTimeHeaderName;
+	}
+
+	public String getServerTimeHeaderName() {
+		return serverTimeHeaderName;
+	}
+
+	public void setServerTimeHeaderName(String serverTimeHeaderName) {
+		this.serverTimeHeaderName = serverTimeHeaderName;
+	}
 	
 	
 }
@@ -31,8 +31,22 @@ public interface CometSubscription {
 	/**
 	 * Call to unsubscribe from the subscription, no further notifications
 	 * will be provided to the listener on calling this method 
-	 * @return
+	 * @return true if the subscription was active and is now cancelled
 	 */
 	boolean unsubscribe();
+	
+	/**
+	 * Whether the subscription is still receiving the messages, a subscription is
+	 * inactive once unsubscribed or if the connection to the endpoint is closed and
+	 * is not going to be re-established
+	 * @return
+	 */
+	boolean isActive();
+	
+	/**
+	 * The number of messages received over this subscription
+	 * @return
+	 */
+	long getMessagesReceived();
 
 }
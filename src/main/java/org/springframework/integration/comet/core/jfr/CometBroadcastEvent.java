@@ -0,0 +1,45 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded by the server broadcasting a message to the subscribers of a topic, the 
+ * duration is that of queuing the message for the subscribers, the payload size is 
+ * the length of the payload in characters as the message is serialized when written
+ * 
+ * @author Amol Nayak
+ *
+ */
+@Name("org.springframework.integration.comet.Broadcast")
+@Label("Comet Broadcast")
+@Description("A message broadcast to the subscribers of a topic")
+public class CometBroadcastEvent extends CometEvent {
+	
+	@Label("Subscriber Count")
+	private int subscriberCount;
+	
+	public int getSubscriberCount() {
+		return subscriberCount;
+	}
+	
+	public void setSubscriberCount(int subscriberCount) {
+		this.subscriberCount = subscriberCount;
+	}
+}
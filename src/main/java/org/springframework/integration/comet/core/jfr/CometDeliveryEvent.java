@@ -0,0 +1,44 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded by a subscription delivering a message received, the duration covers the 
+ * deserialization of the message and the listener
+ * 
+ * @author Amol Nayak
+ *
+ */
+@Name("org.springframework.integration.comet.Delivery")
+@Label("Comet Delivery")
+@Description("A message received over a subscription delivered to its listener")
+public class CometDeliveryEvent extends CometEvent {
+	
+	@Label("Endpoint")
+	private String endpoint;
+	
+	public String getEndpoint() {
+		return endpoint;
+	}
+	
+	public void setEndpoint(String endpoint) {
+		this.endpoint = endpoint;
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * The common super class of the Java Flight Recorder events of the comet module, carrying
+ * the topic and the size of the message. The events are used as
+ * 
+ * <pre>
+ * CometPublishEvent event = new CometPublishEvent();
+ * event.begin();
+ * ...
+ * if(event.shouldCommit()) {
+ * 	event.setTopic(topic);
+ * 	event.commit();
+ * }
+ * </pre>
+ * 
+ * so that the fields are only computed when the event type is enabled in a recording. 
+ * Without a recording, begin and commit do nothing and the JIT eliminates the allocation.
+ * 
+ * @author Amol Nayak
+ *
+ */
+@Category("Comet Messaging")
+public abstract class CometEvent extends Event {
+	
+	@Label("Topic")
+	protected String topic;
+	
+	@Label("Payload Size")
+	@Description("The size of the serialized message, in bytes unless stated otherwise")
+	@DataAmount
+	protected long payloadSize;
+	
+	public String getTopic() {
+		return topic;
+	}
+	
+	public void setTopic(String topic) {
+		this.topic = topic;
+	}
+	
+	/**
+	 * Sets the topic as the last path segment of the endpoint URL of the topic
+	 * @param endpointUrl
+	 */
+	public void setTopicOf(String endpointUrl) {
+		this.topic = getTopic(endpointUrl);
+	}
+	
+	public long getPayloadSize() {
+		return payloadSize;
+	}
+	
+	public void setPayloadSize(long payloadSize) {
+		this.payloadSize = payloadSize;
+	}
+	
+	/**
+	 * Gets the topic of an endpoint URL, i.e. its last path segment, e.g. news for
+	 * http://host/pubsub/news?since=10
+	 * @param endpointUrl
+	 */
+	static String getTopic(String endpointUrl) {
+		if(endpointUrl == null)
+			return null;
+		int end = endpointUrl.indexOf('?');
+		if(end < 0)
+			end = endpointUrl.length();
+		if(end > 0 && endpointUrl.charAt(end - 1) == '/')
+			end--;
+		return endpointUrl.substring(endpointUrl.lastIndexOf('/', end - 1) + 1, end);
+	}
+}
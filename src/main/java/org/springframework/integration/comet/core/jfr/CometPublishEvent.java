@@ -0,0 +1,66 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded by a transport sending a request of published messages to an endpoint, the 
+ * duration is that of the request and the payload size that of the encoded messages
+ * 
+ * @author Amol Nayak
+ *
+ */
+@Name("org.springframework.integration.comet.Publish")
+@Label("Comet Publish")
+@Description("Messages sent to a comet endpoint")
+public class CometPublishEvent extends CometEvent {
+	
+	@Label("Endpoint")
+	private String endpoint;
+	
+	@Label("Message Count")
+	private int messageCount;
+	
+	@Label("Succeeded")
+	private boolean succeeded;
+	
+	public String getEndpoint() {
+		return endpoint;
+	}
+	
+	public void setEndpoint(String endpoint) {
+		this.endpoint = endpoint;
+	}
+	
+	public int getMessageCount() {
+		return messageCount;
+	}
+	
+	public void setMessageCount(int messageCount) {
+		this.messageCount = messageCount;
+	}
+	
+	public boolean isSucceeded() {
+		return succeeded;
+	}
+	
+	public void setSucceeded(boolean succeeded) {
+		this.succeeded = succeeded;
+	}
+}
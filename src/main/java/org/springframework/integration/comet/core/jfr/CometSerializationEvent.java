@@ -0,0 +1,55 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded when a message is serialized or deserialized, the payload size is that of
+ * the serialized message
+ * 
+ * @author Amol Nayak
+ *
+ */
+@Name("org.springframework.integration.comet.Serialization")
+@Label("Comet Serialization")
+@Description("A message serialized or deserialized")
+public class CometSerializationEvent extends CometEvent {
+	
+	@Label("Serializer")
+	private String serializer;
+	
+	@Label("Deserialization")
+	private boolean deserialization;
+	
+	public String getSerializer() {
+		return serializer;
+	}
+	
+	public void setSerializer(String serializer) {
+		this.serializer = serializer;
+	}
+	
+	public boolean isDeserialization() {
+		return deserialization;
+	}
+	
+	public void setDeserialization(boolean deserialization) {
+		this.deserialization = deserialization;
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.metrics;
+
+/**
+ * The names of the meters recorded to the {@link MetricsRegistry}. The meters of the 
+ * transports are tagged with the metricsName of the transport as the transport tag,
+ * the durations are in nanoseconds. The latencies between hosts are measured with their
+ * wall clocks and are only as accurate as the clocks are synchronized.
+ * 
+ * @author Amol Nayak
+ *
+ */
+public final class MetricNames {
+	
+	/**
+	 * Histogram of the time taken to send the request of a message or of a batch
+	 */
+	public static final String TRANSPORT_PUBLISH_LATENCY = "comet.transport.publish.latency";
+	
+	/**
+	 * Counter of the requests that failed to be sent
+	 */
+	public static final String TRANSPORT_PUBLISH_FAILURES = "comet.transport.publish.failures";
+	
+	/**
+	 * Histogram of the time taken to serialize and encode a message published
+	 */
+	public static final String TRANSPORT_SERIALIZATION_TIME = "comet.transport.serialization.time";
+	
+	/**
+	 * Counter of the bytes of the encoded messages published, before compression
+	 */
+	public static final String TRANSPORT_BYTES_OUT = "comet.transport.bytes.out";
+	
+	/**
+	 * Counter of the bytes of the messages received over the subscriptions, after decompression
+	 */
+	public static final String TRANSPORT_BYTES_IN = "comet.transport.bytes.in";
+	
+	/**
+	 * Counter of the messages received that could not be deserialized
+	 */
+	public static final String TRANSPORT_DESERIALIZATION_FAILURES = "comet.transport.deserialization.failures";
+	
+	/**
+	 * Gauge of the asynchronous sends in flight
+	 */
+	public static final String TRANSPORT_IN_FLIGHT_SENDS = "comet.transport.sends.inflight";
+	
+	/**
+	 * Gauge of the subscriptions open
+	 */
+	public static final String TRANSPORT_ACTIVE_SUBSCRIPTIONS = "comet.transport.subscriptions.active";
+	
+	/**
+	 * Gauge of the number of times the subscriptions were reconnected, never decreases
+	 */
+	public static final String TRANSPORT_RECONNECTS = "comet.transport.reconnects";
+	
+	/**
+	 * Counter of the messages converted and sent by the services
+	 */
+	public static final String SERVICES_MESSAGES_SENT = "comet.services.messages.sent";
+	
+	/**
+	 * Counter of the messages received and converted by the services
+	 */
+	public static final String SERVICES_MESSAGES_RECEIVED = "comet.services.messages.received";
+	
+	/**
+	 * Histogram of the time from the publish of a latency stamped message to its delivery 
+	 * to the listener of the subscriber, tagged with the topic
+	 */
+	public static final String SERVICES_LATENCY = "comet.services.latency";
+	
+	/**
+	 * Histogram of the time from the receipt of a latency stamped message by the server 
+	 * to its delivery to the listener of the subscriber, tagged with the topic
+	 */
+	public static final String SERVICES_DELIVERY_LATENCY = "comet.services.latency.delivery";
+	
+	/**
+	 * Counter of the messages published to the server
+	 */
+	public static final String SERVER_PUBLISHES = "comet.server.publishes";
+	
+	/**
+	 * Counter of the publish requests rejected by the server as malformed
+	 */
+	public static final String SERVER_PUBLISHES_REJECTED = "comet.server.publishes.rejected";
+	
+	/**
+	 * Counter of the bytes of the publish request bodies, as received
+	 */
+	public static final String SERVER_BYTES_IN = "comet.server.bytes.in";
+	
+	/**
+	 * Histogram of the time from the publish of a latency stamped message to its receipt
+	 * by the server, tagged with the topic
+	 */
+	public static final String SERVER_PUBLISH_LATENCY = "comet.server.latency.publish";
+	
+	/**
+	 * Counter of the bytes written to the subscribers
+	 */
+	public static final String SERVER_BYTES_OUT = "comet.server.bytes.out";
+	
+	/**
+	 * Histogram of the time taken to serialize a message broadcast, once per content type
+	 */
+	public static final String SERVER_SERIALIZATION_TIME = "comet.server.serialization.time";
+	
+	/**
+	 * Histogram of the number of subscribers a message is broadcast to, tagged with the topic
+	 */
+	public static final String SERVER_FANOUT = "comet.server.fanout";
+	
+	/**
+	 * Gauge of the subscribers connected
+	 */
+	public static final String SERVER_SUBSCRIBERS = "comet.server.subscribers";
+	
+	/**
+	 * Gauge of the messages queued for all the subscribers
+	 */
+	public static final String SERVER_QUEUE_DEPTH = "comet.server.queue.depth";
+	
+	/**
+	 * Gauge of the messages dropped as the queue of a subscriber was full, never decreases
+	 */
+	public static final String SERVER_DROPPED = "comet.server.dropped";
+	
+	/**
+	 * Gauge of the queued messages replaced by a newer one with the same key, never decreases
+	 */
+	public static final String SERVER_COALESCED = "comet.server.coalesced";
+	
+	/**
+	 * Gauge of the subscribers disconnected as their queue was full, never decreases
+	 */
+	public static final String SERVER_SLOW_DISCONNECTS = "comet.server.disconnects.slow";
+	
+	private MetricNames() {
+		
+	}
+}
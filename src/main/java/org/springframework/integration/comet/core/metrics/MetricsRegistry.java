@@ -0,0 +1,81 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.metrics;
+
+/**
+ * The registry the transports, the services and the server record their metrics to,
+ * implementations adapt it to the metrics library in use. The meters are looked up once,
+ * when the component is initialized, and the returned meters are then recorded to on the
+ * hot paths, so they should cost no more than a few nanoseconds per record. 
+ * 
+ * The tags are given as key value pairs, e.g. counter("comet.server.publishes", "topic", "news").
+ * See {@link MetricNames} for the meters recorded.
+ * 
+ * @author Amol Nayak
+ *
+ */
+public interface MetricsRegistry {
+	
+	/**
+	 * Gets the counter with the given name and tags, creating it if needed
+	 * @param name
+	 * @param tags
+	 */
+	Counter counter(String name, String... tags);
+	
+	/**
+	 * Gets the histogram with the given name and tags, creating it if needed. The 
+	 * durations are recorded in nanoseconds
+	 * @param name
+	 * @param tags
+	 */
+	Histogram histogram(String name, String... tags);
+	
+	/**
+	 * Registers a gauge sampled whenever the metrics are read, replacing the gauge 
+	 * registered earlier with the same name and tags
+	 * @param name
+	 * @param gauge
+	 * @param tags
+	 */
+	void gauge(String name, Gauge gauge, String... tags);
+	
+	/**
+	 * A monotonically increasing count
+	 */
+	interface Counter {
+		
+		void increment();
+		
+		void add(long amount);
+	}
+	
+	/**
+	 * The distribution of the values recorded, e.g. latencies or sizes
+	 */
+	interface Histogram {
+		
+		void record(long value);
+	}
+	
+	/**
+	 * A value sampled when read, e.g. a queue depth
+	 */
+	interface Gauge {
+		
+		long getValue();
+	}
+}
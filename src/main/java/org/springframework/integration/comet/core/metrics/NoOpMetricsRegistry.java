@@ -0,0 +1,61 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.metrics;
+
+/**
+ * The default {@link MetricsRegistry} discarding all the values recorded
+ * 
+ * @author Amol Nayak
+ *
+ */
+public final class NoOpMetricsRegistry implements MetricsRegistry {
+	
+	public static final NoOpMetricsRegistry INSTANCE = new NoOpMetricsRegistry();
+	
+	private static final Counter COUNTER = new Counter() {
+		
+		public void increment() {
+			
+		}
+		
+		public void add(long amount) {
+			
+		}
+	};
+	
+	private static final Histogram HISTOGRAM = new Histogram() {
+		
+		public void record(long value) {
+			
+		}
+	};
+	
+	private NoOpMetricsRegistry() {
+		
+	}
+
+	public Counter counter(String name, String... tags) {
+		return COUNTER;
+	}
+
+	public Histogram histogram(String name, String... tags) {
+		return HISTOGRAM;
+	}
+
+	public void gauge(String name, Gauge gauge, String... tags) {
+		
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Derives the per second rate of a monotonic count from the samples taken when the
+ * rate is read, for the statistics polled over JMX. The rate is recomputed at most once 
+ * per sampling interval and is the average over the time since the previous sample,
+ * the readers never block each other or the threads updating the count
+ * 
+ * @author Amol Nayak
+ *
+ */
+public class RateSampler {
+	
+	private static final long DEFAULT_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+	
+	private final LongAdder count;
+	
+	private final long interval;
+	
+	private final AtomicReference<Sample> lastSample;
+	
+	/**
+	 * Samples the given count at most once a second
+	 * @param count
+	 */
+	public RateSampler(LongAdder count) {
+		this(count, DEFAULT_INTERVAL);
+	}
+	
+	/**
+	 * Samples the given count at most once per the given interval in nanoseconds
+	 * @param count
+	 * @param interval
+	 */
+	public RateSampler(LongAdder count, long interval) {
+		this.count = count;
+		this.interval = interval;
+		this.lastSample = new AtomicReference<Sample>(new Sample(System.nanoTime(), count.sum(), 0));
+	}
+	
+	/**
+	 * Gets the number of events per second over the last sampling period
+	 */
+	public double getRate() {
+		Sample sample = lastSample.get();
+		long now = System.nanoTime();
+		long elapsed = now - sample.time;
+		if(elapsed < interval)
+			return sample.rate;
+		long current = count.sum();
+		double rate = (current - sample.count) * (double)TimeUnit.SECONDS.toNanos(1) / elapsed;
+		//Another reader that sampled concurrently wins, either value is as recent
+		lastSample.compareAndSet(sample, new Sample(now, current, rate));
+		return rate;
+	}
+	
+	private static class Sample {
+		
+		private final long time;
+		
+		private final long count;
+		
+		private final double rate;
+		
+		private Sample(long time, long count, double rate) {
+			this.time = time;
+			this.count = count;
+			this.rate = rate;
+		}
+	}
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * A {@link MetricsRegistry} keeping the meters in memory, for the applications not using
+ * a metrics library and for the tests. The counters and the histograms are striped 
+ * {@link LongAdder}s, so concurrent records don't contend on a single cache line. 
+ * The histograms count the values in log linear buckets as HdrHistogram does, the 
+ * percentiles are approximated by the upper bound of their bucket within about 3%.
+ * 
+ * The meters are identified by their name followed by their tags, e.g. 
+ * comet.server.fanout{topic=news}
+ * 
+ * @author Amol Nayak
+ *
+ */
+public class SimpleMetricsRegistry implements MetricsRegistry {
+	
+	private final ConcurrentMap<String, SimpleCounter> counters = new ConcurrentHashMap<String, SimpleCounter>();
+	
+	private final ConcurrentMap<String, SimpleHistogram> histograms = new ConcurrentHashMap<String, SimpleHistogram>();
+	
+	private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+	public Counter counter(String name, String... tags) {
+		String id = getMeterId(name, tags);
+		SimpleCounter counter = counters.get(id);
+		if(counter == null) {
+			counter = new SimpleCounter();
+			SimpleCounter existing = counters.putIfAbsent(id, counter);
+			if(existing != null)
+				counter = existing;
+		}
+		return counter;
+	}
+
+	public Histogram histogram(String name, String... tags) {
+		String id = getMeterId(name, tags);
+		SimpleHistogram histogram = histograms.get(id);
+		if(histogram == null) {
+			histogram = new SimpleHistogram();
+			SimpleHistogram existing = histograms.putIfAbsent(id, histogram);
+			if(existing != null)
+				histogram = existing;
+		}
+		return histogram;
+	}
+
+	public void gauge(String name, Gauge gauge, String... tags) {
+		if(gauge == null)
+			throw new IllegalArgumentException("A non null gauge is required");
+		gauges.put(getMeterId(name, tags), gauge);
+	}
+	
+	/**
+	 * Gets the count of the counter, 0 if no such counter
+	 * @param name
+	 * @param tags
+	 */
+	public long getCount(String name, String... tags) {
+		SimpleCounter counter = counters.get(getMeterId(name, tags));
+		return counter == null ? 0 : counter.getCount();
+	}
+	
+	/**
+	 * Gets the histogram, null if no such histogram
+	 * @param name
+	 * @param tags
+	 */
+	public SimpleHistogram getHistogram(String name, String... tags) {
+		return histograms.get(getMeterId(name, tags));
+	}
+	
+	/**
+	 * Samples the gauge, 0 if no such gauge
+	 * @param name
+	 * @param tags
+	 */
+	public long getGaugeValue(String name, String... tags) {
+		Gauge gauge = gauges.get(getMeterId(name, tags));
+		return gauge == null ? 0 : gauge.getValue();
+	}
+	
+	/**
+	 * Gets the current values of all the counters and gauges by their id
+	 */
+	public Map<String, Long> getValues() {
+		Map<String, Long> values = new TreeMap<String, Long>();
+		for(Map.Entry<String, SimpleCounter> entry:counters.entrySet())
+			values.put(entry.getKey(), entry.getValue().getCount());
+		for(Map.Entry<String, Gauge> entry:gauges.entrySet())
+			values.put(entry.getKey(), entry.getValue().getValue());
+		return values;
+	}
+	
+	/**
+	 * Gets all the histograms by their id
+	 */
+	public Map<String, SimpleHistogram> getHistograms() {
+		return Collections.unmodifiableMap(new TreeMap<String, SimpleHistogram>(histograms));
+	}
+	
+	/**
+	 * Gets the id of the meter with the given name and tags
+	 * @param name
+	 * @param tags the key value pairs
+	 */
+	public static String getMeterId(String name, String... tags) {
+		if(name == null)
+			throw new IllegalArgumentException("A non null meter name is required");
+		if(tags == null || tags.length == 0)
+			return name;
+		if(tags.length % 2 != 0)
+			throw new IllegalArgumentException("The tags of " + name + " should be key value pairs");
+		StringBuilder builder = new StringBuilder(name).append('{');
+		for(int i = 0; i < tags.length; i += 2) {
+			if(i > 0)
+				builder.append(',');
+			builder.append(tags[i]).append('=').append(tags[i + 1]);
+		}
+		return builder.append('}').toString();
+	}
+	
+	private static class SimpleCounter implements Counter {
+		
+		private final LongAdder count = new LongAdder();
+
+		public void increment() {
+			count.increment();
+		}
+
+		public void add(long amount) {
+			count.add(amount);
+		}
+		
+		long getCount() {
+			return count.sum();
+		}
+	}
+	
+	/**
+	 * A histogram of the non negative values, the negative values are recorded as 0. 
+	 * The values below 64 are counted exactly, every power of two range above is split 
+	 * in 32 linear sub buckets, bounding the relative error of a bucket to 1/32. The
+	 * buckets are created when first recorded to, a histogram of latencies only holds 
+	 * the few dozens of buckets the values fall in
+	 */
+	public static class SimpleHistogram implements Histogram {
+		
+		private static final int SUB_BUCKET_BITS = 6;
+		
+		private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+		
+		private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT >> 1;
+		
+		/**
+		 * The exact buckets of the values below 64 followed by the sub buckets of the ranges
+		 * of the values with their highest bit from 6 to 62
+		 */
+		private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF_COUNT;
+		
+		private final AtomicReferenceArray<LongAdder> buckets = new AtomicReferenceArray<LongAdder>(BUCKET_COUNT);
+		
+		private final LongAdder count = new LongAdder();
+		
+		private final LongAdder sum = new LongAdder();
+		
+		private final LongAccumulator max = new LongAccumulator(new LongBinaryOperator() {
+			public long applyAsLong(long left, long right) {
+				return Math.max(left, right);
+			}
+		}, 0);
+		
+		SimpleHistogram() {
+			
+		}
+
+		public void record(long value) {
+			if(value < 0)
+				value = 0;
+			int index = getBucketIndex(value);
+			LongAdder bucket = buckets.get(index);
+			if(bucket == null) {
+				bucket = new LongAdder();
+				if(!buckets.compareAndSet(index, null, bucket))
+					bucket = buckets.get(index);
+			}
+			bucket.increment();
+			count.increment();
+			sum.add(value);
+			max.accumulate(value);
+		}
+		
+		static int getBucketIndex(long value) {
+			if(value < SUB_BUCKET_COUNT)
+				return (int)value;
+			int highestBit = 63 - Long.numberOfLeadingZeros(value);
+			int subBucket = (int)(value >>> (highestBit - SUB_BUCKET_BITS + 1));
+			return SUB_BUCKET_COUNT + (highestBit - SUB_BUCKET_BITS) * SUB_BUCKET_HALF_COUNT 
+					+ subBucket - SUB_BUCKET_HALF_COUNT;
+		}
+		
+		/**
+		 * Gets the highest value counted in the bucket at the given index
+		 */
+		static long getBucketUpperBound(int index) {
+			if(index < SUB_BUCKET_COUNT)
+				return index;
+			int range = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT;
+			long subBucket = SUB_BUCKET_HALF_COUNT + (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT;
+			int shift = range + 1;
+			return (subBucket << shift) + (1L << shift) - 1;
+		}
+		
+		public long getCount() {
+			return count.sum();
+		}
+		
+		public long getSum() {
+			return sum.sum();
+		}
+		
+		public long getMax() {
+			return max.get();
+		}
+		
+		public double getMean() {
+			long count = getCount();
+			return count == 0 ? 0 : (double)getSum() / count;
+		}
+		
+		/**
+		 * Gets the upper bound of the bucket of the given percentile, capped by the maximum
+		 * @param percentile between 0 and 1, e.g. 0.99
+		 */
+		public long getPercentile(double percentile) {
+			long[] counts = new long[BUCKET_COUNT];
+			long total = 0;
+			for(int i = 0; i < BUCKET_COUNT; i++) {
+				LongAdder bucket = buckets.get(i);
+				if(bucket != null) {
+					counts[i] = bucket.sum();
+					total += counts[i];
+				}
+			}
+			if(total == 0)
+				return 0;
+			long rank = (long)Math.ceil(percentile * total);
+			long seen = 0;
+			for(int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if(seen >= rank && counts[i] > 0)
+					return Math.min(getBucketUpperBound(i), getMax());
+			}
+			return getMax();
+		}
+	}
+}
@@ -15,24 +15,1623 @@
  */
 package org.springframework.integration.comet.core.providers;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.atmosphere.cpr.AtmosphereResourceEvent;
+import org.atmosphere.cpr.AtmosphereResourceEventListener;
+import org.atmosphere.cpr.Meteor;
+import org.springframework.beans.factory.BeanDefinitionStoreException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.integration.comet.core.CometHeaderValueContainer;
+import org.springframework.integration.comet.core.CometMessage;
+import org.springframework.integration.comet.core.CometMessagingException;
+import org.springframework.integration.comet.core.jfr.CometBroadcastEvent;
+import org.springframework.integration.comet.core.jfr.CometSerializationEvent;
+import org.springframework.integration.comet.core.metrics.MetricNames;
+import org.springframework.integration.comet.core.metrics.MetricsRegistry;
+import org.springframework.integration.comet.core.metrics.MetricsRegistry.Counter;
+import org.springframework.integration.comet.core.metrics.MetricsRegistry.Gauge;
+import org.springframework.integration.comet.core.metrics.MetricsRegistry.Histogram;
+import org.springframework.integration.comet.core.metrics.NoOpMetricsRegistry;
+import org.springframework.integration.comet.core.metrics.RateSampler;
+import org.springframework.integration.comet.core.serializers.CometMessageJSONSerializer;
+import org.springframework.integration.comet.core.serializers.CometMessageSerializer;
+import org.springframework.integration.comet.core.serializers.CometMessageSmileSerializer;
+import org.springframework.integration.comet.core.serializers.CometMessageStreamSerializer;
+import org.springframework.integration.comet.core.transport.FramingMode;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedOperationParameter;
+import org.springframework.jmx.export.annotation.ManagedOperationParameters;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.StringUtils;
+
 /**
  * The implementation class that is used to provide comet services using atmosphere framework
+ * 
+ * The response of a subscription request is suspended using the atmosphere {@link Meteor}
+ * when the request is served by an atmosphere servlet, else the request thread is held
+ * till the subscriber goes away. The messages broadcast to a topic are queued for every 
+ * subscriber of the topic, the queue of a subscriber is serialized and written to its 
+ * response by a task on the write executor. The broadcast never waits for the writes,
+ * a slow subscriber only holds up its own queue. The subscribers of a topic are read 
+ * from a copy on write snapshot, subscribing and leaving never block the broadcasts. 
+ * The queue of a subscriber holds at most maxQueuedMessages messages, the overflowPolicy
+ * decides what happens to the messages broadcast to a subscriber with a full queue.
+ * 
+ * With a positive backlogSize, the provider keeps the latest serialized messages of 
+ * every topic in a ring buffer. The messages are stamped with a sequence number, increasing
+ * per topic, in the sequenceHeaderName header, and a subscription request carrying the 
+ * sequence of the last message received in the resumeParamName parameter is first sent 
+ * the later messages still in the backlog. The ring of a topic is allocated on its first 
+ * broadcast, a topic left without subscribers is retired along with its backlog once 
+ * idle for topicIdleTimeout milliseconds, or earlier if more than maxTopics topics are 
+ * kept, the least recently active first. The subscriptions to a new topic are refused 
+ * when maxTopics topics all have subscribers.
+ * 
+ * A subscriber gets the messages in the first content type of its Accept header having
+ * a serializer in the serializerMap, else in the default contentType. A message is 
+ * serialized once for every content type having subscribers, and the same bytes are 
+ * queued for all the subscribers of that content type. The messages are separated as 
+ * per the framingMode, which should match the one of the subscribing transports. The 
+ * messages of the binary content types, e.g. Smile, are always length prefixed as the 
+ * JSON framing can only find the end of text documents, their subscribers should use the
+ * {@link FramingMode#LENGTH_PREFIX} framing.
+ * 
+ * The statistics of the topics are exported along with operations closing a subscriber 
+ * or draining a topic when the provider is a bean exported by a Spring annotation MBean
+ * exporter. The statistics are read from counters and snapshots without taking the locks 
+ * of the topics or the subscribers.
  *  
  * @author Amol Nayak
  *
  */
-public class AtmosphereCometServiceProvider implements CometServiceProvider {
+@ManagedResource(description = "Comet topics")
+public class AtmosphereCometServiceProvider implements CometServiceProvider, InitializingBean, DisposableBean {
+
+	private static final Log logger = LogFactory.getLog(AtmosphereCometServiceProvider.class);
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	/**
+	 * The subscribers and the backlog of every topic
+	 */
+	private final ConcurrentMap<String, Topic> topics = new ConcurrentHashMap<String, Topic>();
+	
+	/**
+	 * The serializer used to write the messages to the subscribers
+	 */
+	private CometMessageSerializer messageSerializer = new CometMessageJSONSerializer();
+	
+	/**
+	 * The content type of the subscription responses, that of the messageSerializer
+	 */
+	private String contentType = "application/json";
+	
+	/**
+	 * The charset of the messages serialized to Strings, a {@link CometMessageStreamSerializer}
+	 * writes the bytes in its own charset
+	 */
+	private String charset = "UTF-8";
+	
+	/**
+	 * The serializers of the other content types the subscribers may accept
+	 */
+	private Map<String, CometMessageSerializer> serializerMap;
+	
+	/**
+	 * The content types served, the default one first, and their serializers and charsets
+	 */
+	private String[] contentTypes;
+	
+	private CometMessageSerializer[] serializers;
+	
+	private String[] charsets;
+	
+	/**
+	 * How the messages written to the subscribers are separated from each other
+	 */
+	private FramingMode framingMode = FramingMode.JSON;
+	
+	/**
+	 * The delimiter following each message when the framing mode is DELIMITER
+	 */
+	private String frameDelimiter = "\n";
+	
+	/**
+	 * The separator following the length of each message when the framing mode is LENGTH_PREFIX
+	 */
+	private char lengthPrefixSeparator = '|';
+	
+	/**
+	 * The framing of every content type served, length prefixed for the binary ones
+	 */
+	private FramingMode[] framings;
+	
+	private byte[] frameDelimiterBytes;
+	
+	/**
+	 * The executor writing the queued messages to the subscribers, if not set a pool of
+	 * writerPoolSize daemon threads is created when the provider is initialized
+	 */
+	private TaskExecutor writeExecutor;
+	
+	/**
+	 * The executor service created when no writeExecutor is provided, shut down when 
+	 * the provider is destroyed
+	 */
+	private ExecutorService internalWriteExecutor;
+	
+	private int writerPoolSize = 8;
+	
+	/**
+	 * The maximum number of messages queued for a subscriber waiting to be written
+	 */
+	private int maxQueuedMessages = 1000;
+	
+	private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+	
+	/**
+	 * The header of the messages whose value identifies the messages replacing each
+	 * other with the {@link OverflowPolicy#COALESCE} policy
+	 */
+	private String coalesceHeader;
+	
+	/**
+	 * The number of the latest messages of a topic kept to be replayed to the subscribers 
+	 * resuming from a sequence, no backlog is kept if 0
+	 */
+	private int backlogSize;
+	
+	/**
+	 * The time in milliseconds after which a topic with a backlog and no subscribers 
+	 * is retired if nothing was broadcast to it, never if 0
+	 */
+	private long topicIdleTimeout = 300000;
+	
+	/**
+	 * The maximum number of topics kept when a backlog is kept
+	 */
+	private int maxTopics = 10000;
+	
+	/**
+	 * Retires the idle topics when a backlog is kept
+	 */
+	private ScheduledExecutorService topicReaper;
+	
+	/**
+	 * The header stamped with the sequence of the message when a backlog is kept
+	 */
+	private String sequenceHeaderName = "cometSequence";
+	
+	/**
+	 * The request parameter carrying the sequence of the last message received by the subscriber
+	 */
+	private String resumeParamName = "since";
+	
+	/**
+	 * The registry the metrics of the provider are recorded to, none by default
+	 */
+	private MetricsRegistry metricsRegistry = NoOpMetricsRegistry.INSTANCE;
+	
+	private Counter bytesOut = NoOpMetricsRegistry.INSTANCE.counter(MetricNames.SERVER_BYTES_OUT);
+	
+	private Histogram serializationTime = NoOpMetricsRegistry.INSTANCE.histogram(MetricNames.SERVER_SERIALIZATION_TIME);
+	
+	private final AtomicLong droppedMessages = new AtomicLong();
+	
+	private final AtomicLong coalescedMessages = new AtomicLong();
+	
+	private final AtomicLong slowSubscriberDisconnects = new AtomicLong();
+	
+	private final LongAdder broadcasts = new LongAdder();
+	
+	private final RateSampler broadcastRate = new RateSampler(broadcasts);
+	
+	private final AtomicLong subscriberIdentifiers = new AtomicLong();
+	
+	private final AtomicLong retiredTopics = new AtomicLong();
+	
+	private volatile boolean destroyed;
+	
+	/* (non-Javadoc)
+	 * @see org.springframework.integration.comet.core.providers.CometServiceProvider#receiveSubscription(java.lang.String, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+	 */
+	public void receiveSubscription(String topic, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		if(destroyed || writeExecutor == null) {
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The comet service is not available");
+			return;
+		}
+		int contentTypeIndex = getContentTypeIndex(request.getHeader("Accept"));
+		response.setContentType(contentTypes[contentTypeIndex] + ";charset=" + charsets[contentTypeIndex]);
+		response.setHeader("Cache-Control", "no-cache");
+		final Subscriber subscriber = new Subscriber(topic, contentTypeIndex, response);
+		long since = -1;
+		Topic backlogTopic = null;
+		if(backlogSize > 0) {
+			String sinceParam = request.getParameter(resumeParamName);
+			if(StringUtils.hasText(sinceParam)) {
+				try {
+					since = Long.parseLong(sinceParam.trim());
+				} catch (NumberFormatException e) {
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST, 
+							"Invalid \"" + resumeParamName + "\" sequence " + sinceParam);
+					return;
+				}
+			}
+			backlogTopic = getTopic(topic);
+			if(backlogTopic == null) {
+				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, 
+						"The maximum of " + maxTopics + " topics is reached");
+				return;
+			}
+		}
+		if(AtmosphereSupport.isAtmosphereRequest(request)) {
+			AtmosphereSupport.suspend(request, subscriber);
+			register(subscriber, backlogTopic, since);
+			subscriber.flush();
+		} else {
+			//No container support to suspend the response, holds the request thread
+			register(subscriber, backlogTopic, since);
+			try {
+				subscriber.flush();
+				subscriber.awaitClose();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				subscriber.close();
+			}
+		}
+	}
 
 	/* (non-Javadoc)
-	 * @see org.springframework.integration.comet.core.providers.CometServiceProvider#receiveSubscription(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+	 * @see org.springframework.integration.comet.core.providers.CometServiceProvider#broadcast(java.lang.String, org.springframework.integration.comet.core.CometMessage)
 	 */
-	public void receiveSubscription(HttpServletRequest request,
-			HttpServletResponse response) {
-		
+	public void broadcast(String topic, CometMessage message) {
+		CometBroadcastEvent event = new CometBroadcastEvent();
+		event.begin();
+		String key = null;
+		if(overflowPolicy == OverflowPolicy.COALESCE && message.getHeaders() != null) {
+			CometHeaderValueContainer header = message.getHeaders().get(coalesceHeader);
+			if(header != null)
+				key = header.getHeaderValue();
+		}
+		broadcasts.increment();
+		if(backlogSize > 0) {
+			//Recorded even without subscribers for those about to resume
+			Topic backlogTopic;
+			Subscriber[] subscribers = null;
+			boolean[] offered = null;
+			while(true) {
+				backlogTopic = getTopic(topic);
+				if(backlogTopic == null) {
+					if(logger.isDebugEnabled())
+						logger.debug("Not recording the message broadcast to topic \"" + topic 
+								+ "\" as the maximum of " + maxTopics + " topics is reached");
+					commitBroadcastEvent(event, topic, message, 0);
+					return;
+				}
+				synchronized (backlogTopic) {
+					//The messages are queued in the order of their sequence, the writes and 
+					//disconnects are left till the lock is released
+					if(!backlogTopic.isRetired()) {
+						long sequence = backlogTopic.nextSequence++;
+						EncodedMessage encoded = new EncodedMessage(topic, stamp(message, sequence), key);
+						backlogTopic.record(sequence, encoded);
+						subscribers = backlogTopic.getSubscribers();
+						offered = new boolean[subscribers.length];
+						for(int i = 0; i < subscribers.length; i++)
+							offered[i] = subscribers[i].offer(encoded);
+					}
+				}
+				if(subscribers != null)
+					break;
+				//Retired while idle, replaced by a new topic
+				topics.remove(topic, backlogTopic);
+			}
+			for(int i = 0; i < subscribers.length; i++)
+				subscribers[i].signal(offered[i]);
+			backlogTopic.fanout.record(subscribers.length);
+			backlogTopic.broadcasts.increment();
+			commitBroadcastEvent(event, topic, message, subscribers.length);
+			return;
+		}
+		Topic cometTopic = topics.get(topic);
+		if(cometTopic == null) {
+			commitBroadcastEvent(event, topic, message, 0);
+			return;
+		}
+		Subscriber[] subscribers = cometTopic.getSubscribers();
+		cometTopic.fanout.record(subscribers.length);
+		cometTopic.broadcasts.increment();
+		if(subscribers.length > 0) {
+			EncodedMessage encoded = new EncodedMessage(topic, message, key);
+			for(Subscriber subscriber:subscribers)
+				subscriber.signal(subscriber.offer(encoded));
+		}
+		commitBroadcastEvent(event, topic, message, subscribers.length);
+	}
+	
+	private static void commitBroadcastEvent(CometBroadcastEvent event, String topic, 
+			CometMessage message, int subscriberCount) {
+		if(!event.shouldCommit())
+			return;
+		event.setTopic(topic);
+		event.setPayloadSize(message.getPayload() == null ? 0 : message.getPayload().length());
+		event.setSubscriberCount(subscriberCount);
+		event.commit();
+	}
+	
+	/**
+	 * Gets the number of subscribers of the topic
+	 * @param topic
+	 */
+	@ManagedOperation(description = "Gets the number of subscribers of the topic")
+	@ManagedOperationParameters(@ManagedOperationParameter(name = "topic", description = "The topic"))
+	public int getSubscriberCount(String topic) {
+		Topic cometTopic = topics.get(topic);
+		return cometTopic == null ? 0 : cometTopic.getSubscribers().length;
+	}
+	
+	/**
+	 * Gets the sequence of the last message broadcast to the topic, 0 if none or 
+	 * if no backlog is kept
+	 * @param topic
+	 */
+	@ManagedOperation(description = "Gets the sequence of the last message broadcast to the topic")
+	@ManagedOperationParameters(@ManagedOperationParameter(name = "topic", description = "The topic"))
+	public long getLastSequence(String topic) {
+		Topic cometTopic = topics.get(topic);
+		return cometTopic == null ? 0 : cometTopic.nextSequence - 1;
+	}
+	
+	/**
+	 * Gets the number of messages of the topic kept in the backlog, 0 if no backlog is kept
+	 * @param topic
+	 */
+	@ManagedOperation(description = "Gets the number of messages in the backlog of the topic")
+	@ManagedOperationParameters(@ManagedOperationParameter(name = "topic", description = "The topic"))
+	public int getBacklogDepth(String topic) {
+		Topic cometTopic = topics.get(topic);
+		if(cometTopic == null)
+			return 0;
+		EncodedMessage[] backlog = cometTopic.backlog;
+		return backlog == null ? 0 : (int)Math.min(cometTopic.nextSequence - 1, backlog.length);
+	}
+	
+	/**
+	 * Gets the number of messages queued for the subscribers of the topic waiting to be written
+	 * @param topic
+	 */
+	@ManagedOperation(description = "Gets the number of messages queued for the subscribers of the topic")
+	@ManagedOperationParameters(@ManagedOperationParameter(name = "topic", description = "The topic"))
+	public long getQueueDepth(String topic) {
+		Topic cometTopic = topics.get(topic);
+		return cometTopic == null ? 0 : cometTopic.getQueueDepth();
+	}
+	
+	/**
+	 * Gets the number of messages broadcast to the topic, counted since the topic was 
+	 * last created
+	 * @param topic
+	 */
+	@ManagedOperation(description = "Gets the number of messages broadcast to the topic")
+	@ManagedOperationParameters(@ManagedOperationParameter(name = "topic", description = "The topic"))
+	public long getTopicBroadcastCount(String topic) {
+		Topic cometTopic = topics.get(topic);
+		return cometTopic == null ? 0 : cometTopic.broadcasts.sum();
+	}
+	
+	/**
+	 * Gets the messages broadcast to the topic per second since the previous read of the rate
+	 * @param topic
+	 */
+	@ManagedOperation(description = "Gets the messages broadcast to the topic per second")
+	@ManagedOperationParameters(@ManagedOperationParameter(name = "topic", description = "The topic"))
+	public double getTopicBroadcastRate(String topic) {
+		Topic cometTopic = topics.get(topic);
+		return cometTopic == null ? 0 : cometTopic.broadcastRate.getRate();
+	}
+	
+	/**
+	 * Gets the number of messages of the topic dropped as the queue of the subscriber was full
+	 * @param topic
+	 */
+	@ManagedOperation(description = "Gets the number of messages of the topic dropped")
+	@ManagedOperationParameters(@ManagedOperationParameter(name = "topic", description = "The topic"))
+	public long getTopicDroppedMessageCount(String topic) {
+		Topic cometTopic = topics.get(topic);
+		return cometTopic == null ? 0 : cometTopic.droppedMessages.sum();
+	}
+	
+	/**
+	 * Gets the identifiers of the subscribers of the topic
+	 * @param topic
+	 */
+	@ManagedOperation(description = "Gets the identifiers of the subscribers of the topic")
+	@ManagedOperationParameters(@ManagedOperationParameter(name = "topic", description = "The topic"))
+	public String[] getSubscriberIdentifiers(String topic) {
+		Topic cometTopic = topics.get(topic);
+		if(cometTopic == null)
+			return new String[0];
+		Subscriber[] subscribers = cometTopic.getSubscribers();
+		String[] identifiers = new String[subscribers.length];
+		for(int i = 0; i < subscribers.length; i++)
+			identifiers[i] = subscribers[i].identifier;
+		return identifiers;
+	}
+	
+	/**
+	 * Closes the response of the subscriber of the topic with the given identifier
+	 * 
+	 * @param topic
+	 * @param subscriberIdentifier
+	 * @return true if the subscriber was found and closed
+	 */
+	@ManagedOperation(description = "Closes the subscriber of the topic with the given identifier")
+	@ManagedOperationParameters({
+			@ManagedOperationParameter(name = "topic", description = "The topic"),
+			@ManagedOperationParameter(name = "subscriberIdentifier", description = "The subscriber identifier")})
+	public boolean closeSubscriber(String topic, String subscriberIdentifier) {
+		Topic cometTopic = topics.get(topic);
+		if(cometTopic == null)
+			return false;
+		for(Subscriber subscriber:cometTopic.getSubscribers()) {
+			if(subscriber.identifier.equals(subscriberIdentifier))
+				return subscriber.close();
+		}
+		return false;
+	}
+	
+	/**
+	 * Discards the messages queued for the subscribers of the topic, which stay subscribed 
+	 * and get the messages broadcast from now on. The messages discarded are counted as 
+	 * dropped, those in the backlog are still replayed to the subscribers resuming.
+	 * 
+	 * @param topic
+	 * @return the number of messages discarded
+	 */
+	@ManagedOperation(description = "Discards the messages queued for the subscribers of the topic")
+	@ManagedOperationParameters(@ManagedOperationParameter(name = "topic", description = "The topic"))
+	public int drainTopic(String topic) {
+		Topic cometTopic = topics.get(topic);
+		if(cometTopic == null)
+			return 0;
+		int discarded = 0;
+		for(Subscriber subscriber:cometTopic.getSubscribers())
+			discarded += subscriber.discard();
+		droppedMessages.addAndGet(discarded);
+		cometTopic.droppedMessages.add(discarded);
+		return discarded;
+	}
+	
+	/**
+	 * Gets the names of the topics having subscribers or a backlog
+	 */
+	@ManagedAttribute(description = "The topics having subscribers or a backlog")
+	public String[] getTopicNames() {
+		return topics.keySet().toArray(new String[0]);
+	}
+	
+	/**
+	 * Gets the number of topics with a backlog retired as they were idle or past maxTopics
+	 */
+	@ManagedAttribute(description = "The number of topics with a backlog retired")
+	public long getRetiredTopicCount() {
+		return retiredTopics.get();
+	}
+	
+	/**
+	 * Gets the number of subscribers of all the topics
+	 */
+	@ManagedAttribute(description = "The number of subscribers of all the topics")
+	public long getTotalSubscriberCount() {
+		long subscribers = 0;
+		for(Topic topic:topics.values())
+			subscribers += topic.getSubscribers().length;
+		return subscribers;
+	}
+	
+	/**
+	 * Gets the number of messages queued for all the subscribers waiting to be written
+	 */
+	@ManagedAttribute(description = "The number of messages queued for all the subscribers")
+	public long getTotalQueueDepth() {
+		long depth = 0;
+		for(Topic topic:topics.values())
+			depth += topic.getQueueDepth();
+		return depth;
+	}
+	
+	/**
+	 * Gets the number of messages broadcast to all the topics
+	 */
+	@ManagedAttribute(description = "The number of messages broadcast to all the topics")
+	public long getBroadcastCount() {
+		return broadcasts.sum();
+	}
+	
+	/**
+	 * Gets the messages broadcast to all the topics per second since the previous read of the rate
+	 */
+	@ManagedAttribute(description = "The messages broadcast to all the topics per second")
+	public double getBroadcastRate() {
+		return broadcastRate.getRate();
+	}
+	
+	/**
+	 * Gets the number of messages dropped as the queue of the subscriber was full
+	 */
+	@ManagedAttribute(description = "The number of messages dropped as the queue of the subscriber was full")
+	public long getDroppedMessageCount() {
+		return droppedMessages.get();
+	}
+	
+	/**
+	 * Gets the number of queued messages replaced by a newer message with the same key
+	 */
+	@ManagedAttribute(description = "The number of queued messages replaced by a newer one with the same key")
+	public long getCoalescedMessageCount() {
+		return coalescedMessages.get();
+	}
+	
+	/**
+	 * Gets the number of subscribers disconnected as their queue was full
+	 */
+	@ManagedAttribute(description = "The number of subscribers disconnected as their queue was full")
+	public long getSlowSubscriberDisconnects() {
+		return slowSubscriberDisconnects.get();
+	}
+	
+	public void afterPropertiesSet() throws Exception {
+		if(messageSerializer == null)
+			throw new BeanDefinitionStoreException("A non null message serializer is mandatory");
+		if(!StringUtils.hasText(contentType))
+			throw new BeanDefinitionStoreException("A non null non empty content type is mandatory");
+		if(!StringUtils.hasText(charset))
+			throw new BeanDefinitionStoreException("A non null non empty charset is mandatory");
+		List<String> types = new ArrayList<String>();
+		List<CometMessageSerializer> typeSerializers = new ArrayList<CometMessageSerializer>();
+		types.add(contentType.trim());
+		typeSerializers.add(messageSerializer);
+		if(serializerMap != null) {
+			for(Map.Entry<String, CometMessageSerializer> entry:serializerMap.entrySet()) {
+				if(!StringUtils.hasText(entry.getKey()) || entry.getValue() == null)
+					throw new BeanDefinitionStoreException("The serializerMap should map non empty content " +
+							"types to non null serializers");
+				if(!types.contains(entry.getKey().trim())) {
+					types.add(entry.getKey().trim());
+					typeSerializers.add(entry.getValue());
+				}
+			}
+		}
+		contentTypes = types.toArray(new String[types.size()]);
+		serializers = typeSerializers.toArray(new CometMessageSerializer[typeSerializers.size()]);
+		charsets = new String[serializers.length];
+		for(int i = 0; i < serializers.length; i++)
+			charsets[i] = serializers[i] instanceof CometMessageStreamSerializer 
+					? ((CometMessageStreamSerializer)serializers[i]).getCharset() : charset;
+		if(framingMode == null)
+			throw new BeanDefinitionStoreException("A non null framing mode is mandatory");
+		if(framingMode == FramingMode.DELIMITER && !StringUtils.hasLength(frameDelimiter))
+			throw new BeanDefinitionStoreException("A non empty frameDelimiter is required for DELIMITER framing");
+		if(lengthPrefixSeparator >= '0' && lengthPrefixSeparator <= '9')
+			throw new BeanDefinitionStoreException("The lengthPrefixSeparator cannot be a digit");
+		framings = new FramingMode[serializers.length];
+		for(int i = 0; i < serializers.length; i++)
+			framings[i] = serializers[i] instanceof CometMessageSmileSerializer 
+					? FramingMode.LENGTH_PREFIX : framingMode;
+		frameDelimiterBytes = framingMode == FramingMode.DELIMITER ? frameDelimiter.getBytes(UTF8) : null;
+		if(maxQueuedMessages <= 0)
+			throw new BeanDefinitionStoreException("maxQueuedMessages should be a positive value");
+		if(overflowPolicy == null)
+			throw new BeanDefinitionStoreException("A non null overflow policy is mandatory");
+		if(overflowPolicy == OverflowPolicy.COALESCE && !StringUtils.hasText(coalesceHeader))
+			throw new BeanDefinitionStoreException("A coalesceHeader is required to coalesce the messages");
+		if(backlogSize < 0)
+			throw new BeanDefinitionStoreException("backlogSize should be a non negative value");
+		if(backlogSize > 0 && (!StringUtils.hasText(sequenceHeaderName) || !StringUtils.hasText(resumeParamName)))
+			throw new BeanDefinitionStoreException("The sequenceHeaderName and resumeParamName are required " +
+					"to keep a backlog");
+		if(topicIdleTimeout < 0)
+			throw new BeanDefinitionStoreException("topicIdleTimeout should be a non negative value");
+		if(maxTopics <= 0)
+			throw new BeanDefinitionStoreException("maxTopics should be a positive value");
+		//Also initialized by the server using this provider
+		if(writeExecutor == null) {
+			if(writerPoolSize <= 0)
+				throw new BeanDefinitionStoreException("writerPoolSize should be a positive value");
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("comet-writer-");
+			threadFactory.setDaemon(true);
+			internalWriteExecutor = Executors.newFixedThreadPool(writerPoolSize, threadFactory);
+			writeExecutor = new TaskExecutorAdapter(internalWriteExecutor);
+		}
+		if(metricsRegistry == null)
+			throw new BeanDefinitionStoreException("A non null metrics registry is required");
+		registerMetrics();
+		if(backlogSize > 0 && topicIdleTimeout > 0) {
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("comet-topic-reaper-");
+			threadFactory.setDaemon(true);
+			topicReaper = Executors.newSingleThreadScheduledExecutor(threadFactory);
+			long interval = Math.max(1, topicIdleTimeout / 2);
+			topicReaper.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					retireIdleTopics();
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	private void registerMetrics() {
+		bytesOut = metricsRegistry.counter(MetricNames.SERVER_BYTES_OUT);
+		serializationTime = metricsRegistry.histogram(MetricNames.SERVER_SERIALIZATION_TIME);
+		metricsRegistry.gauge(MetricNames.SERVER_SUBSCRIBERS, new Gauge() {
+			public long getValue() {
+				return getTotalSubscriberCount();
+			}
+		});
+		metricsRegistry.gauge(MetricNames.SERVER_QUEUE_DEPTH, new Gauge() {
+			public long getValue() {
+				return getTotalQueueDepth();
+			}
+		});
+		metricsRegistry.gauge(MetricNames.SERVER_DROPPED, new Gauge() {
+			public long getValue() {
+				return droppedMessages.get();
+			}
+		});
+		metricsRegistry.gauge(MetricNames.SERVER_COALESCED, new Gauge() {
+			public long getValue() {
+				return coalescedMessages.get();
+			}
+		});
+		metricsRegistry.gauge(MetricNames.SERVER_SLOW_DISCONNECTS, new Gauge() {
+			public long getValue() {
+				return slowSubscriberDisconnects.get();
+			}
+		});
+	}
+	
+	/**
+	 * Closes the responses of all the subscribers
+	 */
+	public void destroy() {
+		destroyed = true;
+		for(Topic topic:topics.values())
+			for(Subscriber subscriber:topic.getSubscribers())
+				subscriber.close();
+		if(internalWriteExecutor != null) {
+			internalWriteExecutor.shutdown();
+			internalWriteExecutor = null;
+		}
+		if(topicReaper != null) {
+			topicReaper.shutdownNow();
+			topicReaper = null;
+		}
+	}
+	
+	/**
+	 * Adds the subscriber to its topic, first queuing the messages in the backlog 
+	 * after the given sequence if it is not negative. The topic is the one got when the
+	 * subscription was received if a backlog is kept, null otherwise
+	 */
+	private void register(Subscriber subscriber, Topic topic, long since) {
+		if(backlogSize > 0) {
+			while(true) {
+				subscriber.owner = topic;
+				boolean added = false;
+				boolean replayed = false;
+				synchronized (topic) {
+					//The topics with a backlog are retired holding their lock
+					if(!topic.isRetired()) {
+						if(since >= 0)
+							replayed = subscriber.replay(topic.getBacklog(since));
+						added = topic.add(subscriber);
+					}
+				}
+				if(added) {
+					if(replayed)
+						subscriber.schedule();
+					return;
+				}
+				topics.remove(subscriber.topic, topic);
+				topic = getTopic(subscriber.topic);
+				if(topic == null) {
+					logger.warn("Closing the subscriber of topic \"" + subscriber.topic 
+							+ "\" as the maximum of " + maxTopics + " topics is reached");
+					subscriber.close();
+					return;
+				}
+			}
+		}
+		while(true) {
+			topic = getTopic(subscriber.topic);
+			subscriber.owner = topic;
+			if(topic.add(subscriber))
+				return;
+			//Left empty by its last subscriber and about to be removed
+			topics.remove(subscriber.topic, topic);
+		}
+	}
+	
+	private void unregister(Subscriber subscriber) {
+		Topic topic = subscriber.owner;
+		if(topic != null && topic.remove(subscriber))
+			topics.remove(subscriber.topic, topic);
+	}
+	
+	/**
+	 * Gets the topic with the given name, creating it if needed. Null if a backlog is 
+	 * kept and maxTopics topics all have subscribers
+	 */
+	private Topic getTopic(String name) {
+		Topic topic = topics.get(name);
+		if(topic == null) {
+			if(backlogSize > 0 && topics.size() >= maxTopics && !retireLeastRecentlyActiveTopic())
+				return null;
+			topic = new Topic(backlogSize, metricsRegistry.histogram(MetricNames.SERVER_FANOUT, "topic", name));
+			Topic existing = topics.putIfAbsent(name, topic);
+			if(existing != null)
+				topic = existing;
+		}
+		return topic;
+	}
+	
+	/**
+	 * Retires the topics without subscribers to which nothing was broadcast for the
+	 * topicIdleTimeout
+	 */
+	void retireIdleTopics() {
+		long idleSince = System.currentTimeMillis() - topicIdleTimeout;
+		for(Map.Entry<String, Topic> entry:topics.entrySet()) {
+			Topic topic = entry.getValue();
+			if(topic.getSubscribers().length == 0 && topic.lastActivity < idleSince)
+				retire(entry.getKey(), topic);
+		}
+	}
+	
+	/**
+	 * Retires the least recently active topic without subscribers, false if there is none
+	 */
+	private boolean retireLeastRecentlyActiveTopic() {
+		while(true) {
+			Map.Entry<String, Topic> oldest = null;
+			for(Map.Entry<String, Topic> entry:topics.entrySet()) {
+				Topic topic = entry.getValue();
+				if(topic.getSubscribers().length == 0 && !topic.isRetired() 
+						&& (oldest == null || topic.lastActivity < oldest.getValue().lastActivity))
+					oldest = entry;
+			}
+			if(oldest == null)
+				return false;
+			if(retire(oldest.getKey(), oldest.getValue()))
+				return true;
+		}
+	}
+	
+	/**
+	 * Retires the topic with a backlog if it has no subscribers, dropping its backlog
+	 */
+	private boolean retire(String name, Topic topic) {
+		synchronized (topic) {
+			if(!topic.retireIfEmpty())
+				return false;
+		}
+		topics.remove(name, topic);
+		retiredTopics.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Serializes the message with the serializer of the content type at the given index
+	 */
+	private byte[] serialize(int contentTypeIndex, CometMessage message) {
+		CometMessageSerializer serializer = serializers[contentTypeIndex];
+		if(serializer instanceof CometMessageStreamSerializer) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+			try {
+				((CometMessageStreamSerializer)serializer).serialize(message, out);
+			} catch (IOException e) {
+				//Should never reach here as the stream is in memory
+				throw new CometMessagingException(e.getMessage(), e);
+			}
+			return out.toByteArray();
+		}
+		try {
+			return serializer.serialize(message).getBytes(charsets[contentTypeIndex]);
+		} catch (UnsupportedEncodingException e) {
+			throw new CometMessagingException("Unsupported charset " + charsets[contentTypeIndex], e);
+		}
+	}
+	
+	/**
+	 * Separates the serialized message from the others as the subscribers of the content 
+	 * type at the given index expect it
+	 */
+	private byte[] frame(int contentTypeIndex, byte[] serialized) {
+		switch (framings[contentTypeIndex]) {
+			case DELIMITER:
+				byte[] delimited = Arrays.copyOf(serialized, serialized.length + frameDelimiterBytes.length);
+				System.arraycopy(frameDelimiterBytes, 0, delimited, serialized.length, frameDelimiterBytes.length);
+				return delimited;
+			case LENGTH_PREFIX:
+				byte[] prefix = (serialized.length + String.valueOf(lengthPrefixSeparator)).getBytes(UTF8);
+				byte[] prefixed = Arrays.copyOf(prefix, prefix.length + serialized.length);
+				System.arraycopy(serialized, 0, prefixed, prefix.length, serialized.length);
+				return prefixed;
+			default:
+				return serialized;
+		}
+	}
+	
+	/**
+	 * Gets the index of the first content type of the Accept header that is served, 
+	 * the default content type if none
+	 */
+	private int getContentTypeIndex(String accept) {
+		if(accept == null || contentTypes.length == 1)
+			return 0;
+		for(String type:StringUtils.commaDelimitedListToStringArray(accept)) {
+			int parameters = type.indexOf(';');
+			if(parameters >= 0)
+				type = type.substring(0, parameters);
+			type = type.trim();
+			for(int i = 0; i < contentTypes.length; i++)
+				if(contentTypes[i].equalsIgnoreCase(type))
+					return i;
+		}
+		return 0;
+	}
+	
+	/**
+	 * Copies the message adding the sequence header, the message broadcast is left untouched
+	 */
+	private CometMessage stamp(CometMessage message, long sequence) {
+		Map<String, CometHeaderValueContainer> headers = new HashMap<String, CometHeaderValueContainer>();
+		if(message.getHeaders() != null)
+			headers.putAll(message.getHeaders());
+		headers.put(sequenceHeaderName, new CometHeaderValueContainer(String.valueOf(sequence), Long.class.getName()));
+		return new CometMessage(headers, message.getPayload(), message.getOriginalPayloadType());
+	}
+	
+	public CometMessageSerializer getMessageSerializer() {
+		return messageSerializer;
+	}
+
+	public void setMessageSerializer(CometMessageSerializer messageSerializer) {
+		this.messageSerializer = messageSerializer;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * Sets the default content type of the subscription responses, should be the one of 
+	 * the messageSerializer
+	 * @param contentType
+	 */
+	public void setContentType(String contentType) {
+		this.contentType = contentType;
+	}
+
+	public String getCharset() {
+		return charset;
+	}
+
+	public void setCharset(String charset) {
+		this.charset = charset;
+	}
+
+	public Map<String, CometMessageSerializer> getSerializerMap() {
+		return serializerMap;
+	}
+
+	/**
+	 * Sets the serializers of the content types other than the default one the 
+	 * subscribers may ask for in their Accept header
+	 * @param serializerMap
+	 */
+	public void setSerializerMap(Map<String, CometMessageSerializer> serializerMap) {
+		this.serializerMap = serializerMap;
+	}
+
+	public FramingMode getFramingMode() {
+		return framingMode;
+	}
+
+	/**
+	 * Sets how the messages of the text content types are separated from each other, 
+	 * JSON by default. The messages of the binary content types are always length prefixed
+	 * @param framingMode
+	 */
+	public void setFramingMode(FramingMode framingMode) {
+		this.framingMode = framingMode;
+	}
+
+	public String getFrameDelimiter() {
+		return frameDelimiter;
+	}
+
+	public void setFrameDelimiter(String frameDelimiter) {
+		this.frameDelimiter = frameDelimiter;
+	}
+
+	public char getLengthPrefixSeparator() {
+		return lengthPrefixSeparator;
+	}
 
+	public void setLengthPrefixSeparator(char lengthPrefixSeparator) {
+		this.lengthPrefixSeparator = lengthPrefixSeparator;
 	}
 
+	public TaskExecutor getWriteExecutor() {
+		return writeExecutor;
+	}
+
+	/**
+	 * Sets the executor writing the queued messages to the subscribers, each task writes 
+	 * to a single subscriber 
+	 * @param writeExecutor
+	 */
+	public void setWriteExecutor(TaskExecutor writeExecutor) {
+		this.writeExecutor = writeExecutor;
+	}
+
+	public int getWriterPoolSize() {
+		return writerPoolSize;
+	}
+
+	/**
+	 * Sets the number of threads writing to the subscribers when no writeExecutor is set
+	 * @param writerPoolSize
+	 */
+	public void setWriterPoolSize(int writerPoolSize) {
+		this.writerPoolSize = writerPoolSize;
+	}
+
+	public int getMaxQueuedMessages() {
+		return maxQueuedMessages;
+	}
+
+	/**
+	 * Sets the maximum number of messages queued for a subscriber waiting to be written,
+	 * bounding the memory held by a subscriber not keeping up with the broadcasts
+	 * @param maxQueuedMessages
+	 */
+	public void setMaxQueuedMessages(int maxQueuedMessages) {
+		this.maxQueuedMessages = maxQueuedMessages;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Sets what is done with a message broadcast to a subscriber whose queue is full,
+	 * defaults to {@link OverflowPolicy#DROP_OLDEST}
+	 * @param overflowPolicy
+	 */
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public String getCoalesceHeader() {
+		return coalesceHeader;
+	}
+
+	/**
+	 * Sets the header whose value identifies the messages replacing each other in a full
+	 * queue with the {@link OverflowPolicy#COALESCE} policy, e.g. the id of the entity
+	 * whose latest state the message carries
+	 * @param coalesceHeader
+	 */
+	public void setCoalesceHeader(String coalesceHeader) {
+		this.coalesceHeader = coalesceHeader;
+	}
+
+	public int getBacklogSize() {
+		return backlogSize;
+	}
+
+	/**
+	 * Sets the number of the latest messages of every topic kept to be replayed to the 
+	 * resuming subscribers, the backlog of a topic is allocated when the first message is
+	 * broadcast and kept till the topic is retired, see {@link #setTopicIdleTimeout(long)}
+	 * and {@link #setMaxTopics(int)}
+	 * @param backlogSize
+	 */
+	public void setBacklogSize(int backlogSize) {
+		this.backlogSize = backlogSize;
+	}
+
+	public long getTopicIdleTimeout() {
+		return topicIdleTimeout;
+	}
+
+	/**
+	 * Sets the time in milliseconds after which a topic with a backlog, no subscribers 
+	 * and no message broadcast is retired with its backlog, defaults to 5 minutes. The 
+	 * subscribers resuming from a retired topic get the whole backlog of the new one, as 
+	 * after a restart. 0 keeps the topics till maxTopics is reached
+	 * @param topicIdleTimeout
+	 */
+	public void setTopicIdleTimeout(long topicIdleTimeout) {
+		this.topicIdleTimeout = topicIdleTimeout;
+	}
+
+	public int getMaxTopics() {
+		return maxTopics;
+	}
+
+	/**
+	 * Sets the maximum number of topics kept when a backlog is kept, defaults to 10000.
+	 * A new topic retires the least recently active topic without subscribers, if all 
+	 * the topics have subscribers the subscription to the new topic is refused and the 
+	 * messages broadcast to it are not kept
+	 * @param maxTopics
+	 */
+	public void setMaxTopics(int maxTopics) {
+		this.maxTopics = maxTopics;
+	}
+
+	public String getSequenceHeaderName() {
+		return sequenceHeaderName;
+	}
+
+	public void setSequenceHeaderName(String sequenceHeaderName) {
+		this.sequenceHeaderName = sequenceHeaderName;
+	}
+
+	public String getResumeParamName() {
+		return resumeParamName;
+	}
+
+	public void setResumeParamName(String resumeParamName) {
+		this.resumeParamName = resumeParamName;
+	}
+
+	public MetricsRegistry getMetricsRegistry() {
+		return metricsRegistry;
+	}
+
+	/**
+	 * Sets the registry the metrics of the provider are recorded to, the fan out is 
+	 * recorded per topic
+	 * @param metricsRegistry
+	 */
+	public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = metricsRegistry;
+	}
+
+	/**
+	 * The subscribers of a topic and the ring buffer of its latest messages, the 
+	 * sequence and the backlog are guarded by the lock of the topic.
+	 * 
+	 * The subscribers are kept in an array replaced on every change, the broadcasts 
+	 * iterate a snapshot without locking while the subscribers come and go. A topic 
+	 * without backlog is retired when its last subscriber leaves, one with a backlog
+	 * is retired holding its lock when idle. A retired topic accepts no more subscribers 
+	 * and is replaced in the topics by a new one.
+	 */
+	private static class Topic {
+		
+		private static final Subscriber[] RETIRED = new Subscriber[0];
+		
+		private final AtomicReference<Subscriber[]> subscribers = 
+				new AtomicReference<Subscriber[]>(new Subscriber[0]);
+		
+		private final int backlogSize;
+		
+		/**
+		 * The message of sequence n is at index n % length, null if no backlog is kept or
+		 * nothing was broadcast yet
+		 */
+		private volatile EncodedMessage[] backlog;
+		
+		/**
+		 * The number of subscribers of every message broadcast to the topic
+		 */
+		private final Histogram fanout;
+		
+		private final LongAdder broadcasts = new LongAdder();
+		
+		private final RateSampler broadcastRate = new RateSampler(broadcasts);
+		
+		private final LongAdder droppedMessages = new LongAdder();
+		
+		/**
+		 * Incremented under the lock of the topic, volatile for the statistics read without it
+		 */
+		private volatile long nextSequence = 1;
+		
+		/**
+		 * The time of the last broadcast or of the last subscriber leaving
+		 */
+		private volatile long lastActivity = System.currentTimeMillis();
+		
+		Topic(int backlogSize, Histogram fanout) {
+			this.backlogSize = backlogSize;
+			this.fanout = fanout;
+		}
+		
+		Subscriber[] getSubscribers() {
+			return subscribers.get();
+		}
+		
+		boolean isRetired() {
+			return subscribers.get() == RETIRED;
+		}
+		
+		/**
+		 * Retires the topic if it has no subscribers, to be called holding the lock
+		 */
+		boolean retireIfEmpty() {
+			Subscriber[] current = subscribers.get();
+			return current.length == 0 && current != RETIRED && subscribers.compareAndSet(current, RETIRED);
+		}
+		
+		/**
+		 * Keeps the message of the given sequence in the backlog, to be called holding the lock
+		 */
+		void record(long sequence, EncodedMessage message) {
+			EncodedMessage[] backlog = this.backlog;
+			if(backlog == null) {
+				backlog = new EncodedMessage[backlogSize];
+				this.backlog = backlog;
+			}
+			backlog[(int)(sequence % backlogSize)] = message;
+			lastActivity = System.currentTimeMillis();
+		}
+		
+		long getQueueDepth() {
+			long depth = 0;
+			for(Subscriber subscriber:subscribers.get())
+				depth += subscriber.queueDepth;
+			return depth;
+		}
+		
+		/**
+		 * Adds the subscriber, false if the topic is retired
+		 */
+		boolean add(Subscriber subscriber) {
+			while(true) {
+				Subscriber[] current = subscribers.get();
+				if(current == RETIRED)
+					return false;
+				Subscriber[] updated = Arrays.copyOf(current, current.length + 1);
+				updated[current.length] = subscriber;
+				if(subscribers.compareAndSet(current, updated))
+					return true;
+			}
+		}
+		
+		/**
+		 * Removes the subscriber, true if the topic is retired as it was the last one
+		 */
+		boolean remove(Subscriber subscriber) {
+			while(true) {
+				Subscriber[] current = subscribers.get();
+				int index = -1;
+				for(int i = 0; i < current.length; i++) {
+					if(current[i] == subscriber) {
+						index = i;
+						break;
+					}
+				}
+				if(index < 0)
+					return false;
+				Subscriber[] updated;
+				if(current.length == 1) {
+					updated = backlogSize == 0 ? RETIRED : new Subscriber[0];
+					lastActivity = System.currentTimeMillis();
+				} else {
+					updated = new Subscriber[current.length - 1];
+					System.arraycopy(current, 0, updated, 0, index);
+					System.arraycopy(current, index + 1, updated, index, updated.length - index);
+				}
+				if(subscribers.compareAndSet(current, updated))
+					return updated == RETIRED;
+			}
+		}
+		
+		/**
+		 * Gets the messages in the backlog after the given sequence, all of them if the
+		 * sequence is not one of this topic, e.g. one given before a restart
+		 */
+		List<EncodedMessage> getBacklog(long since) {
+			EncodedMessage[] backlog = this.backlog;
+			if(backlog == null)
+				return Collections.emptyList();
+			long oldest = Math.max(1, nextSequence - backlog.length);
+			long from = since + 1;
+			if(since >= nextSequence || from < oldest)
+				from = oldest;
+			List<EncodedMessage> messages = new ArrayList<EncodedMessage>((int)(nextSequence - from));
+			for(long sequence = from; sequence < nextSequence; sequence++)
+				messages.add(backlog[(int)(sequence % backlog.length)]);
+			return messages;
+		}
+	}
+	
+	/**
+	 * A suspended response and the messages queued to be written to it, at most one
+	 * task writes the queue at any given time. The queue is guarded by the lock of the 
+	 * subscriber, which is never held while writing.
+	 */
+	private class Subscriber implements Runnable {
+		
+		private final String identifier = Long.toString(subscriberIdentifiers.incrementAndGet());
+		
+		private final String topic;
+		
+		/**
+		 * The topic the subscriber is added to, set before it is published in the subscribers
+		 */
+		private Topic owner;
+		
+		/**
+		 * The index of the content type the messages are written in
+		 */
+		private final int contentTypeIndex;
+		
+		private final HttpServletResponse response;
+		
+		private final Deque<QueuedMessage> queue = new ArrayDeque<QueuedMessage>();
+		
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		
+		private final AtomicBoolean closed = new AtomicBoolean();
+		
+		private final CountDownLatch closeLatch = new CountDownLatch(1);
+		
+		/**
+		 * The size of the queue, updated under the lock and read without it for the statistics
+		 */
+		private volatile int queueDepth;
+		
+		/**
+		 * Resumes the suspended response when the subscriber is closed
+		 */
+		private volatile Runnable resumer;
+		
+		Subscriber(String topic, int contentTypeIndex, HttpServletResponse response) {
+			this.topic = topic;
+			this.contentTypeIndex = contentTypeIndex;
+			this.response = response;
+		}
+		
+		/**
+		 * Queues the message applying the overflow policy, false if the subscriber is to
+		 * be disconnected. Only the queue is touched, the caller may hold the lock of the 
+		 * topic and is expected to {@link #signal(boolean)} the subscriber once released.
+		 */
+		boolean offer(EncodedMessage message) {
+			if(closed.get())
+				return true;
+			String key = message.key;
+			synchronized (this) {
+				if(queue.size() >= maxQueuedMessages) {
+					if(overflowPolicy == OverflowPolicy.COALESCE && key != null && replace(message, key)) {
+						coalescedMessages.incrementAndGet();
+						return true;
+					}
+					switch (overflowPolicy) {
+						case DROP_NEWEST:
+							droppedMessages.incrementAndGet();
+							owner.droppedMessages.increment();
+							return true;
+						case DISCONNECT:
+							return false;
+						default:
+							//Also when coalescing finds no message to replace
+							queue.poll();
+							droppedMessages.incrementAndGet();
+							owner.droppedMessages.increment();
+					}
+				}
+				queue.add(new QueuedMessage(message, key));
+				queueDepth = queue.size();
+			}
+			return true;
+		}
+		
+		/**
+		 * Schedules the write of the queued messages, or disconnects the subscriber if
+		 * the message could not be offered
+		 */
+		void signal(boolean offered) {
+			if(offered) {
+				schedule();
+				return;
+			}
+			slowSubscriberDisconnects.incrementAndGet();
+			logger.warn("Disconnecting the subscriber of topic \"" + topic + "\" as " 
+					+ maxQueuedMessages + " messages are waiting to be written");
+			close();
+		}
+		
+		/**
+		 * Queues at most maxQueuedMessages of the messages replayed from the backlog, the
+		 * earliest ones with the DROP_NEWEST policy and the latest ones otherwise, the others
+		 * are dropped. Returns true if any message was queued, the caller is expected to 
+		 * schedule the write.
+		 */
+		boolean replay(List<EncodedMessage> messages) {
+			if(messages.isEmpty())
+				return false;
+			int dropped = Math.max(0, messages.size() - maxQueuedMessages);
+			if(dropped > 0) {
+				droppedMessages.addAndGet(dropped);
+				owner.droppedMessages.add(dropped);
+				messages = overflowPolicy == OverflowPolicy.DROP_NEWEST 
+						? messages.subList(0, maxQueuedMessages) : messages.subList(dropped, messages.size());
+			}
+			synchronized (this) {
+				for(EncodedMessage message:messages)
+					queue.add(new QueuedMessage(message, null));
+				queueDepth = queue.size();
+			}
+			return true;
+		}
+		
+		/**
+		 * Replaces the queued message with the given key if any
+		 */
+		private boolean replace(EncodedMessage message, String key) {
+			for(QueuedMessage queued:queue) {
+				if(key.equals(queued.key)) {
+					queued.message = message;
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		void schedule() {
+			if(!scheduled.compareAndSet(false, true))
+				return;
+			try {
+				writeExecutor.execute(this);
+			} catch (TaskRejectedException e) {
+				scheduled.set(false);
+				logger.warn("Closing the subscriber of topic \"" + topic + "\" as the write was rejected", e);
+				close();
+			}
+		}
+		
+		public void run() {
+			try {
+				OutputStream out = response.getOutputStream();
+				List<QueuedMessage> messages;
+				while(!closed.get() && !(messages = drain()).isEmpty()) {
+					for(QueuedMessage message:messages) {
+						byte[] frame;
+						try {
+							frame = message.message.getFrame(contentTypeIndex);
+						} catch (CometMessagingException e) {
+							logger.error("Unable to serialize the message for topic \"" + topic + "\"", e);
+							continue;
+						}
+						out.write(frame);
+						bytesOut.add(frame.length);
+					}
+				}
+				out.flush();
+			} catch (IOException e) {
+				if(logger.isDebugEnabled())
+					logger.debug("The subscriber of topic \"" + topic + "\" went away", e);
+				close();
+			} finally {
+				scheduled.set(false);
+			}
+			//Messages queued after the last poll but before the flag was cleared
+			boolean pending;
+			synchronized (this) {
+				pending = !queue.isEmpty();
+			}
+			if(pending && !closed.get())
+				schedule();
+		}
+		
+		private synchronized List<QueuedMessage> drain() {
+			if(queue.isEmpty())
+				return Collections.emptyList();
+			List<QueuedMessage> messages = new ArrayList<QueuedMessage>(queue);
+			queue.clear();
+			queueDepth = 0;
+			return messages;
+		}
+		
+		/**
+		 * Discards the queued messages, returns their number
+		 */
+		synchronized int discard() {
+			int discarded = queue.size();
+			queue.clear();
+			queueDepth = 0;
+			return discarded;
+		}
+		
+		/**
+		 * Commits the response headers so that the subscriber knows it is subscribed
+		 */
+		void flush() throws IOException {
+			try {
+				response.flushBuffer();
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+		
+		void awaitClose() throws InterruptedException {
+			closeLatch.await();
+		}
+		
+		/**
+		 * Closes the subscriber, false if it was already closed
+		 */
+		boolean close() {
+			if(!closed.compareAndSet(false, true))
+				return false;
+			unregister(this);
+			synchronized (this) {
+				queue.clear();
+				queueDepth = 0;
+			}
+			closeLatch.countDown();
+			if(resumer != null) {
+				try {
+					resumer.run();
+				} catch (RuntimeException e) {
+					logger.debug("Exception occurred while resuming the response", e);
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * A message broadcast and its bytes in the content types of the subscribers, each 
+	 * serialized once when first needed and shared by all the subscribers of the type
+	 */
+	private class EncodedMessage {
+		
+		private final String topic;
+		
+		private final CometMessage message;
+		
+		/**
+		 * The value of the coalescing header, null if not coalescing
+		 */
+		private final String key;
+		
+		private final byte[][] frames = new byte[contentTypes.length][];
+		
+		EncodedMessage(String topic, CometMessage message, String key) {
+			this.topic = topic;
+			this.message = message;
+			this.key = key;
+		}
+		
+		synchronized byte[] getFrame(int contentTypeIndex) {
+			byte[] frame = frames[contentTypeIndex];
+			if(frame == null) {
+				CometSerializationEvent event = new CometSerializationEvent();
+				event.begin();
+				long start = System.nanoTime();
+				frame = frame(contentTypeIndex, serialize(contentTypeIndex, message));
+				serializationTime.record(System.nanoTime() - start);
+				frames[contentTypeIndex] = frame;
+				if(event.shouldCommit()) {
+					event.setTopic(topic);
+					event.setSerializer(serializers[contentTypeIndex].getClass().getName());
+					event.setPayloadSize(frame.length);
+					event.commit();
+				}
+			}
+			return frame;
+		}
+	}
+	
+	/**
+	 * A message queued for a subscriber, serialized by the writer of the subscriber
+	 */
+	private static class QueuedMessage {
+		
+		private EncodedMessage message;
+		
+		/**
+		 * The value of the coalescing header, null if not coalescing
+		 */
+		private final String key;
+		
+		QueuedMessage(EncodedMessage message, String key) {
+			this.message = message;
+			this.key = key;
+		}
+	}
+	
+	/**
+	 * Suspends the responses using atmosphere, kept apart so that the atmosphere classes 
+	 * are loaded only for the requests served by an atmosphere servlet
+	 */
+	private static class AtmosphereSupport {
+		
+		/**
+		 * The request attribute holding the AtmosphereResource, FrameworkConfig.ATMOSPHERE_RESOURCE
+		 */
+		private static final String ATMOSPHERE_RESOURCE = "org.atmosphere.cpr.AtmosphereResource";
+		
+		static boolean isAtmosphereRequest(HttpServletRequest request) {
+			return request.getAttribute(ATMOSPHERE_RESOURCE) != null;
+		}
+		
+		static void suspend(HttpServletRequest request, final Subscriber subscriber) {
+			final Meteor meteor = Meteor.build(request);
+			subscriber.resumer = new Runnable() {
+				public void run() {
+					meteor.resume();
+				}
+			};
+			meteor.addListener(new AtmosphereResourceEventListener() {
+				
+				public void onSuspend(AtmosphereResourceEvent<HttpServletRequest, HttpServletResponse> event) {
+					
+				}
+				
+				public void onResume(AtmosphereResourceEvent<HttpServletRequest, HttpServletResponse> event) {
+					subscriber.close();
+				}
+				
+				public void onDisconnect(AtmosphereResourceEvent<HttpServletRequest, HttpServletResponse> event) {
+					subscriber.close();
+				}
+				
+				public void onBroadcast(AtmosphereResourceEvent<HttpServletRequest, HttpServletResponse> event) {
+					
+				}
+				
+				public void onThrowable(AtmosphereResourceEvent<HttpServletRequest, HttpServletResponse> event) {
+					subscriber.close();
+				}
+			});
+			meteor.suspend(-1, false);
+		}
+	}
 }
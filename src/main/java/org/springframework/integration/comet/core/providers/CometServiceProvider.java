@@ -15,9 +15,12 @@
  */
 package org.springframework.integration.comet.core.providers;
 
+import java.io.IOException;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.springframework.integration.comet.core.CometMessage;
 import org.springframework.integration.comet.core.CometMessagingServices;
 
 /**
@@ -32,10 +35,22 @@ public interface CometServiceProvider {
 
 	/**
 	 * Invoked by the incoming request for a request to receive subscription from the
-	 * remote client
+	 * remote client, the implementation keeps the response open and streams to it the
+	 * messages broadcast to the topic
 	 * 
+	 * @param topic
 	 * @param request
 	 * @param response
 	 */
-	void receiveSubscription(HttpServletRequest request,HttpServletResponse response);
+	void receiveSubscription(String topic,HttpServletRequest request,HttpServletResponse response) 
+			throws IOException;
+	
+	/**
+	 * Invoked for every message published to the given topic, the implementation is 
+	 * responsible to deliver the message to all the subscribers of the topic
+	 * 
+	 * @param topic
+	 * @param message
+	 */
+	void broadcast(String topic,CometMessage message);
 }
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.providers;
+
+/**
+ * What is done with a message broadcast to a subscriber whose queue of messages
+ * waiting to be written is full
+ *
+ * @author Amol Nayak
+ *
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * The oldest queued message is dropped to make room for the new one
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * The new message is dropped
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * The new message replaces the queued message having the same value of the 
+	 * coalescing header, the oldest queued message is dropped if there is none
+	 */
+	COALESCE,
+
+	/**
+	 * The subscriber is disconnected
+	 */
+	DISCONNECT
+}
@@ -15,6 +15,15 @@
  */
 package org.springframework.integration.comet.core.serializers;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonProcessingException;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.map.annotate.JsonSerialize.Inclusion;
 import org.springframework.integration.comet.core.CometMessage;
@@ -22,20 +31,28 @@ import org.springframework.util.StringUtils;
 
 /**
  * The serializer that will serialize the {@link CometMessage} into a JSON String and an incoming 
- * string to a {@link CometMessage} instance.
+ * string to a {@link CometMessage} instance. The byte oriented methods use Jackson's streaming
+ * generator and parser directly over the UTF-8 bytes.
  * 
  * @author Amol Nayak
  *
  */
-public class CometMessageJSONSerializer implements CometMessageSerializer {
+public class CometMessageJSONSerializer implements CometMessageStreamSerializer {
 
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
 	private String commonPrefix = "message=";
 	
+	private byte[] commonPrefixBytes = commonPrefix.getBytes(UTF_8);
+	
 	private ObjectMapper mapper;
 	
 	public CometMessageJSONSerializer() {
 		mapper = new ObjectMapper();
 		mapper.getSerializationConfig().setSerializationInclusion(Inclusion.NON_NULL);
+		//The streams belong to the callers
+		mapper.getJsonFactory().configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+		mapper.getJsonFactory().configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
 	}
 	
 	private boolean isPrefixPresent;
@@ -63,8 +80,8 @@ public class CometMessageJSONSerializer implements CometMessageSerializer {
 	public CometMessage deserialize(String serializedString) {
 		try {
 			
-			if(isPrefixPresent)
-				serializedString = serializedString.substring(commonPrefix.length() + 1);
+			if(isPrefixPresent && serializedString.startsWith(commonPrefix))
+				serializedString = serializedString.substring(commonPrefix.length());
 			
 			return mapper.readValue(serializedString, CometMessage.class);
 		} catch (Exception e) {
@@ -74,11 +91,75 @@ public class CometMessageJSONSerializer implements CometMessageSerializer {
 		}
 	}
 
+	/**
+	 * Writes the bare JSON of the message, the common prefix is only added by the String
+	 * form, see {@link CometMessageStreamSerializer}
+	 */
+	public void serialize(CometMessage message, OutputStream out) throws IOException {
+		try {
+			JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+			mapper.writeValue(generator, message);
+			//Closing returns the buffers for reuse, the stream itself is left open
+			generator.close();
+		} catch (JsonProcessingException e) {
+			throw new CometMessageSerializationException
+							("Cannot Serialize the provided come message, see root cause for more details ",
+															e, message);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.integration.comet.core.serializers.CometMessageStreamSerializer#deserialize(java.io.InputStream)
+	 */
+	public CometMessage deserialize(InputStream in) throws IOException {
+		try {
+			return mapper.readValue(in, CometMessage.class);
+		} catch (JsonProcessingException e) {
+			throw new CometMessageSerializationException
+			("Cannot deserialize the provided stream into a CometMessage", e, (String)null);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.integration.comet.core.serializers.CometMessageStreamSerializer#deserialize(byte[], int, int)
+	 */
+	public CometMessage deserialize(byte[] bytes, int offset, int length) {
+		if(isPrefixPresent && startsWith(bytes, offset, length, commonPrefixBytes)) {
+			offset += commonPrefixBytes.length;
+			length -= commonPrefixBytes.length;
+		}
+		try {
+			return mapper.readValue(bytes, offset, length, CometMessage.class);
+		} catch (Exception e) {
+			throw new CometMessageSerializationException
+			("Cannot deserialize the provided serialized bytes into a CometMessage", 
+					e, new String(bytes, offset, length, UTF_8));
+		}
+	}
+	
+	/**
+	 * The JSON bytes are always UTF-8
+	 */
+	public String getCharset() {
+		return "UTF-8";
+	}
+	
+	private static boolean startsWith(byte[] bytes, int offset, int length, byte[] prefix) {
+		if(length < prefix.length)
+			return false;
+		for(int i = 0; i < prefix.length; i++) {
+			if(bytes[offset + i] != prefix[i])
+				return false;
+		}
+		return true;
+	}
+
 	/**
 	 * The common prefix that would be found with the serialized string that is passed to the
 	 * deserialize method. if this is null or empty string, the message will be deserialized as is
 	 * if present and if the the serializedString passed contains the prefix, it would be
-	 * removed before deserializing the message
+	 * removed before deserializing the message. When set, the String form of a serialized 
+	 * message starts with the prefix, the bytes written to a stream never do
 	 * @return
 	 */
 	public String getCommonPrefix() {
@@ -89,6 +170,7 @@ public class CometMessageJSONSerializer implements CometMessageSerializer {
 		this.commonPrefix = commonPrefix;
 		if(!commonPrefix.endsWith("="))
 			this.commonPrefix = commonPrefix + "=";
+		this.commonPrefixBytes = this.commonPrefix.getBytes(UTF_8);
 		if(StringUtils.hasText(commonPrefix))
 			isPrefixPresent = true;
 		else
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.serializers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.annotate.JsonSerialize.Inclusion;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.springframework.integration.comet.core.CometMessage;
+
+/**
+ * The serializer that will serialize the {@link CometMessage} into the Smile binary JSON format, 
+ * more compact and cheaper to encode and decode than the textual JSON. Meant for the hops between 
+ * Java services, the peers need to use this serializer as well.
+ * 
+ * The String form of a message maps each byte to the char of the same value, i.e. the bytes
+ * decoded as ISO-8859-1, which survives the URL encoding of the request parameters in any
+ * charset. The byte oriented methods are used by the transports when the charset is ISO-8859-1
+ * and for the binary frames of the web socket transport. Over the streaming subscriptions the
+ * messages need the length prefixed framing as the binary messages are not self delimiting.
+ * 
+ * @author Amol Nayak
+ *
+ */
+public class CometMessageSmileSerializer implements CometMessageStreamSerializer {
+
+	private static final String CHARSET = "ISO-8859-1";
+	
+	private static final Charset ISO_8859_1 = Charset.forName(CHARSET);
+	
+	private final ObjectMapper mapper;
+	
+	public CometMessageSmileSerializer() {
+		SmileFactory factory = new SmileFactory();
+		//The streams belong to the callers
+		factory.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+		factory.configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
+		mapper = new ObjectMapper(factory);
+		mapper.getSerializationConfig().setSerializationInclusion(Inclusion.NON_NULL);
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.springframework.integration.comet.core.serializers.CometMessageSerializer#serialize(org.springframework.integration.comet.core.CometMessage)
+	 */
+	public String serialize(CometMessage message) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+		try {
+			serialize(message, out);
+		} catch (IOException e) {
+			//Should never reach here as the stream is in memory
+			throw new CometMessageSerializationException
+				("Cannot Serialize the provided come message, see root cause for more details ",
+												e, message);
+		}
+		return new String(out.toByteArray(), ISO_8859_1);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.integration.comet.core.serializers.CometMessageSerializer#deserialize(java.lang.String)
+	 */
+	public CometMessage deserialize(String serializedString) {
+		byte[] bytes = serializedString.getBytes(ISO_8859_1);
+		return deserialize(bytes, 0, bytes.length);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.integration.comet.core.serializers.CometMessageStreamSerializer#serialize(org.springframework.integration.comet.core.CometMessage, java.io.OutputStream)
+	 */
+	public void serialize(CometMessage message, OutputStream out) throws IOException {
+		try {
+			JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(out);
+			mapper.writeValue(generator, message);
+			//Closing returns the buffers for reuse, the stream itself is left open
+			generator.close();
+		} catch (JsonProcessingException e) {
+			throw new CometMessageSerializationException
+							("Cannot Serialize the provided come message, see root cause for more details ",
+															e, message);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.integration.comet.core.serializers.CometMessageStreamSerializer#deserialize(java.io.InputStream)
+	 */
+	public CometMessage deserialize(InputStream in) throws IOException {
+		try {
+			return mapper.readValue(in, CometMessage.class);
+		} catch (JsonProcessingException e) {
+			throw new CometMessageSerializationException
+			("Cannot deserialize the provided stream into a CometMessage", e, (String)null);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.integration.comet.core.serializers.CometMessageStreamSerializer#deserialize(byte[], int, int)
+	 */
+	public CometMessage deserialize(byte[] bytes, int offset, int length) {
+		try {
+			return mapper.readValue(bytes, offset, length, CometMessage.class);
+		} catch (Exception e) {
+			throw new CometMessageSerializationException
+			("Cannot deserialize the provided serialized bytes into a CometMessage", 
+					e, new String(bytes, offset, length, ISO_8859_1));
+		}
+	}
+
+	/**
+	 * The bytes are mapped one to one to the chars of the String form
+	 */
+	public String getCharset() {
+		return CHARSET;
+	}
+}
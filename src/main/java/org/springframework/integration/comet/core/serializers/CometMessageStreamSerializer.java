@@ -0,0 +1,75 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.serializers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.springframework.integration.comet.core.CometMessage;
+
+/**
+ * The serializer that in addition to Strings can write the {@link CometMessage} directly to
+ * bytes and read it back from bytes, letting the transports skip the intermediate Strings.
+ * The bytes are in the charset returned by {@link #getCharset()}, the transports fall back
+ * to the String based methods when a different charset is requested. 
+ * 
+ * The bytes are always the bare serialized message. A prefix the String form may carry, 
+ * such as the message= of {@link CometMessageJSONSerializer#setCommonPrefix(String)}, 
+ * is never written to the streams, the transports add the request parameter name 
+ * themselves when form encoding the bytes. The stream read by {@link #deserialize(InputStream)}
+ * should hold the bare message too.
+ *  
+ * @author Amol Nayak
+ *
+ */
+public interface CometMessageStreamSerializer extends CometMessageSerializer {
+
+	/**
+	 * Writes the serialized message to the given stream without any prefix, the stream 
+	 * is not closed. Should throw a {@link CometMessageSerializationException} if the 
+	 * serialization fails
+	 * 
+	 * @param message
+	 * @param out
+	 * @throws IOException if writing to the stream fails
+	 */
+	void serialize(CometMessage message, OutputStream out) throws IOException;
+	
+	/**
+	 * Reads a message from the given stream, the stream is not closed. Should throw a 
+	 * {@link CometMessageSerializationException} if the deserialization fails
+	 * 
+	 * @param in
+	 * @throws IOException if reading from the stream fails
+	 */
+	CometMessage deserialize(InputStream in) throws IOException;
+	
+	/**
+	 * Deserializes the message held in the given region of the array, should throw a 
+	 * {@link CometMessageSerializationException} if the deserialization fails
+	 * 
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 */
+	CometMessage deserialize(byte[] bytes, int offset, int length);
+	
+	/**
+	 * Gets the name of the charset of the serialized bytes 
+	 */
+	String getCharset();
+}
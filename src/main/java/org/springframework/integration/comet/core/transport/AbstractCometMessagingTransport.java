@@ -15,11 +15,30 @@
  */
 package org.springframework.integration.comet.core.transport;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -27,21 +46,53 @@ import org.springframework.beans.factory.BeanDefinitionStoreException;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.core.task.SyncTaskExecutor;
 import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.core.task.support.TaskExecutorAdapter;
 import org.springframework.integration.comet.core.CometMessage;
+import org.springframework.integration.comet.core.jfr.CometDeliveryEvent;
+import org.springframework.integration.comet.core.jfr.CometPublishEvent;
+import org.springframework.integration.comet.core.jfr.CometSerializationEvent;
+import org.springframework.integration.comet.core.metrics.MetricNames;
+import org.springframework.integration.comet.core.metrics.MetricsRegistry;
+import org.springframework.integration.comet.core.metrics.MetricsRegistry.Counter;
+import org.springframework.integration.comet.core.metrics.MetricsRegistry.Gauge;
+import org.springframework.integration.comet.core.metrics.MetricsRegistry.Histogram;
+import org.springframework.integration.comet.core.metrics.NoOpMetricsRegistry;
+import org.springframework.integration.comet.core.metrics.RateSampler;
+import org.springframework.integration.comet.core.serializers.CometMessageSerializationException;
 import org.springframework.integration.comet.core.serializers.CometMessageJSONSerializer;
 import org.springframework.integration.comet.core.serializers.CometMessageSerializer;
+import org.springframework.integration.comet.core.serializers.CometMessageStreamSerializer;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.util.StringUtils;
 
 /**
- * The abstract class for implementing all the common comet message transport functionality
+ * The abstract class for implementing all the common comet message transport functionality.
+ * The transports are exported as MBeans by a Spring annotation MBean exporter, e.g.
+ * &lt;context:mbean-export/&gt;, all the statistics read are lock free
  * @author Amol Nayak
  *
  */
+@ManagedResource(description = "Comet messaging transport")
 public abstract class AbstractCometMessagingTransport implements
 		CometMessagingTransport {
 
 	
 	protected static final String CONTENT_TYPE = "Content-Type";
+	
+	protected static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+	
+	protected static final String CONTENT_ENCODING = "Content-Encoding";
+	
+	protected static final String ACCEPT = "Accept";
+	
+	protected static final String ACCEPT_ENCODING = "Accept-Encoding";
+	
+	protected static final String GZIP = "gzip";
+	
+	protected static final String DEFLATE = "deflate";
 
 	protected static final String CONTENT_LENGTH = "Content-Length";
 
@@ -65,6 +116,124 @@ public abstract class AbstractCometMessagingTransport implements
 	 */
 	protected TaskExecutor executor = new SyncTaskExecutor();
 	
+	/**
+	 * The task executor that is used for sending the messages asynchronously, if not
+	 * set a pool of sendPoolSize daemon threads is created when the transport is initialized
+	 */
+	private TaskExecutor sendExecutor;
+	
+	/**
+	 * The executor service created by the transport when no sendExecutor is provided, 
+	 * shut down when the transport is destroyed
+	 */
+	private ExecutorService internalSendExecutor;
+	
+	/**
+	 * The number of threads in the send pool created when no sendExecutor is provided
+	 */
+	private int sendPoolSize = 16;
+	
+	/**
+	 * Whether the subscription readers and the asynchronous sends run on virtual threads,
+	 * one thread per task, requires a JDK supporting virtual threads
+	 */
+	private boolean useVirtualThreads;
+	
+	/**
+	 * The executor service created by the transport to run the subscription readers 
+	 * on virtual threads, shut down when the transport is destroyed
+	 */
+	private ExecutorService internalExecutor;
+	
+	/**
+	 * The maximum number of asynchronous sends that can be in flight at any given time 
+	 */
+	private int maxInFlightSends = 1000;
+	
+	/**
+	 * The time in milliseconds an asynchronous send waits for a slot in the in flight window,
+	 * a negative value waits indefinitely and 0 fails the send immediately if the window is full
+	 */
+	private long sendPermitTimeout = -1;
+	
+	/**
+	 * The permits representing the bounded in flight window of the asynchronous sends
+	 */
+	private Semaphore inFlightSends;
+	
+	/**
+	 * The maximum number of messages to the same endpoint coalesced into one request, 
+	 * a value of 1 disables batching
+	 */
+	private int publishBatchSize = 1;
+	
+	/**
+	 * The maximum time in milliseconds a message waits for its batch to fill up before 
+	 * the batch is sent 
+	 */
+	private long publishBatchDelay = 10;
+	
+	/**
+	 * Accumulates the messages per endpoint when batching is enabled
+	 */
+	private PublishBatcher publishBatcher;
+	
+	/**
+	 * Whether the serialized message is sent as is as the request body with its own content 
+	 * type, instead of URL encoded as the value of the message form parameter
+	 */
+	private boolean rawBody;
+	
+	/**
+	 * The content encoding, gzip or deflate, used to compress the messages published, 
+	 * no compression if not set
+	 */
+	private String compression;
+	
+	/**
+	 * The minimum size in bytes of a request body to be compressed, the smaller bodies 
+	 * don't gain enough to be worth compressing
+	 */
+	private int compressionThreshold = 1024;
+	
+	/**
+	 * The deflate level of the compression, the fastest by default
+	 */
+	private int compressionLevel = Deflater.BEST_SPEED;
+	
+	/**
+	 * The registry the metrics of the transport are recorded to, none by default
+	 */
+	private MetricsRegistry metricsRegistry = NoOpMetricsRegistry.INSTANCE;
+	
+	/**
+	 * The value of the transport tag of the meters, the simple class name by default
+	 */
+	private String metricsName = getClass().getSimpleName();
+	
+	private Histogram publishLatency = NoOpMetricsRegistry.INSTANCE.histogram(MetricNames.TRANSPORT_PUBLISH_LATENCY);
+	
+	private Counter publishFailures = NoOpMetricsRegistry.INSTANCE.counter(MetricNames.TRANSPORT_PUBLISH_FAILURES);
+	
+	private Histogram serializationTime = NoOpMetricsRegistry.INSTANCE.histogram(MetricNames.TRANSPORT_SERIALIZATION_TIME);
+	
+	private Counter bytesOut = NoOpMetricsRegistry.INSTANCE.counter(MetricNames.TRANSPORT_BYTES_OUT);
+	
+	private Counter bytesIn = NoOpMetricsRegistry.INSTANCE.counter(MetricNames.TRANSPORT_BYTES_IN);
+	
+	private Counter deserializationFailures = 
+			NoOpMetricsRegistry.INSTANCE.counter(MetricNames.TRANSPORT_DESERIALIZATION_FAILURES);
+	
+	/**
+	 * The bytes sent and received, kept regardless of the metrics registry for the MBean
+	 */
+	private final LongAdder sentBytes = new LongAdder();
+	
+	private final LongAdder receivedBytes = new LongAdder();
+	
+	private final RateSampler sentBytesRate = new RateSampler(sentBytes);
+	
+	private final RateSampler receivedBytesRate = new RateSampler(receivedBytes);
 	
 	/**
 	 * The map storing the mime type and the correponding serializer to be used for 
@@ -78,45 +247,500 @@ public abstract class AbstractCometMessagingTransport implements
 	 */
 	public static String DEFAULT_ENCODING = "UTF-8";
 	
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+	
 	/* (non-Javadoc)
 	 * @see org.springframework.integration.comet.core.transport.CometMessagingTransport#send(java.lang.String, java.lang.String, org.springframework.integration.comet.core.CometMessage)
 	 */
 	public void send(String endpointUrl, String contentType,
 			String charset,CometMessage message) {
 		
-		if(!StringUtils.hasText(charset))
-			charset = DEFAULT_ENCODING;
-			
-		CometMessageSerializer serializer;
-		if(serializerMap != null) {
-			serializer = serializerMap.get(contentType.trim());
-			if(serializer == null) {
-				serializer = defaultMessageSerializer;
+		charset = getBodyCharset(contentType, charset);
+		
+		if(publishBatcher != null) {
+			//Wait for the batch carrying this message to be sent
+			try {
+				publishBatcher.add(endpointUrl, contentType, charset, message).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CometMessagingTransportException(
+						"Interrupted while waiting for the batch to be sent", e, endpointUrl, message);
+			} catch (ExecutionException e) {
+				if(e.getCause() instanceof RuntimeException)
+					throw (RuntimeException)e.getCause();
+				throw new CometMessagingTransportException(e.getCause().getMessage(), 
+						e.getCause(), endpointUrl, message);
 			}
-		} else {
-			serializer = defaultMessageSerializer;
+			return;
 		}
 		
-		//Lets prepare the request parameters list
-		Map<String, String> requestHeaders = new HashMap<String, String>();
-		requestHeaders.put(CONTENT_TYPE, contentType);
+		byte[] requestMessage = encode(endpointUrl, contentType, charset, message);
+		CometPublishEvent event = new CometPublishEvent();
+		event.begin();
+		long start = System.nanoTime();
+		try {
+			doSend(endpointUrl, createRequestHeaders(contentType), requestMessage,charset,message);
+		} catch (RuntimeException e) {
+			publishFailures.increment();
+			commitPublishEvent(event, endpointUrl, requestMessage.length, 1, false);
+			throw e;
+		}
+		publishLatency.record(System.nanoTime() - start);
+		bytesOut.add(requestMessage.length);
+		sentBytes.add(requestMessage.length);
+		commitPublishEvent(event, endpointUrl, requestMessage.length, 1, true);
+	}	
+	
+	/**
+	 * Encodes the message to be sent to the given endpoint recording the time taken
+	 */
+	byte[] encode(String endpointUrl, String contentType, String charset, CometMessage message) {
+		CometSerializationEvent event = new CometSerializationEvent();
+		event.begin();
+		long start = System.nanoTime();
+		byte[] requestMessage = encodeMessage(contentType, charset, message);
+		serializationTime.record(System.nanoTime() - start);
+		if(event.shouldCommit()) {
+			event.setTopicOf(endpointUrl);
+			//The serializer the body was written with, in the raw and the form encoded modes alike
+			event.setSerializer(getSerializerForContentType(contentType.trim()).getClass().getName());
+			event.setPayloadSize(requestMessage.length);
+			event.commit();
+		}
+		return requestMessage;
+	}
+	
+	/**
+	 * Sends a batch of encoded messages recording the time taken
+	 */
+	void sendBatch(String endpointString, Map<String, String> requestHeaders,
+			List<byte[]> requestMessages, String contentEncoding, List<CometMessage> messages) {
+		long length = 0;
+		for(byte[] requestMessage:requestMessages)
+			length += requestMessage.length;
+		CometPublishEvent event = new CometPublishEvent();
+		event.begin();
+		long start = System.nanoTime();
+		try {
+			doSendBatch(endpointString, requestHeaders, requestMessages, contentEncoding, messages);
+		} catch (RuntimeException e) {
+			publishFailures.increment();
+			commitPublishEvent(event, endpointString, length, requestMessages.size(), false);
+			throw e;
+		}
+		publishLatency.record(System.nanoTime() - start);
+		bytesOut.add(length);
+		sentBytes.add(length);
+		commitPublishEvent(event, endpointString, length, requestMessages.size(), true);
+	}
+	
+	private static void commitPublishEvent(CometPublishEvent event, String endpointUrl, long payloadSize, 
+			int messageCount, boolean succeeded) {
+		if(!event.shouldCommit())
+			return;
+		event.setEndpoint(endpointUrl);
+		event.setTopicOf(endpointUrl);
+		event.setPayloadSize(payloadSize);
+		event.setMessageCount(messageCount);
+		event.setSucceeded(succeeded);
+		event.commit();
+	}
+	
+	/**
+	 * Commits the delivery event of a message received from the given endpoint, if
+	 * it is enabled. The subscriptions begin the event before deserializing the message
+	 * and commit it once the listener returns
+	 * 
+	 * @param event
+	 * @param endpointUrl
+	 * @param payloadSize
+	 */
+	protected static void commitDeliveryEvent(CometDeliveryEvent event, String endpointUrl, long payloadSize) {
+		if(!event.shouldCommit())
+			return;
+		event.setEndpoint(endpointUrl);
+		event.setTopicOf(endpointUrl);
+		event.setPayloadSize(payloadSize);
+		event.commit();
+	}
+	
+	/**
+	 * Serializes the message using the serializer for the given content type and 
+	 * encodes it as the value of the message request parameter, or as is if rawBody is set. 
+	 * A {@link CometMessageStreamSerializer} whose charset is the requested one writes
+	 * directly into the encoded bytes, other serializers go through a String 
+	 * 
+	 * @param contentType
+	 * @param charset
+	 * @param message
+	 * @return the ASCII bytes of the encoded message parameter, e.g. message=%7B%22payload%22...
+	 * 			or the serialized bytes in raw mode
+	 */
+	protected byte[] encodeMessage(String contentType, String charset, CometMessage message) {
+		if(rawBody)
+			return serializeMessage(contentType, charset, message);
+		CometMessageSerializer serializer = getSerializerForContentType(contentType.trim());
+		String prefix = messageParamName + "=";
+		if(serializer instanceof CometMessageStreamSerializer
+				&& isCharset(charset, ((CometMessageStreamSerializer)serializer).getCharset(), message)) {
+			FormEncodingOutputStream out = new FormEncodingOutputStream(256);
+			out.writeRaw(prefix.getBytes(US_ASCII));
+			try {
+				((CometMessageStreamSerializer)serializer).serialize(message, out);
+			} catch (IOException e) {
+				//Should never reach here as the stream is in memory
+				throw new CometMessagingTransportException(e.getMessage(), e, null, message);
+			}
+			return out.toByteArray();
+		}
 		String serializedMessage = serializer.serialize(message);
+		//The serializer may have prefixed the parameter name already
+		if(serializedMessage.startsWith(prefix))
+			serializedMessage = serializedMessage.substring(prefix.length());
 		//Encode the message
 		String encodedString = null;		
 		try {
-			String strToEncode = serializedMessage.substring(messageParamName.length());
-			encodedString = URLEncoder.encode(strToEncode, charset);			
+			encodedString = URLEncoder.encode(serializedMessage, charset);			
 		} catch (UnsupportedEncodingException e) {
-			//ignore				
-			e.printStackTrace();
+			throw new CometMessagingTransportException("Unsupported encoding " + charset, e, null, message);
 		}
-		String requestMessage = new StringBuilder(200)
-									.append(messageParamName)
-									.append("=")
+		return new StringBuilder(encodedString.length() + prefix.length())
+									.append(prefix)
 									.append(encodedString)
-									.toString();
-		doSend(endpointUrl, requestHeaders, requestMessage,charset,message);
-	}	
+									.toString()
+									.getBytes(US_ASCII);
+	}
+	
+	/**
+	 * Serializes the message to bytes using the serializer for the given content type, 
+	 * without any encoding or prefix. A {@link CometMessageStreamSerializer} always writes 
+	 * its own bytes, whatever the requested charset, as a binary format such as Smile is 
+	 * corrupted when decoded to a String and encoded again. Other serializers go through
+	 * a String encoded in the given charset
+	 * 
+	 * @param contentType
+	 * @param charset
+	 * @param message
+	 */
+	protected byte[] serializeMessage(String contentType, String charset, CometMessage message) {
+		CometMessageSerializer serializer = getSerializerForContentType(contentType.trim());
+		if(serializer instanceof CometMessageStreamSerializer) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+			try {
+				((CometMessageStreamSerializer)serializer).serialize(message, out);
+			} catch (IOException e) {
+				//Should never reach here as the stream is in memory
+				throw new CometMessagingTransportException(e.getMessage(), e, null, message);
+			}
+			return out.toByteArray();
+		}
+		String serializedMessage = serializer.serialize(message);
+		//The serializer may have prefixed the parameter name
+		String prefix = messageParamName + "=";
+		if(serializedMessage.startsWith(prefix))
+			serializedMessage = serializedMessage.substring(prefix.length());
+		try {
+			return serializedMessage.getBytes(charset);
+		} catch (UnsupportedEncodingException e) {
+			throw new CometMessagingTransportException("Unsupported encoding " + charset, e, null, message);
+		}
+	}
+	
+	/**
+	 * Whether a request body of the given size is to be compressed
+	 * @param length
+	 */
+	protected boolean isCompressible(int length) {
+		return compression != null && length >= compressionThreshold;
+	}
+	
+	/**
+	 * Compresses the bytes with the given content encoding, gzip or deflate, at the 
+	 * configured compression level
+	 * 
+	 * @param bytes
+	 * @param encoding
+	 * @param message the message being sent, used for reporting failures 
+	 */
+	protected byte[] compress(byte[] bytes, String encoding, CometMessage message) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+		Deflater deflater = null;
+		try {
+			DeflaterOutputStream stream;
+			if(GZIP.equals(encoding)) {
+				stream = new GZIPOutputStream(out, 512) {
+					{
+						def.setLevel(compressionLevel);
+					}
+				};
+			} else {
+				deflater = new Deflater(compressionLevel);
+				stream = new DeflaterOutputStream(out, deflater, 512);
+			}
+			stream.write(bytes);
+			stream.close();
+		} catch (IOException e) {
+			//Should never reach here as the stream is in memory
+			throw new CometMessagingTransportException(e.getMessage(), e, null, message);
+		} finally {
+			//Only the default deflater of the stream is released when it is closed
+			if(deflater != null)
+				deflater.end();
+		}
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Wraps the stream of a response body to decompress it as per its content encoding
+	 * 
+	 * @param contentEncoding the content encoding of the response, null if none
+	 * @param in
+	 * @throws IOException if the content encoding is not supported
+	 */
+	protected static InputStream decompress(String contentEncoding, InputStream in) throws IOException {
+		if(contentEncoding == null || "identity".equalsIgnoreCase(contentEncoding.trim()))
+			return in;
+		contentEncoding = contentEncoding.trim();
+		if(GZIP.equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding))
+			return new GZIPInputStream(in, 512);
+		if(DEFLATE.equalsIgnoreCase(contentEncoding))
+			return new InflaterInputStream(in);
+		throw new IOException("Unsupported content encoding \"" + contentEncoding + "\"");
+	}
+	
+	/**
+	 * Deserializes the message in the given region of a received frame, directly from
+	 * the bytes if the serializer is a {@link CometMessageStreamSerializer} expecting 
+	 * the charset of the frame, else from the String decoded with the charset. The
+	 * deserialization is recorded as a {@link CometSerializationEvent} without topic,
+	 * it is nested in the delivery event of the subscription
+	 * 
+	 * @param serializer
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @param charset
+	 */
+	protected CometMessage deserializeFrame(CometMessageSerializer serializer, 
+			byte[] bytes, int offset, int length, Charset charset) {
+		recordReceived(length);
+		CometSerializationEvent event = new CometSerializationEvent();
+		event.begin();
+		CometMessage message;
+		try {
+			if(serializer instanceof CometMessageStreamSerializer
+					&& isCharset(charset.name(), ((CometMessageStreamSerializer)serializer).getCharset(), null))
+				message = ((CometMessageStreamSerializer)serializer).deserialize(bytes, offset, length);
+			else
+				message = serializer.deserialize(new String(bytes, offset, length, charset));
+		} catch (CometMessageSerializationException e) {
+			recordDeserializationFailure();
+			throw e;
+		}
+		if(event.shouldCommit()) {
+			event.setSerializer(serializer.getClass().getName());
+			event.setDeserialization(true);
+			event.setPayloadSize(length);
+			event.commit();
+		}
+		return message;
+	}
+	
+	/**
+	 * Records the bytes of a message received
+	 * @param length
+	 */
+	protected void recordReceived(long length) {
+		bytesIn.add(length);
+		receivedBytes.add(length);
+	}
+	
+	/**
+	 * Records a message received that could not be deserialized
+	 */
+	protected void recordDeserializationFailure() {
+		deserializationFailures.increment();
+	}
+	
+	/**
+	 * Gets the charset of the request body sent with the given content type, that of the 
+	 * serializer writing a raw body if it is a {@link CometMessageStreamSerializer}, else 
+	 * the requested one or the default encoding if none
+	 */
+	private String getBodyCharset(String contentType, String charset) {
+		if(rawBody && contentType != null) {
+			CometMessageSerializer serializer = getSerializerForContentType(contentType.trim());
+			if(serializer instanceof CometMessageStreamSerializer)
+				return ((CometMessageStreamSerializer)serializer).getCharset();
+		}
+		return StringUtils.hasText(charset) ? charset : DEFAULT_ENCODING;
+	}
+	
+	private boolean isCharset(String charset, String expectedCharset, CometMessage message) {
+		if(charset.equalsIgnoreCase(expectedCharset))
+			return true;
+		try {
+			return Charset.forName(charset).equals(Charset.forName(expectedCharset));
+		} catch (IllegalArgumentException e) {
+			throw new CometMessagingTransportException("Unsupported encoding " + charset, e, null, message);
+		}
+	}
+	
+	/**
+	 * Creates the headers of the request sent with the given content type, the content
+	 * type of the request is the form content type unless rawBody is set
+	 * @param contentType
+	 */
+	protected Map<String, String> createRequestHeaders(String contentType) {
+		Map<String, String> requestHeaders = new HashMap<String, String>();
+		requestHeaders.put(CONTENT_TYPE, rawBody ? contentType : FORM_CONTENT_TYPE);
+		return requestHeaders;
+	}
+	
+	/**
+	 * Sends the message to the endpoint on the send executor without blocking the caller
+	 * on the network I/O. At most maxInFlightSends messages will be in flight at any time, 
+	 * the returned future completes exceptionally with a {@link CometMessagingTransportException}
+	 * if no slot is available in the window within the sendPermitTimeout.
+	 * 
+	 * @param endpointUrl
+	 * @param contentType
+	 * @param charset
+	 * @param message
+	 * @return the future that completes when the message is sent
+	 */
+	public CompletableFuture<Void> sendAsync(final String endpointUrl, final String contentType,
+			final String charset, final CometMessage message) {
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		if(inFlightSends == null) {
+			future.completeExceptionally(new CometMessagingTransportException(
+					"The transport is not initialized for asynchronous sends", endpointUrl, message));
+			return future;
+		}
+		try {
+			if(!acquireSendPermit()) {
+				future.completeExceptionally(new CometMessagingTransportException(
+						"Maximum of " + maxInFlightSends + " in flight sends reached", endpointUrl, message));
+				return future;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.completeExceptionally(new CometMessagingTransportException(
+					"Interrupted while waiting for an in flight send slot", e, endpointUrl, message));
+			return future;
+		}
+		if(publishBatcher != null) {
+			CompletableFuture<Void> batchFuture;
+			try {
+				batchFuture = publishBatcher.add(endpointUrl, contentType, 
+						getBodyCharset(contentType, charset), message);
+			} catch (RuntimeException e) {
+				inFlightSends.release();
+				future.completeExceptionally(e);
+				return future;
+			}
+			batchFuture.whenComplete(new BiConsumer<Void, Throwable>() {
+				public void accept(Void result, Throwable failure) {
+					inFlightSends.release();
+					if(failure == null)
+						future.complete(null);
+					else
+						future.completeExceptionally(failure);
+				}
+			});
+			return future;
+		}
+		try {
+			sendExecutor.execute(new Runnable() {
+				public void run() {
+					Throwable failure = null;
+					try {
+						send(endpointUrl, contentType, charset, message);
+					} catch (Throwable e) {
+						failure = e;
+					} finally {
+						//Release before completing so that dependent sends get the slot
+						inFlightSends.release();
+					}
+					if(failure == null)
+						future.complete(null);
+					else
+						future.completeExceptionally(failure);
+				}
+			});
+		} catch (TaskRejectedException e) {
+			inFlightSends.release();
+			future.completeExceptionally(new CometMessagingTransportException(
+					"The send executor rejected the message", e, endpointUrl, message));
+		}
+		return future;
+	}
+	
+	/**
+	 * Sends the message asynchronously to the endpoint with the default encoding type
+	 * 
+	 * @param endpointUrl
+	 * @param contentType
+	 * @param message
+	 * @return the future that completes when the message is sent
+	 */
+	public CompletableFuture<Void> sendAsync(String endpointUrl, String contentType,
+			CometMessage message) {
+		return sendAsync(endpointUrl, contentType, DEFAULT_ENCODING, message);
+	}
+	
+	/**
+	 * Acquires a slot in the in flight window honoring the sendPermitTimeout
+	 */
+	private boolean acquireSendPermit() throws InterruptedException {
+		if(sendPermitTimeout < 0) {
+			inFlightSends.acquire();
+			return true;
+		}
+		return inFlightSends.tryAcquire(sendPermitTimeout, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Gets the number of asynchronous sends currently in flight
+	 */
+	@ManagedAttribute(description = "The number of asynchronous sends in flight")
+	public int getInFlightSends() {
+		if(inFlightSends == null)
+			return 0;
+		return maxInFlightSends - inFlightSends.availablePermits();
+	}
+	
+	/**
+	 * Gets the total number of bytes of the messages sent
+	 */
+	@ManagedAttribute(description = "The bytes of the messages sent")
+	public long getBytesSent() {
+		return sentBytes.sum();
+	}
+	
+	/**
+	 * Gets the total number of bytes of the messages received
+	 */
+	@ManagedAttribute(description = "The bytes of the messages received")
+	public long getBytesReceived() {
+		return receivedBytes.sum();
+	}
+	
+	/**
+	 * Gets the bytes sent per second since the previous read of the rate
+	 */
+	@ManagedAttribute(description = "The bytes sent per second")
+	public double getBytesSentRate() {
+		return sentBytesRate.getRate();
+	}
+	
+	/**
+	 * Gets the bytes received per second since the previous read of the rate
+	 */
+	@ManagedAttribute(description = "The bytes received per second")
+	public double getBytesReceivedRate() {
+		return receivedBytesRate.getRate();
+	}
 	
 	/**
 	 * Send a message to the endpoint with the default encoding type
@@ -145,9 +769,70 @@ public abstract class AbstractCometMessagingTransport implements
 		if(executor == null)
 			throw new BeanDefinitionStoreException("A non null executor service is required");
 		
+		if(maxInFlightSends <= 0)
+			throw new BeanDefinitionStoreException("maxInFlightSends should be a positive value");
+		
+		if(useVirtualThreads) {
+			if(executor instanceof SyncTaskExecutor) {
+				//The default executor would block the subscriber forever
+				internalExecutor = createVirtualThreadExecutor("comet-subscriber-");
+				executor = new TaskExecutorAdapter(internalExecutor);
+			}
+			if(sendExecutor == null) {
+				internalSendExecutor = createVirtualThreadExecutor("comet-send-");
+				sendExecutor = new TaskExecutorAdapter(internalSendExecutor);
+			}
+		}
+		
+		if(sendExecutor == null) {
+			if(sendPoolSize <= 0)
+				throw new BeanDefinitionStoreException("sendPoolSize should be a positive value");
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("comet-send-");
+			threadFactory.setDaemon(true);
+			internalSendExecutor = Executors.newFixedThreadPool(sendPoolSize, threadFactory);
+			sendExecutor = new TaskExecutorAdapter(internalSendExecutor);
+		}
+		inFlightSends = new Semaphore(maxInFlightSends);
+		
+		if(publishBatchSize <= 0)
+			throw new BeanDefinitionStoreException("publishBatchSize should be a positive value");
+		if(publishBatchSize > 1) {
+			if(publishBatchDelay <= 0)
+				throw new BeanDefinitionStoreException("A positive publishBatchDelay is required when batching");
+			publishBatcher = new PublishBatcher(this, publishBatchSize, publishBatchDelay);
+		}
+		
+		if(compression != null) {
+			if(!GZIP.equals(compression) && !DEFLATE.equals(compression))
+				throw new BeanDefinitionStoreException("Unsupported compression \"" + compression 
+						+ "\", supported are " + GZIP + " and " + DEFLATE);
+			if(compressionThreshold < 0)
+				throw new BeanDefinitionStoreException("compressionThreshold should be a non negative value");
+			if(compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION)
+				throw new BeanDefinitionStoreException("compressionLevel should be between " 
+						+ Deflater.NO_COMPRESSION + " and " + Deflater.BEST_COMPRESSION);
+		}
+		
 		if(defaultMessageSerializer instanceof CometMessageJSONSerializer)
 			((CometMessageJSONSerializer)defaultMessageSerializer).setCommonPrefix(messageParamName);
 		
+		if(metricsRegistry == null)
+			throw new BeanDefinitionStoreException("A non null metrics registry is required");
+		if(!StringUtils.hasText(metricsName))
+			throw new BeanDefinitionStoreException("A non null non empty metrics name is required");
+		publishLatency = metricsRegistry.histogram(MetricNames.TRANSPORT_PUBLISH_LATENCY, "transport", metricsName);
+		publishFailures = metricsRegistry.counter(MetricNames.TRANSPORT_PUBLISH_FAILURES, "transport", metricsName);
+		serializationTime = metricsRegistry.histogram(MetricNames.TRANSPORT_SERIALIZATION_TIME, "transport", metricsName);
+		bytesOut = metricsRegistry.counter(MetricNames.TRANSPORT_BYTES_OUT, "transport", metricsName);
+		bytesIn = metricsRegistry.counter(MetricNames.TRANSPORT_BYTES_IN, "transport", metricsName);
+		deserializationFailures = metricsRegistry.counter(MetricNames.TRANSPORT_DESERIALIZATION_FAILURES, 
+				"transport", metricsName);
+		metricsRegistry.gauge(MetricNames.TRANSPORT_IN_FLIGHT_SENDS, new Gauge() {
+			public long getValue() {
+				return getInFlightSends();
+			}
+		}, "transport", metricsName);
+		
 		init();
 	}
 
@@ -159,6 +844,59 @@ public abstract class AbstractCometMessagingTransport implements
 		
 	}
 	
+	/**
+	 * Releases all the resources held by the transport, to be invoked when the transport
+	 * is no longer needed
+	 */
+	public final void destroyTransport() {
+		if(publishBatcher != null) {
+			//Sends the pending batches before the send executor is shut down
+			publishBatcher.shutdown();
+			publishBatcher = null;
+		}
+		if(internalSendExecutor != null) {
+			internalSendExecutor.shutdown();
+			internalSendExecutor = null;
+			sendExecutor = null;
+		}
+		destroy();
+		if(internalExecutor != null) {
+			internalExecutor.shutdownNow();
+			internalExecutor = null;
+			executor = new SyncTaskExecutor();
+		}
+	}
+	
+	/**
+	 * Creates an executor that runs every task on a new virtual thread named with
+	 * the given prefix. The virtual thread API is looked up reflectively as it is not
+	 * available on all the JDKs the transport runs on.
+	 * 
+	 * @param threadNamePrefix
+	 * @throws BeanDefinitionStoreException if the JDK does not support virtual threads
+	 */
+	protected static ExecutorService createVirtualThreadExecutor(String threadNamePrefix) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, threadNamePrefix, 1L);
+			ThreadFactory threadFactory = (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+			return (ExecutorService)Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+							.invoke(null, threadFactory);
+		} catch (Exception e) {
+			throw new BeanDefinitionStoreException("Virtual threads are not supported by the JDK, " +
+					"useVirtualThreads requires Java 21 or later", e);
+		}
+	}
+	
+	/**
+	 * Subclasses override this method to release the resources they hold
+	 * 
+	 */
+	protected void destroy() {
+		
+	}
+	
 	
 	public void setDefaultMessageSerializer(CometMessageSerializer defaultMessageSerializer) {
 		this.defaultMessageSerializer = defaultMessageSerializer;
@@ -234,6 +972,177 @@ public abstract class AbstractCometMessagingTransport implements
 	}
 
 
+	public TaskExecutor getSendExecutor() {
+		return sendExecutor;
+	}
+
+
+	public void setSendExecutor(TaskExecutor sendExecutor) {
+		this.sendExecutor = sendExecutor;
+	}
+
+
+	public boolean isUseVirtualThreads() {
+		return useVirtualThreads;
+	}
+
+
+	/**
+	 * Runs the subscription readers and the asynchronous sends on virtual threads.
+	 * The subscription readers use virtual threads unless an executor is explicitly set
+	 * and the sends unless a sendExecutor is set
+	 * 
+	 * @param useVirtualThreads
+	 */
+	public void setUseVirtualThreads(boolean useVirtualThreads) {
+		this.useVirtualThreads = useVirtualThreads;
+	}
+
+
+	public boolean isRawBody() {
+		return rawBody;
+	}
+
+
+	/**
+	 * Sends the serialized message as is as the request body or web socket frame, with
+	 * the content type of the serializer, instead of URL encoding it as the value of 
+	 * the message form parameter. Saves the encoding and decoding passes and the growth
+	 * of the encoded size, the endpoint should accept the raw bodies. The batched 
+	 * messages are sent one request each in this mode
+	 * 
+	 * @param rawBody
+	 */
+	public void setRawBody(boolean rawBody) {
+		this.rawBody = rawBody;
+	}
+
+
+	public MetricsRegistry getMetricsRegistry() {
+		return metricsRegistry;
+	}
+
+
+	/**
+	 * Sets the registry the metrics of the transport are recorded to, see {@link MetricNames}
+	 * 
+	 * @param metricsRegistry
+	 */
+	public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = metricsRegistry;
+	}
+
+
+	public String getMetricsName() {
+		return metricsName;
+	}
+
+
+	/**
+	 * Sets the value of the transport tag of the meters of this transport, to tell apart
+	 * the transports of the same class
+	 * 
+	 * @param metricsName
+	 */
+	public void setMetricsName(String metricsName) {
+		this.metricsName = metricsName;
+	}
+
+
+	public String getCompression() {
+		return compression;
+	}
+
+
+	/**
+	 * Sets the content encoding used to compress the published messages larger than 
+	 * the compressionThreshold, gzip or deflate. The transports supporting it also ask 
+	 * for the subscription streams to be compressed 
+	 * 
+	 * @param compression
+	 */
+	public void setCompression(String compression) {
+		this.compression = StringUtils.hasText(compression) ? compression.trim().toLowerCase() : null;
+	}
+
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+
+	/**
+	 * Sets the deflate level from 0 to 9, trading the speed of the compression for
+	 * the size of the compressed body, defaults to 1, the fastest
+	 * 
+	 * @param compressionLevel
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+
+	public int getSendPoolSize() {
+		return sendPoolSize;
+	}
+
+
+	public void setSendPoolSize(int sendPoolSize) {
+		this.sendPoolSize = sendPoolSize;
+	}
+
+
+	@ManagedAttribute(description = "The maximum number of asynchronous sends in flight")
+	public int getMaxInFlightSends() {
+		return maxInFlightSends;
+	}
+
+
+	public void setMaxInFlightSends(int maxInFlightSends) {
+		this.maxInFlightSends = maxInFlightSends;
+	}
+
+
+	public long getSendPermitTimeout() {
+		return sendPermitTimeout;
+	}
+
+
+	public void setSendPermitTimeout(long sendPermitTimeout) {
+		this.sendPermitTimeout = sendPermitTimeout;
+	}
+
+
+	public int getPublishBatchSize() {
+		return publishBatchSize;
+	}
+
+
+	public void setPublishBatchSize(int publishBatchSize) {
+		this.publishBatchSize = publishBatchSize;
+	}
+
+
+	public long getPublishBatchDelay() {
+		return publishBatchDelay;
+	}
+
+
+	public void setPublishBatchDelay(long publishBatchDelay) {
+		this.publishBatchDelay = publishBatchDelay;
+	}
+
+
 	public Map<String, CometMessageSerializer> getSerializerMap() {
 		return serializerMap;
 	}
@@ -250,14 +1159,48 @@ public abstract class AbstractCometMessagingTransport implements
 	 * 
 	 * @param endpointString: The endpoint to which the message is to be sent out
 	 * @param requestHeaders the request headers those are to be sent with the request
-	 * @param requestMessage: The request message to be posted
+	 * @param requestMessage: The ASCII bytes of the encoded request message to be posted
 	 * @param contentEncoding the encoding of the string to be used
 	 * @param The original {@link CometMessage} that is being transported
 	 * 
 	 */
 	protected abstract void doSend(String endpointString,
 					Map<String, String> requestHeaders,
-					String requestMessage,String contentEncoding,CometMessage message);
+					byte[] requestMessage,String contentEncoding,CometMessage message);
+	
+	/**
+	 * Sends a batch of encoded messages to the endpoint in one request. The default 
+	 * implementation posts them as repeated message parameters of a single form body,
+	 * subclasses may override for transports where this isn't suitable. The raw bodies
+	 * can't be combined and are sent one request each 
+	 * 
+	 * @param endpointString The endpoint to which the messages are to be sent out
+	 * @param requestHeaders the request headers those are to be sent with the request
+	 * @param requestMessages The encoded messages of the batch
+	 * @param contentEncoding the encoding of the string to be used
+	 * @param messages The original {@link CometMessage}s being transported
+	 */
+	protected void doSendBatch(String endpointString, Map<String, String> requestHeaders,
+					List<byte[]> requestMessages, String contentEncoding, List<CometMessage> messages) {
+		if(rawBody) {
+			for(int i = 0; i < requestMessages.size(); i++)
+				doSend(endpointString, requestHeaders, requestMessages.get(i), contentEncoding, messages.get(i));
+			return;
+		}
+		int length = requestMessages.size() - 1;
+		for(byte[] requestMessage:requestMessages)
+			length += requestMessage.length;
+		byte[] body = new byte[length];
+		int position = 0;
+		for(byte[] requestMessage:requestMessages) {
+			if(position > 0)
+				body[position++] = '&';
+			System.arraycopy(requestMessage, 0, body, position, requestMessage.length);
+			position += requestMessage.length;
+		}
+		doSend(endpointString, requestHeaders, body, contentEncoding, 
+				messages.size() == 1 ? messages.get(0) : null);
+	}
 	
 	/**
 	 * Gets the serializer based on the content type, if no serializer is found, the
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The base class for the incremental decoders that split the bytes of a streaming
+ * response into the frames carrying one serialized message each.
+ *
+ * The bytes are read directly into one reusable buffer which is compacted when full
+ * and only grown if a single frame does not fit in it, up to the maximum frame size.
+ * Frames are handed to the {@link FrameListener} as a region of this buffer and
+ * hence should be consumed before the listener returns.
+ *
+ * Whitespace and HTML comments between the frames, as written by Atmosphere for
+ * padding the response for browsers, are skipped unless disabled.
+ *
+ * A decoder instance holds the state of one stream and is not thread safe.
+ *
+ * @author Amol Nayak
+ *
+ */
+public abstract class AbstractFrameDecoder {
+
+	private static final byte[] COMMENT_START = {'<','!','-','-'};
+
+	private static final byte[] COMMENT_END = {'-','-','>'};
+
+	/**
+	 * The callback invoked for every complete frame decoded
+	 */
+	public interface FrameListener {
+
+		/**
+		 * Invoked with the region of the decoder's buffer holding the frame,
+		 * the contents of the region are valid only until the method returns
+		 *
+		 * @param buffer
+		 * @param offset
+		 * @param length
+		 */
+		void onFrame(byte[] buffer,int offset,int length);
+	}
+
+	private byte[] buffer;
+
+	/**
+	 * The index of the first byte not yet decoded
+	 */
+	private int start;
+
+	/**
+	 * The index after the last byte read in the buffer
+	 */
+	private int end;
+
+	private final int maxFrameSize;
+
+	private boolean skipPadding = true;
+
+	/**
+	 * Whether the decoder is in the middle of a partially received frame
+	 */
+	private boolean inFrame;
+
+	/**
+	 * @param initialCapacity the initial size of the buffer
+	 * @param maxFrameSize the maximum size of a frame, the stream is considered corrupt
+	 * 			if a frame exceeds this size
+	 */
+	protected AbstractFrameDecoder(int initialCapacity,int maxFrameSize) {
+		if(initialCapacity <= 0 || maxFrameSize < initialCapacity)
+			throw new IllegalArgumentException("Expected a positive initial capacity not more than the max frame size");
+		this.buffer = new byte[initialCapacity];
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	/**
+	 * Reads the bytes available from the given stream, blocking if none are, and
+	 * notifies the listener of all the frames that are complete.
+	 *
+	 * @param in
+	 * @param listener
+	 * @return the number of bytes read or -1 if the end of the stream is reached
+	 * @throws IOException
+	 */
+	public int readFrom(InputStream in,FrameListener listener) throws IOException {
+		ensureCapacity();
+		int read = in.read(buffer, end, buffer.length - end);
+		if(read > 0) {
+			end += read;
+			decodeFrames(listener);
+		}
+		return read;
+	}
+
+	/**
+	 * Decodes the given bytes, notifying the listener of all the frames that are
+	 * complete, the bytes of an incomplete frame are retained till the rest of the
+	 * frame is received
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @param listener
+	 */
+	public void decode(byte[] bytes,int offset,int length,FrameListener listener) {
+		while(length > 0) {
+			ensureCapacity();
+			int count = Math.min(length, buffer.length - end);
+			System.arraycopy(bytes, offset, buffer, end, count);
+			end += count;
+			offset += count;
+			length -= count;
+			decodeFrames(listener);
+		}
+	}
+
+	/**
+	 * Gets the number of bytes received but not yet decoded into a frame
+	 */
+	public int getPendingBytes() {
+		return end - start;
+	}
+
+	/**
+	 * Discards the pending bytes and the state of the partially decoded frame,
+	 * to be used when the decoder is reused for a new stream
+	 */
+	public void reset() {
+		start = 0;
+		end = 0;
+		inFrame = false;
+		resetFrame();
+	}
+
+	private void decodeFrames(FrameListener listener) {
+		while(start < end) {
+			if(!inFrame && skipPadding) {
+				int skipped = skipPadding(start, end);
+				if(skipped < 0)
+					//Need more bytes to know the extent of the padding
+					break;
+				start += skipped;
+				if(start == end)
+					break;
+			}
+			int consumed = decodeFrame(buffer, start, end, listener);
+			if(consumed == 0) {
+				inFrame = true;
+				break;
+			}
+			start += consumed;
+			inFrame = false;
+		}
+		if(start == end) {
+			start = 0;
+			end = 0;
+		}
+	}
+
+	/**
+	 * Gets the number of padding bytes at the beginning of the given region,
+	 * -1 if the region ends in an incomplete comment
+	 */
+	private int skipPadding(int from,int to) {
+		int index = from;
+		while(index < to) {
+			byte b = buffer[index];
+			if(b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+				index++;
+			} else if(b == '<') {
+				int matched = matchLength(COMMENT_START, index, to);
+				if(matched < COMMENT_START.length) {
+					if(index + matched == to)
+						return -1;
+					//Not a comment
+					break;
+				}
+				int commentEnd = indexOf(COMMENT_END, index + COMMENT_START.length, to);
+				if(commentEnd < 0)
+					return -1;
+				index = commentEnd + COMMENT_END.length;
+			} else {
+				break;
+			}
+		}
+		return index - from;
+	}
+
+	private int matchLength(byte[] pattern,int from,int to) {
+		int matched = 0;
+		while(matched < pattern.length && from + matched < to
+				&& buffer[from + matched] == pattern[matched])
+			matched++;
+		return matched;
+	}
+
+	/**
+	 * Finds the index of the given pattern in the region of the buffer, -1 if not found
+	 */
+	protected int indexOf(byte[] pattern,int from,int to) {
+		int last = to - pattern.length;
+		outer:
+		for(int i = from; i <= last; i++) {
+			for(int j = 0; j < pattern.length; j++) {
+				if(buffer[i + j] != pattern[j])
+					continue outer;
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Makes room for reading more bytes, compacting the buffer if the decoded bytes
+	 * can be discarded else growing it
+	 */
+	private void ensureCapacity() {
+		if(end < buffer.length)
+			return;
+		if(start > 0) {
+			System.arraycopy(buffer, start, buffer, 0, end - start);
+			end -= start;
+			start = 0;
+			return;
+		}
+		if(buffer.length >= maxFrameSize)
+			throw new CometMessagingTransportException("Frame exceeds the maximum frame size of "
+					+ maxFrameSize + " bytes", null, null);
+		byte[] newBuffer = new byte[(int)Math.min((long)buffer.length * 2, maxFrameSize)];
+		System.arraycopy(buffer, 0, newBuffer, 0, end);
+		buffer = newBuffer;
+	}
+
+	/**
+	 * Implementing classes look for a complete frame at the beginning of the given region,
+	 * notify the listener if found and return the number of bytes the frame occupied
+	 * including any delimiters or headers. Returns 0 if the frame is incomplete, in which
+	 * case the method will be invoked again with the same start once more bytes are read.
+	 * Implementations may keep state relative to the start of the frame to avoid
+	 * scanning the same bytes again.
+	 *
+	 * @param buffer
+	 * @param start
+	 * @param end
+	 * @param listener
+	 * @return the number of bytes consumed
+	 */
+	protected abstract int decodeFrame(byte[] buffer,int start,int end,FrameListener listener);
+
+	/**
+	 * Implementing classes clear the state kept for a partially decoded frame
+	 */
+	protected abstract void resetFrame();
+
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	public boolean isSkipPadding() {
+		return skipPadding;
+	}
+
+	/**
+	 * Whether the whitespace and HTML comments between the frames are to be skipped
+	 * @param skipPadding
+	 */
+	public void setSkipPadding(boolean skipPadding) {
+		this.skipPadding = skipPadding;
+	}
+}
@@ -20,6 +20,7 @@ import java.net.URLDecoder;
 
 import org.springframework.integration.comet.core.CometMessage;
 import org.springframework.integration.comet.core.CometMessagingException;
+import org.springframework.integration.comet.core.serializers.CometMessageSerializationException;
 import org.springframework.integration.comet.core.serializers.CometMessageSerializer;
 import org.springframework.util.StringUtils;
 
@@ -60,19 +61,66 @@ public abstract class AbstractWebSocketTransport extends
 	}
 
 	/**
-	 * The method to be used by the subclasses to deserialize the message received
+	 * The method to be used by the subclasses to deserialize the message received, 
+	 * the message is URL decoded first unless rawBody is set
 	 * @param serializedMessage
 	 * @return
 	 */
 	protected CometMessage deserializeMessage(String serializedMessage) {
-		String decodedMessage = null;
+		return deserializeMessage(serializedMessage, utf8Length(serializedMessage));
+	}
+	
+	/**
+	 * Deserializes the message received as with {@link #deserializeMessage(String)}, 
+	 * recording the given length of the frame read as the bytes received
+	 * @param serializedMessage
+	 * @param length
+	 * @return
+	 */
+	protected CometMessage deserializeMessage(String serializedMessage, long length) {
+		recordReceived(length);
 		try {
-			decodedMessage = URLDecoder.decode(serializedMessage, "UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			//Should never reach here
-			logger.error("Unexpected exception caught while decoding URL", e);
+			if(isRawBody())
+				return getDefaultMessageSerializer().deserialize(serializedMessage);
+			String decodedMessage = null;
+			try {
+				decodedMessage = URLDecoder.decode(serializedMessage, "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				//Should never reach here
+				logger.error("Unexpected exception caught while decoding URL", e);
+			}
+			CometMessageSerializer serializer = getDefaultMessageSerializer();
+			return serializer.deserialize(decodedMessage);
+		} catch (CometMessageSerializationException e) {
+			recordDeserializationFailure();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Gives the number of bytes of the UTF-8 encoding of the given text, the encoding
+	 * of the text frames, without encoding it
+	 * @param text
+	 * @return
+	 */
+	protected static int utf8Length(CharSequence text) {
+		int length = text.length();
+		int bytes = length;
+		for(int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if(c >= 0x800) {
+				if(Character.isHighSurrogate(c) && i + 1 < length 
+						&& Character.isLowSurrogate(text.charAt(i + 1))) {
+					//The pair takes four bytes
+					bytes += 2;
+					i++;
+				} else {
+					bytes += 2;
+				}
+			} else if(c >= 0x80) {
+				bytes++;
+			}
 		}
-		CometMessageSerializer serializer = getDefaultMessageSerializer();
-		return serializer.deserialize(decodedMessage);
+		return bytes;
 	}
 }
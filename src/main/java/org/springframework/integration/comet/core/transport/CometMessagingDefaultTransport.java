@@ -15,13 +15,23 @@
  */
 package org.springframework.integration.comet.core.transport;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
@@ -29,15 +39,32 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.util.EntityUtils;
 
+import org.springframework.beans.factory.BeanDefinitionStoreException;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.integration.comet.core.CometHeaderValueContainer;
 import org.springframework.integration.comet.core.CometMessage;
 import org.springframework.integration.comet.core.CometMessageListener;
 import org.springframework.integration.comet.core.CometSubscription;
+import org.springframework.integration.comet.core.jfr.CometDeliveryEvent;
+import org.springframework.integration.comet.core.metrics.MetricNames;
+import org.springframework.integration.comet.core.metrics.MetricsRegistry.Gauge;
 import org.springframework.integration.comet.core.serializers.CometMessageSerializationException;
 import org.springframework.integration.comet.core.serializers.CometMessageSerializer;
+import org.springframework.integration.comet.core.transport.AbstractFrameDecoder.FrameListener;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedOperationParameter;
+import org.springframework.jmx.export.annotation.ManagedOperationParameters;
 import org.springframework.util.StringUtils;
 
 /**
@@ -50,44 +77,282 @@ import org.springframework.util.StringUtils;
 public class CometMessagingDefaultTransport extends
 		AbstractCometMessagingTransport {
 
-	private HttpClient client;
+	/**
+	 * The client built from the connection pool properties when the transport is 
+	 * initialized, or with the default ones on first use if it is used without being 
+	 * initialized
+	 */
+	private volatile HttpClient client;
+	
+	/**
+	 * The subscriptions currently open keyed by their identifiers
+	 */
+	private final ConcurrentMap<String, HttpStreamingSubscription> subscriptions = 
+							new ConcurrentHashMap<String, HttpStreamingSubscription>();
+	
+	private ThreadSafeClientConnManager connManager;
+	
+	private IdleConnectionReaper idleConnectionReaper;
+	
+	/**
+	 * The maximum number of pooled connections to a single route (host and port)
+	 */
+	private int maxConnectionsPerRoute = 1000;
+	
+	/**
+	 * The maximum number of pooled connections across all routes
+	 */
+	private int maxTotalConnections = 1000;
+	
+	/**
+	 * The maximum time in milliseconds a persistent connection will be kept alive
+	 * irrespective of its usage, a value &lt;= 0 means the connections live indefinitely
+	 */
+	private long connectionTimeToLive = -1;
+	
+	/**
+	 * The time in milliseconds after which a connection idle in the pool will be closed 
+	 * by the idle connection reaper, a value &lt;= 0 disables the eviction of idle connections
+	 */
+	private long idleConnectionTimeout = 60000;
+	
+	/**
+	 * The interval in milliseconds at which the idle connection reaper checks the pool
+	 * for expired and idle connections
+	 */
+	private long idleConnectionCheckInterval = 5000;
+	
+	/**
+	 * Whether a pooled connection is checked for being stale before it is reused
+	 * for sending a request
+	 */
+	private boolean staleConnectionCheckEnabled = true;
+	
+	/**
+	 * The timeout in milliseconds for establishing the connection, 0 is infinite  
+	 */
+	private int connectionTimeout = 10000;
+	
+	/**
+	 * The socket read timeout in milliseconds used while publishing messages, 0 is infinite
+	 */
+	private int socketTimeout = 30000;
+	
+	/**
+	 * The socket read timeout in milliseconds used for the long lived subscription
+	 * connections, defaults to 0 (infinite) as the endpoint may not publish for long 
+	 */
+	private int subscriptionSocketTimeout = 0;
+	
+	/**
+	 * Whether a subscription whose stream ends or breaks is reconnected
+	 */
+	private boolean autoReconnect = true;
+	
+	/**
+	 * The delay in milliseconds before the first attempt to reconnect
+	 */
+	private long initialReconnectDelay = 1000;
+	
+	/**
+	 * The maximum delay in milliseconds between two attempts to reconnect
+	 */
+	private long maxReconnectDelay = 30000;
+	
+	/**
+	 * The factor by which the delay grows after every failed attempt to reconnect
+	 */
+	private double reconnectBackoffMultiplier = 2.0;
+	
+	/**
+	 * The number of consecutive failed attempts after which a subscription is given up,
+	 * a negative value attempts indefinitely
+	 */
+	private int maxReconnectAttempts = -1;
+	
+	/**
+	 * The maximum number of subscriptions that attempt to reconnect at the same time,
+	 * so that all the subscriptions to an endpoint that restarted do not reconnect at once
+	 */
+	private int maxConcurrentReconnects = 10;
+	
+	private volatile Semaphore reconnectPermits = new Semaphore(maxConcurrentReconnects);
+	
+	private final AtomicLong reconnects = new AtomicLong();
+	
+	/**
+	 * The header of the received messages holding the token to resume from, e.g. the 
+	 * sequence of the message, null disables resuming 
+	 */
+	private String resumeHeaderName = "cometSequence";
+	
+	/**
+	 * The request parameter carrying the resume token of the last message received
+	 * when the subscription is reconnected
+	 */
+	private String resumeParamName = "since";
+	
+	/**
+	 * How the messages streamed over a subscription are separated from each other
+	 */
+	private FramingMode framingMode = FramingMode.JSON;
+	
+	/**
+	 * The delimiter following each message when the framing mode is DELIMITER
+	 */
+	private String frameDelimiter = "\n";
+	
+	/**
+	 * The character separating the length from the message when the framing mode
+	 * is LENGTH_PREFIX
+	 */
+	private char lengthPrefixSeparator = '|';
+	
+	/**
+	 * The initial size of the buffer each subscription reads the stream into
+	 */
+	private int receiveBufferSize = 8192;
+	
+	/**
+	 * The maximum size in bytes of a single message received over a subscription
+	 */
+	private int maxFrameSize = 1024 * 1024;
+	
+	/**
+	 * Whether the whitespace and comments the endpoint pads the stream with are skipped
+	 */
+	private boolean skipFramePadding = true;
 
 	/**
-	 * 
+	 * The overridden init method creating the pooled connection manager and the 
+	 * http client from the configured connection pool properties
+	 */
+	@Override
+	protected void init() throws Exception {
+		if(maxConnectionsPerRoute <= 0)
+			throw new BeanDefinitionStoreException("maxConnectionsPerRoute should be a positive value");
+		if(maxTotalConnections < maxConnectionsPerRoute)
+			throw new BeanDefinitionStoreException("maxTotalConnections cannot be less than maxConnectionsPerRoute");
+		if(framingMode == null)
+			throw new BeanDefinitionStoreException("A non null framing mode is required");
+		if(framingMode == FramingMode.DELIMITER && !StringUtils.hasLength(frameDelimiter))
+			throw new BeanDefinitionStoreException("A non empty frameDelimiter is required for DELIMITER framing");
+		if(receiveBufferSize <= 0 || maxFrameSize < receiveBufferSize)
+			throw new BeanDefinitionStoreException("receiveBufferSize should be positive and not more than maxFrameSize");
+		if(autoReconnect) {
+			if(initialReconnectDelay <= 0 || maxReconnectDelay < initialReconnectDelay)
+				throw new BeanDefinitionStoreException("initialReconnectDelay should be positive and " +
+						"not more than maxReconnectDelay");
+			if(reconnectBackoffMultiplier < 1)
+				throw new BeanDefinitionStoreException("reconnectBackoffMultiplier cannot be less than 1");
+			if(maxConcurrentReconnects <= 0)
+				throw new BeanDefinitionStoreException("maxConcurrentReconnects should be a positive value");
+		}
+		reconnectPermits = new Semaphore(maxConcurrentReconnects);
+		if(idleConnectionTimeout > 0 && idleConnectionCheckInterval <= 0)
+			throw new BeanDefinitionStoreException("A positive idleConnectionCheckInterval is required " +
+					"when idle connections are to be evicted");
+		
+		createClient();
+		
+		idleConnectionReaper = new IdleConnectionReaper(connManager, 
+						idleConnectionTimeout, idleConnectionCheckInterval);
+		idleConnectionReaper.start();
+		
+		getMetricsRegistry().gauge(MetricNames.TRANSPORT_ACTIVE_SUBSCRIPTIONS, new Gauge() {
+			public long getValue() {
+				return getActiveSubscriptionCount();
+			}
+		}, "transport", getMetricsName());
+		getMetricsRegistry().gauge(MetricNames.TRANSPORT_RECONNECTS, new Gauge() {
+			public long getValue() {
+				return getReconnectCount();
+			}
+		}, "transport", getMetricsName());
+	}
+	
+	/**
+	 * Creates the pooled connection manager and the client from the connection pool 
+	 * properties, replacing those built on a use before the transport was initialized. 
+	 * The streams open over the replaced connections break and are reconnected
+	 */
+	private synchronized void createClient() {
+		ThreadSafeClientConnManager previous = connManager;
+		connManager = new ThreadSafeClientConnManager(SchemeRegistryFactory.createDefault(), 
+										connectionTimeToLive, TimeUnit.MILLISECONDS);
+		connManager.setMaxTotal(maxTotalConnections);
+		connManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+		
+		HttpParams params = new BasicHttpParams();
+		HttpConnectionParams.setConnectionTimeout(params, connectionTimeout);
+		HttpConnectionParams.setSoTimeout(params, socketTimeout);
+		HttpConnectionParams.setStaleCheckingEnabled(params, staleConnectionCheckEnabled);
+		client = new DefaultHttpClient(connManager, params);
+		if(previous != null)
+			previous.shutdown();
+	}
+	
+	/**
+	 * Creates the decoder for the stream of a new subscription as per the configured
+	 * framing mode, subclasses may override this to use a custom decoder
+	 */
+	protected AbstractFrameDecoder createFrameDecoder() {
+		AbstractFrameDecoder decoder;
+		switch (framingMode) {
+			case DELIMITER:
+				decoder = new DelimiterFrameDecoder(frameDelimiter.getBytes(Charset.forName(DEFAULT_ENCODING)), 
+									receiveBufferSize, maxFrameSize);
+				break;
+			case LENGTH_PREFIX:
+				decoder = new LengthPrefixFrameDecoder((byte)lengthPrefixSeparator, receiveBufferSize, maxFrameSize);
+				break;
+			default:
+				decoder = new JsonFrameDecoder(receiveBufferSize, maxFrameSize);
+		}
+		decoder.setSkipPadding(skipFramePadding);
+		return decoder;
+	}
+	
+	/**
+	 * Closes the open subscriptions, stops the idle connection reaper and closes all
+	 * the pooled connections
 	 */
-	public CometMessagingDefaultTransport() {
-//		MultiThreadedHttpConnectionManager mgr = new MultiThreadedHttpConnectionManager();
-//		// hardcoding to large values
-//		mgr.getParams().setDefaultMaxConnectionsPerHost(1000);
-//		mgr.getParams().setMaxTotalConnections(1000);
-		//TODO: See how to set the thread pool details as we did above for v3.1
-		ClientConnectionManager connManager = new ThreadSafeClientConnManager(); 
-		client = new DefaultHttpClient(connManager);
+	@Override
+	protected void destroy() {
+		for(HttpStreamingSubscription subscription:subscriptions.values())
+			subscription.unsubscribe();
+		if(idleConnectionReaper != null)
+			idleConnectionReaper.shutdown();
+		if(connManager != null)
+			connManager.shutdown();
 	}
 
 	@Override
 	protected void doSend(String endpointString,
-			Map<String, String> requestHeaders, String requestMessage,
+			Map<String, String> requestHeaders, byte[] requestMessage,
 			String charset,CometMessage cometMessage) {
 
 		HttpPost method = new HttpPost(endpointString);
-		for (Entry<String, String> entry : requestHeaders.entrySet()) {			
-			method.addHeader(entry.getKey(), entry.getValue());
+		for (Entry<String, String> entry : requestHeaders.entrySet()) {
+			//The content type is sent by the entity along with the charset
+			if(!CONTENT_TYPE.equals(entry.getKey()))
+				method.addHeader(entry.getKey(), entry.getValue());
+		}
+		if(isCompressible(requestMessage.length)) {
+			requestMessage = compress(requestMessage, getCompression(), cometMessage);
+			method.addHeader(CONTENT_ENCODING, getCompression());
 		}
 		try {
-			StringEntity entity = new StringEntity(requestMessage, 
-											requestHeaders.get(CONTENT_TYPE), charset);
+			ByteArrayEntity entity = new ByteArrayEntity(requestMessage);
+			entity.setContentType(requestHeaders.get(CONTENT_TYPE) + HTTP.CHARSET_PARAM + charset);
 			method.setEntity(entity);
-			HttpResponse response = client.execute(method);
-			InputStream in = response.getEntity().getContent();
-			//Read of the content
-			byte[] bytes = new byte[1024];
-			@SuppressWarnings("unused")
-			int read = 0;
-			while((read = in.read(bytes)) != -1);
-			in.close();	
+			HttpResponse response = getClient().execute(method);
+			//Consume the content so that the connection is released back to the pool
+			EntityUtils.consume(response.getEntity());
 		
 		} catch (IOException e) {
+			//Release the connection back to the pool
+			method.abort();
 			throw new CometMessagingTransportException(
 					"An IO Exception has occurred while posting the request to the endpoint, "
 							+ "see root exception for more details", e,
@@ -95,85 +360,454 @@ public class CometMessagingDefaultTransport extends
 		}
 	}
 
+	/**
+	 * Gets the client created when the transport is initialized, building one with 
+	 * the connection pool properties set so far if the transport is used without 
+	 * being initialized
+	 */
+	private HttpClient getClient() {
+		HttpClient client = this.client;
+		if(client == null) {
+			synchronized (this) {
+				if(this.client == null)
+					createClient();
+				client = this.client;
+			}
+		}
+		return client;
+	}
+
 	public CometSubscription subscribe(final String endpointUrl, String expectedContentType,
 			String expectedEncoding, final CometMessageListener<CometMessage> listener) {
-		final String stringEncoding;
-		if (StringUtils.hasText(expectedEncoding))
-			stringEncoding = expectedEncoding;
-		else
-			stringEncoding = DEFAULT_ENCODING;
-
-		final HttpGet get = new HttpGet(endpointUrl);
-		
-		// TODO: The error handing, retrying to connect to the broken
-		// connections etc all
-		// needs to be incorporated, use common client's retry connect mechanism
-		// TODO: If the endpoint sends comments like say atmosphere sends for
-		// webkit browsers
-		// that needs to be identified
-		final InputStream in;
-		final HttpResponse response;		
+		final Charset charset;
 		try {
-			response = client.execute(get);			
-			in = response.getEntity().getContent();		
-		} catch (IOException e) {
-			throw new CometMessagingTransportException(
-					"An HttpException has occurred while getting the response to the endpoint, "
-					+ "\"" + endpointUrl + "\" see root exception for more details", e,
-					endpointUrl, null);
+			if (StringUtils.hasText(expectedEncoding))
+				charset = Charset.forName(expectedEncoding);
+			else
+				charset = Charset.forName(DEFAULT_ENCODING);
+		} catch (IllegalArgumentException e) {
+			throw new CometMessagingTransportException("Unsupported encoding " + expectedEncoding, 
+					e, endpointUrl, null);
 		}
 
-		executor.execute(new Runnable() {
-			/**
-			 * Connect to the endpoint and receive events
-			 */
-			public void run() {
-				try {
-					CometMessageSerializer serializer;
-					Header header = response.getFirstHeader(CONTENT_TYPE);
-					String contentType = null;
-					if (header != null)
-						contentType = header.getValue();
-					
-					serializer = getSerializerForContentType(contentType);
-								
-					outer:
-					while (true) {	
-
-						ByteArrayOutputStream baos = new ByteArrayOutputStream();
-						boolean allRead = false;
-						byte[] bytes = new byte[1024];
-						do {							
-							int read = in.read(bytes);
-							if(read == -1) {
-								in.close();
-								break outer;
-							}
-							baos.write(bytes,0,read);
-							//lets see if we have more
-							int available = in.available();
-							if(available == 0)
-								allRead = true;
-							else
-								bytes = new byte[available];	// read all								
-						}while(!allRead);
-												
-						String chunk = new String(baos.toByteArray(),stringEncoding);
+		HttpStreamingSubscription subscription = new HttpStreamingSubscription(endpointUrl, charset, 
+				StringUtils.hasText(expectedContentType) ? expectedContentType.trim() : null, listener);
+		try {
+			subscription.connect();
+		} catch (CometMessagingTransportException e) {
+			subscription.close();
+			throw e;
+		}
+		subscriptions.put(subscription.getSubscriptionIdentifier(), subscription);
+		try {
+			executor.execute(subscription);
+		} catch (TaskRejectedException e) {
+			subscription.unsubscribe();
+			throw new CometMessagingTransportException("The executor rejected the subscription reader", 
+					e, endpointUrl, null);
+		}
+		return subscription;
+	}
+	
+	/**
+	 * Gets the number of times the subscriptions were reconnected 
+	 */
+	@ManagedAttribute(description = "The number of times the subscriptions were reconnected")
+	public long getReconnectCount() {
+		return reconnects.get();
+	}
+	
+	/**
+	 * Gets the number of subscriptions currently open
+	 */
+	@ManagedAttribute(description = "The number of subscriptions open")
+	public int getActiveSubscriptionCount() {
+		return subscriptions.size();
+	}
+	
+	/**
+	 * Gets the identifiers of the subscriptions currently open
+	 */
+	@ManagedAttribute(description = "The identifiers of the subscriptions open")
+	public String[] getSubscriptionIdentifiers() {
+		return subscriptions.keySet().toArray(new String[0]);
+	}
+	
+	/**
+	 * Force closes the open subscription with the given identifier, it is not reconnected
+	 * 
+	 * @param subscriptionIdentifier
+	 * @return true if the subscription was open before this call
+	 */
+	@ManagedOperation(description = "Closes the subscription with the given identifier")
+	@ManagedOperationParameters(
+			@ManagedOperationParameter(name = "subscriptionIdentifier", description = "The subscription identifier"))
+	public boolean closeSubscription(String subscriptionIdentifier) {
+		HttpStreamingSubscription subscription = subscriptions.get(subscriptionIdentifier);
+		return subscription != null && subscription.unsubscribe();
+	}
+
+	
+	@ManagedAttribute(description = "The maximum number of pooled connections per route")
+	public int getMaxConnectionsPerRoute() {
+		return maxConnectionsPerRoute;
+	}
+
+	public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+	}
+
+	@ManagedAttribute(description = "The maximum number of pooled connections")
+	public int getMaxTotalConnections() {
+		return maxTotalConnections;
+	}
+
+	public void setMaxTotalConnections(int maxTotalConnections) {
+		this.maxTotalConnections = maxTotalConnections;
+	}
+
+	public long getConnectionTimeToLive() {
+		return connectionTimeToLive;
+	}
+
+	public void setConnectionTimeToLive(long connectionTimeToLive) {
+		this.connectionTimeToLive = connectionTimeToLive;
+	}
+
+	public long getIdleConnectionTimeout() {
+		return idleConnectionTimeout;
+	}
+
+	public void setIdleConnectionTimeout(long idleConnectionTimeout) {
+		this.idleConnectionTimeout = idleConnectionTimeout;
+	}
+
+	public long getIdleConnectionCheckInterval() {
+		return idleConnectionCheckInterval;
+	}
+
+	public void setIdleConnectionCheckInterval(long idleConnectionCheckInterval) {
+		this.idleConnectionCheckInterval = idleConnectionCheckInterval;
+	}
+
+	public boolean isStaleConnectionCheckEnabled() {
+		return staleConnectionCheckEnabled;
+	}
+
+	public void setStaleConnectionCheckEnabled(boolean staleConnectionCheckEnabled) {
+		this.staleConnectionCheckEnabled = staleConnectionCheckEnabled;
+	}
+
+	public int getConnectionTimeout() {
+		return connectionTimeout;
+	}
+
+	public void setConnectionTimeout(int connectionTimeout) {
+		this.connectionTimeout = connectionTimeout;
+	}
+
+	public int getSocketTimeout() {
+		return socketTimeout;
+	}
+
+	public void setSocketTimeout(int socketTimeout) {
+		this.socketTimeout = socketTimeout;
+	}
+
+	public boolean isAutoReconnect() {
+		return autoReconnect;
+	}
+
+	public void setAutoReconnect(boolean autoReconnect) {
+		this.autoReconnect = autoReconnect;
+	}
+
+	public long getInitialReconnectDelay() {
+		return initialReconnectDelay;
+	}
+
+	public void setInitialReconnectDelay(long initialReconnectDelay) {
+		this.initialReconnectDelay = initialReconnectDelay;
+	}
+
+	public long getMaxReconnectDelay() {
+		return maxReconnectDelay;
+	}
+
+	public void setMaxReconnectDelay(long maxReconnectDelay) {
+		this.maxReconnectDelay = maxReconnectDelay;
+	}
+
+	public double getReconnectBackoffMultiplier() {
+		return reconnectBackoffMultiplier;
+	}
+
+	public void setReconnectBackoffMultiplier(double reconnectBackoffMultiplier) {
+		this.reconnectBackoffMultiplier = reconnectBackoffMultiplier;
+	}
+
+	public int getMaxReconnectAttempts() {
+		return maxReconnectAttempts;
+	}
+
+	public void setMaxReconnectAttempts(int maxReconnectAttempts) {
+		this.maxReconnectAttempts = maxReconnectAttempts;
+	}
+
+	public int getMaxConcurrentReconnects() {
+		return maxConcurrentReconnects;
+	}
+
+	public void setMaxConcurrentReconnects(int maxConcurrentReconnects) {
+		this.maxConcurrentReconnects = maxConcurrentReconnects;
+	}
+
+	public String getResumeHeaderName() {
+		return resumeHeaderName;
+	}
+
+	public void setResumeHeaderName(String resumeHeaderName) {
+		this.resumeHeaderName = resumeHeaderName;
+	}
+
+	public String getResumeParamName() {
+		return resumeParamName;
+	}
+
+	public void setResumeParamName(String resumeParamName) {
+		this.resumeParamName = resumeParamName;
+	}
+
+	public FramingMode getFramingMode() {
+		return framingMode;
+	}
+
+	public void setFramingMode(FramingMode framingMode) {
+		this.framingMode = framingMode;
+	}
+
+	public String getFrameDelimiter() {
+		return frameDelimiter;
+	}
+
+	public void setFrameDelimiter(String frameDelimiter) {
+		this.frameDelimiter = frameDelimiter;
+	}
+
+	public char getLengthPrefixSeparator() {
+		return lengthPrefixSeparator;
+	}
+
+	public void setLengthPrefixSeparator(char lengthPrefixSeparator) {
+		this.lengthPrefixSeparator = lengthPrefixSeparator;
+	}
+
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	public void setMaxFrameSize(int maxFrameSize) {
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	public boolean isSkipFramePadding() {
+		return skipFramePadding;
+	}
+
+	public void setSkipFramePadding(boolean skipFramePadding) {
+		this.skipFramePadding = skipFramePadding;
+	}
+
+	public int getSubscriptionSocketTimeout() {
+		return subscriptionSocketTimeout;
+	}
+
+	public void setSubscriptionSocketTimeout(int subscriptionSocketTimeout) {
+		this.subscriptionSocketTimeout = subscriptionSocketTimeout;
+	}
+	
+	/**
+	 * The subscription to an endpoint streaming the messages over a long lived response.
+	 * Unsubscribing aborts the request which releases the connection and terminates the
+	 * reader blocked on the stream. If the stream ends or breaks while the subscription
+	 * is active it is reconnected with an exponential backoff, resuming from the last
+	 * message received if the endpoint stamps the messages with a sequence
+	 */
+	private class HttpStreamingSubscription implements CometSubscription, Runnable {
+		
+		private final String uuid = UUID.randomUUID().toString();
+		
+		private final String endpointUrl;
+		
+		private final Charset charset;
+		
+		/**
+		 * The content type expected, asked for in the Accept header if not null
+		 */
+		private final String accept;
+		
+		private final CometMessageListener<CometMessage> listener;
+		
+		private final AtomicBoolean active = new AtomicBoolean(true);
+		
+		private final AtomicLong messagesReceived = new AtomicLong();
+		
+		/**
+		 * Released when the subscription is closed to wake up the reader waiting to reconnect,
+		 * a latch rather than a monitor so that a waiting virtual thread is not pinned
+		 */
+		private final CountDownLatch closed = new CountDownLatch(1);
+		
+		private volatile HttpGet get;
+		
+		private volatile HttpResponse response;
+		
+		/**
+		 * The resume token of the last message received
+		 */
+		private volatile String lastMessageId;
+		
+		/**
+		 * The number of consecutive attempts that did not receive any message
+		 */
+		private int failedAttempts;
+		
+		HttpStreamingSubscription(String endpointUrl, Charset charset, String accept,
+				CometMessageListener<CometMessage> listener) {
+			this.endpointUrl = endpointUrl;
+			this.charset = charset;
+			this.accept = accept;
+			this.listener = listener;
+		}
+		
+		/**
+		 * Sends the subscription request and waits for the response to begin,
+		 * passing the resume token of the last message received if any
+		 */
+		void connect() {
+			HttpGet get = new HttpGet(getResumeUrl(endpointUrl, lastMessageId));
+			HttpConnectionParams.setSoTimeout(get.getParams(), subscriptionSocketTimeout);
+			if(accept != null)
+				get.addHeader(ACCEPT, accept);
+			if(getCompression() != null)
+				get.addHeader(ACCEPT_ENCODING, GZIP + ", " + DEFLATE);
+			this.get = get;
+			HttpResponse response;
+			try {
+				response = getClient().execute(get);
+			} catch (IOException e) {
+				throw new CometMessagingTransportException(
+						"An HttpException has occurred while getting the response to the endpoint, "
+						+ "\"" + endpointUrl + "\" see root exception for more details", e,
+						endpointUrl, null);
+			}
+			int status = response.getStatusLine().getStatusCode();
+			if(status >= 300 || response.getEntity() == null) {
+				get.abort();
+				throw new CometMessagingTransportException("The endpoint \"" + endpointUrl 
+						+ "\" responded with status " + status + " to the subscription", endpointUrl, null);
+			}
+			this.response = response;
+			if(!active.get())
+				//Unsubscribed while connecting
+				get.abort();
+		}
+		
+		/**
+		 * Reads the stream and delivers the messages till the subscription is cancelled,
+		 * reconnecting when the stream ends if the transport is configured to do so
+		 */
+		public void run() {
+			try {
+				while(active.get()) {
+					long received = messagesReceived.get();
+					//A stream that cannot be framed counts as a failed attempt
+					if(readStream() && messagesReceived.get() > received)
+						failedAttempts = 0;
+					if(!active.get() || !autoReconnect || !reconnect())
+						break;
+				}
+			} finally {
+				close();
+			}
+		}
+		
+		/**
+		 * Reads the stream till it ends or breaks
+		 * @return false if the stream was aborted as it could not be split into frames
+		 */
+		private boolean readStream() {
+			InputStream in = null;
+			try {
+				in = response.getEntity().getContent();
+				Header encoding = response.getFirstHeader(CONTENT_ENCODING);
+				if(encoding != null)
+					in = decompress(encoding.getValue(), in);
+				Header header = response.getFirstHeader(CONTENT_TYPE);
+				String contentType = null;
+				if (header != null)
+					contentType = header.getValue();
+				
+				final CometMessageSerializer serializer = getSerializerForContentType(contentType);
+				
+				AbstractFrameDecoder decoder = createFrameDecoder();
+				FrameListener frameListener = new FrameListener() {
+					public void onFrame(byte[] buffer, int offset, int length) {
+						CometDeliveryEvent event = new CometDeliveryEvent();
+						event.begin();
 						try {
-							CometMessage message = serializer
-									.deserialize(chunk);
+							CometMessage message = deserializeFrame(serializer, 
+									buffer, offset, length, charset);
+							messagesReceived.incrementAndGet();
+							String resumeToken = getResumeToken(message);
+							if(resumeToken != null)
+								lastMessageId = resumeToken;
 							listener.onMessage(message);
+							commitDeliveryEvent(event, endpointUrl, length);
 						} catch (CometMessageSerializationException e) {
 							logger.error("Failed to deserialize the string \""
-									+ chunk + "\"", e);
+									+ new String(buffer, offset, length, charset) + "\"", e);
+						} catch (RuntimeException e) {
+							//A failing listener should not break the stream of the other messages
+							logger.error("Failed to deliver the message \""
+									+ new String(buffer, offset, length, charset) + "\"", e);
 						}
 					}
-				} catch (IOException e) {
-					throw new CometMessagingTransportException(
+				};
+				while(active.get() && decoder.readFrom(in, frameListener) != -1);
+			} catch (CometMessagingTransportException e) {
+				//Thrown by the decoder, e.g. a frame exceeds the maxFrameSize or a length is corrupt
+				if(active.get()) {
+					logger.error("Aborting the subscription stream from \"" + endpointUrl 
+							+ "\" as it cannot be split into frames", e);
+					//Closing would read the rest of the endless stream
+					HttpGet get = this.get;
+					if(get != null)
+						get.abort();
+					in = null;
+				}
+				return false;
+			} catch (IOException e) {
+				//The stream is expected to break when unsubscribed
+				if(active.get()) {
+					if(!autoReconnect)
+						throw new CometMessagingTransportException(
 							"An IO Exception has occurred while reading the chunked responses from the server, "
 									+ "see root exception for more details", e,
 							endpointUrl, null);
-				} finally {
+					logger.warn("The subscription stream from \"" + endpointUrl + "\" broke, reconnecting", e);
+				}
+			} finally {
+				//The stream of a cancelled subscription is already aborted
+				if(in != null && active.get()) {
 					try {
 						in.close();
 					} catch (IOException e) {
@@ -182,24 +816,184 @@ public class CometMessagingDefaultTransport extends
 								"An Exception occurred while closing the input stream",
 								e);
 					}
-					//TODO: Check if any cleanup is needed 
-					//get.releaseConnection();
 				}
 			}
-		});
-		return new CometSubscription() {
-
-			private String uuid = UUID.randomUUID().toString();
-			
-			public String getSubscriptionIdentifier() {				
-				return uuid;
+			return true;
+		}
+		
+		/**
+		 * Reconnects to the endpoint waiting for an exponentially growing, jittered delay 
+		 * between the attempts. At most maxConcurrentReconnects subscriptions of the 
+		 * transport attempt to connect at a time
+		 * 
+		 * @return true if reconnected, false if cancelled or the attempts are exhausted
+		 */
+		private boolean reconnect() {
+			while(active.get()) {
+				if(maxReconnectAttempts >= 0 && failedAttempts >= maxReconnectAttempts) {
+					logger.error("Giving up the subscription to \"" + endpointUrl + "\" after " 
+							+ failedAttempts + " attempts to reconnect");
+					return false;
+				}
+				long delay = getReconnectDelay(failedAttempts++);
+				try {
+					if(closed.await(delay, TimeUnit.MILLISECONDS))
+						return false;
+					reconnectPermits.acquire();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+				try {
+					connect();
+					reconnects.incrementAndGet();
+					if(logger.isInfoEnabled())
+						logger.info("Reconnected the subscription to \"" + endpointUrl + "\"");
+					return true;
+				} catch (CometMessagingTransportException e) {
+					logger.warn("Attempt " + failedAttempts + " to reconnect to \"" + endpointUrl + "\" failed", e);
+				} finally {
+					reconnectPermits.release();
+				}
 			}
+			return false;
+		}
+		
+		public String getSubscriptionIdentifier() {				
+			return uuid;
+		}
 
-			public boolean unsubscribe() {
-				//TODO: Implement the logic here to close the stream and terminate the reading				
+		/**
+		 * Aborts the subscription request, releasing its connection and stopping the reader
+		 * @return true if the subscription was active before this call
+		 */
+		public boolean unsubscribe() {
+			if(!active.get())
+				return false;
+			return close();
+		}
+		
+		public boolean isActive() {
+			return active.get();
+		}
+		
+		public long getMessagesReceived() {
+			return messagesReceived.get();
+		}
+		
+		boolean close() {
+			subscriptions.remove(uuid, this);
+			if(!active.compareAndSet(true, false))
 				return false;
-			}			
-		};
+			//Wake up the reader waiting to reconnect
+			closed.countDown();
+			HttpGet get = this.get;
+			if(get != null)
+				get.abort();
+			return true;
+		}
 	}
-}
+	
+	/**
+	 * Gets the URL to subscribe to for resuming after the message with the given 
+	 * resume token, the endpoint URL itself if there is no token to resume from
+	 * 
+	 * @param endpointUrl
+	 * @param resumeToken
+	 */
+	protected String getResumeUrl(String endpointUrl, String resumeToken) {
+		if(resumeToken == null || !StringUtils.hasText(resumeParamName))
+			return endpointUrl;
+		try {
+			return new StringBuilder(endpointUrl.length() + resumeParamName.length() + resumeToken.length() + 2)
+						.append(endpointUrl)
+						.append(endpointUrl.indexOf('?') < 0 ? '?' : '&')
+						.append(resumeParamName)
+						.append('=')
+						.append(URLEncoder.encode(resumeToken, DEFAULT_ENCODING))
+						.toString();
+		} catch (UnsupportedEncodingException e) {
+			//Should never reach here
+			return endpointUrl;
+		}
+	}
+	
+	/**
+	 * Gets the resume token carried by the message in the resumeHeaderName header, 
+	 * null if the message carries none 
+	 * @param message
+	 */
+	protected String getResumeToken(CometMessage message) {
+		if(resumeHeaderName == null || message.getHeaders() == null)
+			return null;
+		CometHeaderValueContainer header = message.getHeaders().get(resumeHeaderName);
+		return header != null ? header.getHeaderValue() : null;
+	}
+	
+	/**
+	 * Gets the delay before the given attempt to reconnect, which grows exponentially
+	 * with the attempts up to maxReconnectDelay. A random jitter of up to half the delay
+	 * is subtracted so that the subscriptions broken together do not reconnect together
+	 * 
+	 * @param attempt the zero based attempt
+	 */
+	protected long getReconnectDelay(int attempt) {
+		double delay = initialReconnectDelay * Math.pow(reconnectBackoffMultiplier, attempt);
+		long cappedDelay = (long)Math.min(delay, maxReconnectDelay);
+		if(cappedDelay <= 1)
+			return 1;
+		long half = cappedDelay / 2;
+		return cappedDelay - half + (long)(ThreadLocalRandom.current().nextDouble() * half);
+	}
+	
+	/**
+	 * The background daemon thread that periodically closes the expired connections
+	 * and the connections that have been idle in the pool for longer than the 
+	 * configured idle timeout 
+	 * 
+	 */
+	private static class IdleConnectionReaper extends Thread {
+		
+		private final ClientConnectionManager connManager;
+		
+		private final long idleTimeout;
+		
+		private final long checkInterval;
+		
+		private volatile boolean shutdown;
+		
+		IdleConnectionReaper(ClientConnectionManager connManager,long idleTimeout,long checkInterval) {
+			super("comet-idle-connection-reaper");
+			setDaemon(true);
+			this.connManager = connManager;
+			this.idleTimeout = idleTimeout;
+			this.checkInterval = checkInterval > 0 ? checkInterval : 5000;
+		}
 
+		@Override
+		public void run() {
+			while(!shutdown) {
+				try {
+					synchronized (this) {
+						wait(checkInterval);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				if(shutdown)
+					return;
+				connManager.closeExpiredConnections();
+				if(idleTimeout > 0)
+					connManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+			}
+		}
+		
+		void shutdown() {
+			shutdown = true;
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+}
@@ -15,21 +15,49 @@
  */
 package org.springframework.integration.comet.core.transport;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.eclipse.jetty.websocket.RandomMaskGen;
 import org.eclipse.jetty.websocket.WebSocket;
 import org.eclipse.jetty.websocket.WebSocketClient;
 import org.eclipse.jetty.websocket.WebSocketClientFactory;
 import org.eclipse.jetty.websocket.WebSocket.Connection;
+import org.springframework.beans.factory.BeanDefinitionStoreException;
 import org.springframework.integration.comet.core.CometMessage;
 import org.springframework.integration.comet.core.CometMessageListener;
 import org.springframework.integration.comet.core.CometSubscription;
+import org.springframework.integration.comet.core.jfr.CometDeliveryEvent;
+import org.springframework.integration.comet.core.serializers.CometMessageSerializationException;
+import org.springframework.integration.comet.core.serializers.CometMessageSerializer;
+import org.springframework.integration.comet.core.serializers.CometMessageStreamSerializer;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedOperationParameter;
+import org.springframework.jmx.export.annotation.ManagedOperationParameters;
 
 /**
- * The transport implementation using the Jetty's web socket implementation
+ * The transport implementation using the Jetty's web socket implementation.
+ * Messages are sent over connections kept open in a pool per endpoint
+ * 
+ * With binaryFrames set, a binary frame carries the bytes written by the serializer 
+ * as is. The compression applies to the web socket messages only with 
+ * compressedBinaryFrames set, which changes the format of every binary frame, compressed 
+ * or not, to begin with a flag byte. Both peers need to set it, a peer that does not know 
+ * the flag byte misreads all the binary frames. Text frames are never compressed.
  * 
  * @author Amol Nayak
  *
@@ -37,15 +65,129 @@ import org.springframework.integration.comet.core.CometSubscription;
 public class CometMessagingJettyWebSocketTransport extends
 	AbstractWebSocketTransport {
 
+	private static final int MIN_BUFFER_SIZE = 1024;
+	
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	/**
+	 * The first byte of a binary frame when compressedBinaryFrames is set, telling whether 
+	 * the rest of the frame is compressed and with which codec
+	 */
+	static final byte FRAME_UNCOMPRESSED = 0;
+	
+	static final byte FRAME_GZIP = 1;
+	
+	static final byte FRAME_DEFLATE = 2;
+	
 	private WebSocketClientFactory factory;	
 	
+	/**
+	 * The maximum number of connections kept open to an endpoint for sending messages
+	 */
+	private int maxConnectionsPerEndpoint = 4;
+	
+	/**
+	 * The time in milliseconds after which an unused pooled connection is closed
+	 */
+	private long pooledConnectionIdleTimeout = 300000;
+	
+	/**
+	 * The interval in milliseconds at which the pooled connections are checked
+	 */
+	private long healthCheckInterval = 30000;
+	
+	private WebSocketConnectionPool connectionPool;
+	
+	/**
+	 * The size in bytes of the buffers the web socket frames are read into and written from
+	 */
+	private int bufferSize = 16384;
+	
+	/**
+	 * The maximum size in characters of a text message received, -1 to use Jetty's default
+	 */
+	private int maxTextMessageSize = -1;
+	
+	/**
+	 * The time in milliseconds after which an idle connection is closed, -1 to use Jetty's default
+	 */
+	private int maxIdleTime = -1;
+	
+	/**
+	 * The thread pool running the selector and the callbacks of the connections, if not 
+	 * set a pool of clientMinThreads to clientMaxThreads daemon threads is created, or 
+	 * a virtual thread per task if useVirtualThreads is set 
+	 */
+	private ThreadPool clientThreadPool;
+	
+	private int clientMinThreads = 2;
+	
+	private int clientMaxThreads = 32;
+	
+	/**
+	 * Whether the messages are sent as binary frames carrying the serialized bytes as is
+	 */
+	private boolean binaryFrames;
+	
+	/**
+	 * Whether the binary frames begin with a flag byte and may be compressed
+	 */
+	private boolean compressedBinaryFrames;
+	
+	/**
+	 * The maximum size in bytes of a binary message received
+	 */
+	private int maxBinaryMessageSize = 1024 * 1024;
+	
 	@Override
 	protected void init() throws Exception {
 		super.init();
-		factory = new WebSocketClientFactory();
-		//TODO: Keep this configurable
-		factory.setBufferSize(4096);
+		if(maxConnectionsPerEndpoint <= 0)
+			throw new BeanDefinitionStoreException("maxConnectionsPerEndpoint should be a positive value");
+		if(healthCheckInterval <= 0)
+			throw new BeanDefinitionStoreException("healthCheckInterval should be a positive value");
+		if(bufferSize < MIN_BUFFER_SIZE)
+			throw new BeanDefinitionStoreException("bufferSize should be at least " + MIN_BUFFER_SIZE + " bytes");
+		if(maxTextMessageSize == 0 || maxTextMessageSize < -1)
+			throw new BeanDefinitionStoreException("maxTextMessageSize should be a positive value or -1");
+		if(maxBinaryMessageSize <= 0)
+			throw new BeanDefinitionStoreException("maxBinaryMessageSize should be a positive value");
+		if(maxIdleTime == 0 || maxIdleTime < -1)
+			throw new BeanDefinitionStoreException("maxIdleTime should be a positive value or -1");
+		ThreadPool threadPool = clientThreadPool;
+		if(threadPool == null) {
+			if(isUseVirtualThreads()) {
+				threadPool = new ExecutorThreadPool(createVirtualThreadExecutor("comet-ws-client-"));
+			} else {
+				//The selector permanently occupies one of the threads
+				if(clientMinThreads < 1 || clientMaxThreads < 2 || clientMaxThreads < clientMinThreads)
+					throw new BeanDefinitionStoreException("Expected clientMinThreads of at least 1 and clientMaxThreads " +
+							"of at least 2 and not less than clientMinThreads");
+				QueuedThreadPool queuedThreadPool = new QueuedThreadPool();
+				queuedThreadPool.setName("comet-ws-client");
+				queuedThreadPool.setDaemon(true);
+				queuedThreadPool.setMinThreads(clientMinThreads);
+				queuedThreadPool.setMaxThreads(clientMaxThreads);
+				threadPool = queuedThreadPool;
+			}
+		}
+		factory = new WebSocketClientFactory(threadPool, new RandomMaskGen(), bufferSize);
 		factory.start();
+		connectionPool = new WebSocketConnectionPool(this, maxConnectionsPerEndpoint, 
+				pooledConnectionIdleTimeout, healthCheckInterval);
+	}
+	
+	@Override
+	protected void destroy() {
+		if(connectionPool != null)
+			connectionPool.shutdown();
+		if(factory != null) {
+			try {
+				factory.stop();
+			} catch (Exception e) {
+				logger.warn("An Exception occurred while stopping the web socket client factory", e);
+			}
+		}
 	}
 
 	/* (non-Javadoc)
@@ -54,25 +196,49 @@ public class CometMessagingJettyWebSocketTransport extends
 	public CometSubscription subscribe(String topic,
 			String expectedContentType, String expectedEncoding,
 			final CometMessageListener<CometMessage> listener) {
-		WebSocketClient client = factory.newWebSocketClient();		
-		client.setProtocol(getProtocol());
+		WebSocketClient client = newWebSocketClient();
+		final CometMessageSerializer serializer = getSerializerForContentType(expectedContentType);
+		final AtomicBoolean active = new AtomicBoolean(true);
+		final AtomicLong messagesReceived = new AtomicLong();
 		final Connection conn;
 		try {
-			conn = client.open(new URI(topic), new WebSocket.OnTextMessage() {
+			conn = client.open(new URI(topic), new TextAndBinaryMessages() {
 				
 				public void onOpen(Connection connection) {
 									
 				}
 				
 				public void onClose(int arg0, String arg1) {				
-					
+					active.set(false);
 				}
 				
 				public void onMessage(String message) {
-					//TODO: Deserialize the message and deliver to the listener here
-					CometMessage msg = deserializeMessage(message);
-					if(msg != null)
+					CometDeliveryEvent event = new CometDeliveryEvent();
+					event.begin();
+					int length = utf8Length(message);
+					CometMessage msg = deserializeMessage(message, length);
+					if(msg != null) {
+						messagesReceived.incrementAndGet();
 						listener.onMessage(msg);
+						commitDeliveryEvent(event, topic, length);
+					}
+				}
+				
+				public void onMessage(byte[] data, int offset, int length) {
+					CometDeliveryEvent event = new CometDeliveryEvent();
+					event.begin();
+					CometMessage msg;
+					recordReceived(length);
+					try {
+						msg = deserializeBinaryMessage(serializer, data, offset, length);
+					} catch (CometMessageSerializationException e) {
+						recordDeserializationFailure();
+						logger.error("Failed to deserialize the binary message", e);
+						return;
+					}
+					messagesReceived.incrementAndGet();
+					listener.onMessage(msg);
+					commitDeliveryEvent(event, topic, length);
 				}
 			}).get();
 		} catch (Exception e) {
@@ -86,51 +252,348 @@ public class CometMessagingJettyWebSocketTransport extends
 			private String uid = UUID.randomUUID().toString();
 			
 			public boolean unsubscribe() {
+				if(!active.compareAndSet(true, false))
+					return false;
 				conn.disconnect();
-				return false;
+				return true;
 			}
 			
 			public String getSubscriptionIdentifier() {				
 				return uid;
 			}
+			
+			public boolean isActive() {
+				return active.get() && conn.isOpen();
+			}
+			
+			public long getMessagesReceived() {
+				return messagesReceived.get();
+			}
 		};
 	}
 
-	/* (non-Javadoc)
-	 * @see org.springframework.integration.comet.core.transport.AbstractCometMessagingTransport#doSend(java.lang.String, java.util.Map, java.lang.String, java.lang.String, org.springframework.integration.comet.core.CometMessage)
+	/**
+	 * Serializes the message into the raw bytes of a binary frame if binaryFrames is set, 
+	 * into the UTF-8 text of a text frame if rawBody is set, else encodes it as for the 
+	 * other transports. With compressedBinaryFrames set, a binary frame begins with a flag 
+	 * byte, {@link #FRAME_UNCOMPRESSED}, {@link #FRAME_GZIP} or {@link #FRAME_DEFLATE}, 
+	 * followed by the serialized bytes, compressed with the configured compression if 
+	 * larger than the threshold
+	 */
+	@Override
+	protected byte[] encodeMessage(String contentType, String charset, CometMessage message) {
+		if(binaryFrames) {
+			//The binary frames carry the bytes of the serializer as is
+			CometMessageSerializer serializer = getSerializerForContentType(contentType.trim());
+			if(serializer instanceof CometMessageStreamSerializer)
+				charset = ((CometMessageStreamSerializer)serializer).getCharset();
+			byte[] serialized = serializeMessage(contentType, charset, message);
+			if(!compressedBinaryFrames)
+				return serialized;
+			byte flag = FRAME_UNCOMPRESSED;
+			if(isCompressible(serialized.length)) {
+				flag = GZIP.equals(getCompression()) ? FRAME_GZIP : FRAME_DEFLATE;
+				serialized = compress(serialized, getCompression(), message);
+			}
+			byte[] frame = new byte[serialized.length + 1];
+			frame[0] = flag;
+			System.arraycopy(serialized, 0, frame, 1, serialized.length);
+			return frame;
+		}
+		if(isRawBody())
+			//Text frames are always UTF-8
+			return serializeMessage(contentType, "UTF-8", message);
+		return super.encodeMessage(contentType, charset, message);
+	}
+	
+	/**
+	 * Deserializes a binary message with the given serializer, directly from the bytes
+	 * if the serializer supports it. With compressedBinaryFrames set, the message is 
+	 * decompressed first if its flag byte says so
+	 */
+	CometMessage deserializeBinaryMessage(CometMessageSerializer serializer, 
+			byte[] data, int offset, int length) {
+		if(!compressedBinaryFrames)
+			return deserializeBytes(serializer, data, offset, length);
+		if(length < 1)
+			throw new CometMessageSerializationException("Empty binary message", (String)null);
+		byte flag = data[offset];
+		offset++;
+		length--;
+		if(flag == FRAME_GZIP || flag == FRAME_DEFLATE) {
+			data = decompress(flag == FRAME_GZIP ? GZIP : DEFLATE, data, offset, length);
+			offset = 0;
+			length = data.length;
+		} else if(flag != FRAME_UNCOMPRESSED) {
+			throw new CometMessageSerializationException("Unknown binary message flag " + flag, (String)null);
+		}
+		return deserializeBytes(serializer, data, offset, length);
+	}
+	
+	private static CometMessage deserializeBytes(CometMessageSerializer serializer, 
+			byte[] data, int offset, int length) {
+		if(serializer instanceof CometMessageStreamSerializer)
+			return ((CometMessageStreamSerializer)serializer).deserialize(data, offset, length);
+		return serializer.deserialize(new String(data, offset, length, UTF_8));
+	}
+	
+	/**
+	 * Decompresses a compressed frame, up to the maxBinaryMessageSize
+	 */
+	private byte[] decompress(String encoding, byte[] data, int offset, int length) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length * 4);
+		try {
+			InputStream in = decompress(encoding, new ByteArrayInputStream(data, offset, length));
+			byte[] buffer = new byte[4096];
+			int read;
+			while((read = in.read(buffer)) != -1) {
+				if(out.size() + read > maxBinaryMessageSize)
+					throw new CometMessageSerializationException("The decompressed message exceeds " 
+							+ maxBinaryMessageSize + " bytes", (String)null);
+				out.write(buffer, 0, read);
+			}
+		} catch (IOException e) {
+			throw new CometMessageSerializationException("Corrupt compressed message", e, (String)null);
+		}
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Sends the message as one frame over a pooled connection to the endpoint
 	 */
 	@Override
 	protected void doSend(String endpointString,
-			Map<String, String> requestHeaders, String requestMessage,
+			Map<String, String> requestHeaders, byte[] requestMessage,
 			String contentEncoding, CometMessage message) {
-		WebSocketClient client = factory.newWebSocketClient();
-		client.setProtocol(getProtocol());
-		final Connection conn;
+		connectionPool.send(endpointString, Collections.singletonList(requestMessage), 
+				binaryFrames, Collections.singletonList(message));
+	}
+	
+	/**
+	 * Sends each message of the batch as a separate frame over one pooled connection
+	 * as the endpoint expects one message per frame
+	 */
+	@Override
+	protected void doSendBatch(String endpointString,
+			Map<String, String> requestHeaders, List<byte[]> requestMessages,
+			String contentEncoding, List<CometMessage> messages) {
+		connectionPool.send(endpointString, requestMessages, binaryFrames, messages);
+	}
+	
+	/**
+	 * Gets the number of connections open for sending messages to the given endpoint
+	 * @param endpointUrl
+	 */
+	@ManagedOperation(description = "Gets the number of pooled connections to the given endpoint")
+	@ManagedOperationParameters(
+			@ManagedOperationParameter(name = "endpointUrl", description = "The endpoint URL"))
+	public int getPooledConnectionCount(String endpointUrl) {
+		return connectionPool == null ? 0 : connectionPool.getConnectionCount(endpointUrl);
+	}
+	
+	/**
+	 * Gets the number of connections open for sending messages to all the endpoints
+	 */
+	@ManagedAttribute(description = "The number of pooled connections")
+	public int getTotalPooledConnectionCount() {
+		return connectionPool == null ? 0 : connectionPool.getConnectionCount();
+	}
+	
+	/**
+	 * Opens a new web socket connection to the given endpoint
+	 * 
+	 * @param endpointString
+	 * @param webSocket the callback for the events of the connection
+	 * @param message the message to report if the connection cannot be opened
+	 */
+	Connection openConnection(String endpointString, WebSocket webSocket, CometMessage message) {
+		WebSocketClient client = newWebSocketClient();
 		try {
-			conn = client.open(new URI(endpointString), new WebSocket.OnTextMessage() {
-				
-				public void onOpen(Connection connection) {
-									
-				}
-				
-				public void onClose(int arg0, String arg1) {				
-					
-				}
-				
-				public void onMessage(String message) {
-									
-				}
-			}).get();
+			return client.open(new URI(endpointString), webSocket).get();
 		} catch (Exception e) {
 			logger.error("Caught Exception while opening a connection to the web socket");
 			throw new CometMessagingTransportException(e.getMessage(), e, endpointString, message);
 		}
-		try {
-			conn.sendMessage(requestMessage);
-		} catch (IOException e) {
-			logger.error("Exception occurred while transporting the message over the web socket", e);
-			throw new CometMessagingTransportException(e.getMessage(), e, endpointString, message);
-		}
-		conn.disconnect();
-	}	
+	}
+
+	/**
+	 * Creates a client with the configured protocol, message size and idle time
+	 */
+	private WebSocketClient newWebSocketClient() {
+		WebSocketClient client = factory.newWebSocketClient();
+		client.setProtocol(getProtocol());
+		if(maxTextMessageSize > 0)
+			client.setMaxTextMessageSize(maxTextMessageSize);
+		if(maxIdleTime > 0)
+			client.setMaxIdleTime(maxIdleTime);
+		client.setMaxBinaryMessageSize(maxBinaryMessageSize);
+		return client;
+	}
+
+	@ManagedAttribute(description = "The maximum number of pooled connections per endpoint")
+	public int getMaxConnectionsPerEndpoint() {
+		return maxConnectionsPerEndpoint;
+	}
+
+	/**
+	 * The maximum number of connections kept open to an endpoint for sending messages
+	 * @param maxConnectionsPerEndpoint
+	 */
+	public void setMaxConnectionsPerEndpoint(int maxConnectionsPerEndpoint) {
+		this.maxConnectionsPerEndpoint = maxConnectionsPerEndpoint;
+	}
+
+	public long getPooledConnectionIdleTimeout() {
+		return pooledConnectionIdleTimeout;
+	}
+
+	/**
+	 * The time in milliseconds after which an unused pooled connection is closed,
+	 * a non positive value keeps the connections open till the transport is destroyed
+	 * @param pooledConnectionIdleTimeout
+	 */
+	public void setPooledConnectionIdleTimeout(long pooledConnectionIdleTimeout) {
+		this.pooledConnectionIdleTimeout = pooledConnectionIdleTimeout;
+	}
+
+	public long getHealthCheckInterval() {
+		return healthCheckInterval;
+	}
+
+	/**
+	 * The interval in milliseconds at which the closed and idle pooled connections are discarded
+	 * @param healthCheckInterval
+	 */
+	public void setHealthCheckInterval(long healthCheckInterval) {
+		this.healthCheckInterval = healthCheckInterval;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * The size in bytes of the buffers the frames are read into and written from. 
+	 * Messages larger than the buffer are written and read in several passes, each 
+	 * connection holds a buffer while it has data in transit. Size it to the typical 
+	 * serialized message, and keep the default for many mostly idle connections 
+	 * @param bufferSize
+	 */
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	public int getMaxTextMessageSize() {
+		return maxTextMessageSize;
+	}
+
+	/**
+	 * The maximum size in characters of a text message received, a larger message closes
+	 * the connection. Should be at least the size of the largest serialized message expected
+	 * @param maxTextMessageSize
+	 */
+	public void setMaxTextMessageSize(int maxTextMessageSize) {
+		this.maxTextMessageSize = maxTextMessageSize;
+	}
+
+	public int getMaxIdleTime() {
+		return maxIdleTime;
+	}
+
+	/**
+	 * The time in milliseconds after which a connection with no traffic is closed. Applies
+	 * to the subscriptions as well, set it well above the interval of the messages expected
+	 * or the subscriptions are dropped on quiet topics
+	 * @param maxIdleTime
+	 */
+	public void setMaxIdleTime(int maxIdleTime) {
+		this.maxIdleTime = maxIdleTime;
+	}
+
+	public ThreadPool getClientThreadPool() {
+		return clientThreadPool;
+	}
+
+	/**
+	 * The Jetty thread pool to be used by the web socket client, started and stopped with
+	 * the transport. When set the clientMinThreads and clientMaxThreads are ignored
+	 * @param clientThreadPool
+	 */
+	public void setClientThreadPool(ThreadPool clientThreadPool) {
+		this.clientThreadPool = clientThreadPool;
+	}
+
+	public int getClientMinThreads() {
+		return clientMinThreads;
+	}
+
+	public void setClientMinThreads(int clientMinThreads) {
+		this.clientMinThreads = clientMinThreads;
+	}
+
+	public int getClientMaxThreads() {
+		return clientMaxThreads;
+	}
+
+	/**
+	 * The maximum number of threads in the pool created for the web socket client. The
+	 * selector holds one thread and the callbacks of the received messages run on the others,
+	 * so the value should exceed the number of subscriptions expected to deliver concurrently
+	 * @param clientMaxThreads
+	 */
+	public void setClientMaxThreads(int clientMaxThreads) {
+		this.clientMaxThreads = clientMaxThreads;
+	}
+
+	public boolean isBinaryFrames() {
+		return binaryFrames;
+	}
+
+	/**
+	 * Sends the messages as binary frames carrying the bytes written by the serializer, 
+	 * without the URL encoding of the text frames. Meant for binary serializers like 
+	 * {@link org.springframework.integration.comet.core.serializers.CometMessageSmileSerializer},
+	 * the endpoint should expect binary frames. The frames are not compressed unless 
+	 * compressedBinaryFrames is set as well
+	 * @param binaryFrames
+	 */
+	public void setBinaryFrames(boolean binaryFrames) {
+		this.binaryFrames = binaryFrames;
+	}
+
+	public boolean isCompressedBinaryFrames() {
+		return compressedBinaryFrames;
+	}
+
+	/**
+	 * Compresses the binary frames larger than the compressionThreshold with the configured
+	 * compression. This changes the format of every binary frame sent and received, compressed
+	 * or not, to begin with a flag byte, 0 if the serialized bytes following it are uncompressed,
+	 * 1 if gzipped and 2 if deflated. Set it only if the endpoint and the other subscribers 
+	 * use the same format, false by default so that the binary frames are the plain bytes of
+	 * the serializer
+	 * @param compressedBinaryFrames
+	 */
+	public void setCompressedBinaryFrames(boolean compressedBinaryFrames) {
+		this.compressedBinaryFrames = compressedBinaryFrames;
+	}
+
+	public int getMaxBinaryMessageSize() {
+		return maxBinaryMessageSize;
+	}
+
+	/**
+	 * The maximum size in bytes of a binary message received, a larger message closes the connection
+	 * @param maxBinaryMessageSize
+	 */
+	public void setMaxBinaryMessageSize(int maxBinaryMessageSize) {
+		this.maxBinaryMessageSize = maxBinaryMessageSize;
+	}
+	
+	/**
+	 * The callback receiving both the text and the binary messages of a subscription
+	 */
+	private interface TextAndBinaryMessages extends WebSocket.OnTextMessage, WebSocket.OnBinaryMessage {
+		
+	}
 }
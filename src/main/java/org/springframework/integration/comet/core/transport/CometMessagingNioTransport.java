@@ -0,0 +1,727 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.BeanDefinitionStoreException;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.integration.comet.core.CometMessage;
+import org.springframework.integration.comet.core.CometMessageListener;
+import org.springframework.integration.comet.core.CometSubscription;
+import org.springframework.integration.comet.core.jfr.CometDeliveryEvent;
+import org.springframework.integration.comet.core.serializers.CometMessageSerializer;
+import org.springframework.integration.comet.core.transport.AbstractFrameDecoder.FrameListener;
+import org.springframework.integration.comet.core.transport.HttpStreamParser.ResponseListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.StringUtils;
+
+/**
+ * The transport that multiplexes all the streaming subscriptions over a few selector
+ * threads using non blocking I/O, instead of pinning a thread blocked on the stream of
+ * every subscription. The selector threads only read the streams and decode the frames,
+ * the frames are deserialized and delivered to the listeners on a separate dispatch
+ * executor, in order for each subscription.
+ *
+ * Messages are sent exactly as with {@link CometMessagingDefaultTransport} and the
+ * framing, timeout and reconnect properties inherited from it apply to the subscriptions
+ * as well. The subscriptions are plain HTTP/1.1 requests, https endpoints are not supported.
+ * With compression set, the subscriptions ask for gzip or deflate compressed streams
+ * as with the default transport.
+ * Unlike the default transport, subscribe returns without waiting for the endpoint to
+ * respond, a failure to connect is handled like a broken stream.
+ *
+ * @author Amol Nayak
+ *
+ */
+public class CometMessagingNioTransport extends CometMessagingDefaultTransport {
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * The number of threads multiplexing the subscription streams
+	 */
+	private int selectorThreads = 2;
+
+	/**
+	 * The executor used to deserialize and deliver the received messages, if not set a
+	 * pool of dispatchPoolSize daemon threads, or virtual threads if useVirtualThreads
+	 * is set, is created when the transport is initialized
+	 */
+	private TaskExecutor dispatchExecutor;
+
+	private ExecutorService internalDispatchExecutor;
+
+	private int dispatchPoolSize = Runtime.getRuntime().availableProcessors() * 2;
+
+	/**
+	 * The number of messages received by a subscription but not yet delivered beyond
+	 * which the stream of the subscription is not read till its listener catches up
+	 */
+	private int maxPendingMessages = 10000;
+
+	private SelectorLoop[] selectorLoops;
+
+	private final AtomicInteger nextSelectorLoop = new AtomicInteger();
+
+	private ScheduledExecutorService reconnectScheduler;
+
+	private Semaphore connectPermits;
+
+	private final AtomicLong nioReconnects = new AtomicLong();
+
+	private final ConcurrentMap<String, NioSubscription> nioSubscriptions =
+							new ConcurrentHashMap<String, NioSubscription>();
+
+	@Override
+	protected void init() throws Exception {
+		super.init();
+		if(selectorThreads <= 0)
+			throw new BeanDefinitionStoreException("selectorThreads should be a positive value");
+		if(maxPendingMessages <= 0)
+			throw new BeanDefinitionStoreException("maxPendingMessages should be a positive value");
+		if(dispatchExecutor == null && isUseVirtualThreads()) {
+			internalDispatchExecutor = createVirtualThreadExecutor("comet-dispatch-");
+			dispatchExecutor = new TaskExecutorAdapter(internalDispatchExecutor);
+		} else if(dispatchExecutor == null) {
+			if(dispatchPoolSize <= 0)
+				throw new BeanDefinitionStoreException("dispatchPoolSize should be a positive value");
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("comet-dispatch-");
+			threadFactory.setDaemon(true);
+			internalDispatchExecutor = Executors.newFixedThreadPool(dispatchPoolSize, threadFactory);
+			dispatchExecutor = new TaskExecutorAdapter(internalDispatchExecutor);
+		}
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("comet-reconnect-");
+		threadFactory.setDaemon(true);
+		reconnectScheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+		connectPermits = new Semaphore(getMaxConcurrentReconnects());
+
+		selectorLoops = new SelectorLoop[selectorThreads];
+		for(int i = 0; i < selectorThreads; i++) {
+			selectorLoops[i] = new SelectorLoop(Selector.open());
+			Thread thread = new Thread(selectorLoops[i], "comet-selector-" + (i + 1));
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	@Override
+	protected void destroy() {
+		for(NioSubscription subscription:nioSubscriptions.values())
+			subscription.unsubscribe();
+		if(selectorLoops != null) {
+			for(SelectorLoop loop:selectorLoops)
+				loop.shutdown();
+		}
+		if(reconnectScheduler != null)
+			reconnectScheduler.shutdownNow();
+		if(internalDispatchExecutor != null) {
+			internalDispatchExecutor.shutdown();
+			internalDispatchExecutor = null;
+			dispatchExecutor = null;
+		}
+		super.destroy();
+	}
+
+	/**
+	 * Subscribes to the endpoint over one of the selector threads and returns without
+	 * waiting for the endpoint to respond
+	 * @throws IllegalStateException if the transport is not initialized, the selector
+	 * threads are started by {@link #initializeTransport()}
+	 */
+	@Override
+	public CometSubscription subscribe(String endpointUrl, String expectedContentType,
+			String expectedEncoding, CometMessageListener<CometMessage> listener) {
+		SelectorLoop[] selectorLoops = this.selectorLoops;
+		if(selectorLoops == null)
+			throw new IllegalStateException("The transport is not initialized, " +
+					"initializeTransport should be invoked before subscribing");
+		Charset charset;
+		try {
+			if (StringUtils.hasText(expectedEncoding))
+				charset = Charset.forName(expectedEncoding);
+			else
+				charset = Charset.forName(DEFAULT_ENCODING);
+		} catch (IllegalArgumentException e) {
+			throw new CometMessagingTransportException("Unsupported encoding " + expectedEncoding,
+					e, endpointUrl, null);
+		}
+		try {
+			URI uri = new URI(endpointUrl);
+			if(!"http".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null)
+				throw new CometMessagingTransportException("Only http endpoint URLs are supported",
+						endpointUrl, null);
+		} catch (URISyntaxException e) {
+			throw new CometMessagingTransportException("Invalid endpoint URL", e, endpointUrl, null);
+		}
+		SelectorLoop loop = selectorLoops[(nextSelectorLoop.getAndIncrement() & Integer.MAX_VALUE)
+		                                  % selectorLoops.length];
+		NioSubscription subscription = new NioSubscription(endpointUrl, charset, 
+				StringUtils.hasText(expectedContentType) ? expectedContentType.trim() : null, listener, loop);
+		nioSubscriptions.put(subscription.getSubscriptionIdentifier(), subscription);
+		subscription.scheduleConnect(0);
+		return subscription;
+	}
+
+	@Override
+	public int getActiveSubscriptionCount() {
+		return super.getActiveSubscriptionCount() + nioSubscriptions.size();
+	}
+
+	@Override
+	public long getReconnectCount() {
+		return super.getReconnectCount() + nioReconnects.get();
+	}
+	
+	@Override
+	public String[] getSubscriptionIdentifiers() {
+		String[] identifiers = super.getSubscriptionIdentifiers();
+		String[] nioIdentifiers = nioSubscriptions.keySet().toArray(new String[0]);
+		String[] allIdentifiers = Arrays.copyOf(identifiers, identifiers.length + nioIdentifiers.length);
+		System.arraycopy(nioIdentifiers, 0, allIdentifiers, identifiers.length, nioIdentifiers.length);
+		return allIdentifiers;
+	}
+	
+	@Override
+	public boolean closeSubscription(String subscriptionIdentifier) {
+		NioSubscription subscription = nioSubscriptions.get(subscriptionIdentifier);
+		if(subscription != null)
+			return subscription.unsubscribe();
+		return super.closeSubscription(subscriptionIdentifier);
+	}
+
+	public int getSelectorThreads() {
+		return selectorThreads;
+	}
+
+	public void setSelectorThreads(int selectorThreads) {
+		this.selectorThreads = selectorThreads;
+	}
+
+	public TaskExecutor getDispatchExecutor() {
+		return dispatchExecutor;
+	}
+
+	public void setDispatchExecutor(TaskExecutor dispatchExecutor) {
+		this.dispatchExecutor = dispatchExecutor;
+	}
+
+	public int getDispatchPoolSize() {
+		return dispatchPoolSize;
+	}
+
+	public void setDispatchPoolSize(int dispatchPoolSize) {
+		this.dispatchPoolSize = dispatchPoolSize;
+	}
+
+	public int getMaxPendingMessages() {
+		return maxPendingMessages;
+	}
+
+	public void setMaxPendingMessages(int maxPendingMessages) {
+		this.maxPendingMessages = maxPendingMessages;
+	}
+
+	/**
+	 * The thread owning a selector and all the I/O of the subscriptions registered with it
+	 */
+	private class SelectorLoop implements Runnable {
+
+		private final Selector selector;
+
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		/**
+		 * The buffer all the streams of this loop are read into
+		 */
+		private final ByteBuffer readBuffer = ByteBuffer.allocate(getReceiveBufferSize());
+
+		private volatile boolean running = true;
+
+		private long lastSweep = System.currentTimeMillis();
+
+		SelectorLoop(Selector selector) {
+			this.selector = selector;
+		}
+
+		/**
+		 * Runs the task on the selector thread
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+
+		public void run() {
+			while(running) {
+				try {
+					selector.select(1000);
+					Runnable task;
+					while((task = tasks.poll()) != null)
+						task.run();
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while(keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						NioSubscription subscription = (NioSubscription)key.attachment();
+						try {
+							if(!key.isValid())
+								continue;
+							if(key.isConnectable())
+								subscription.finishConnect();
+							else if(key.isWritable())
+								subscription.writeRequest();
+							else if(key.isReadable())
+								subscription.read(readBuffer);
+						} catch (Exception e) {
+							subscription.connectionFailed(e);
+						}
+					}
+					long now = System.currentTimeMillis();
+					if(now - lastSweep >= 1000) {
+						lastSweep = now;
+						for(SelectionKey key:selector.keys()) {
+							if(key.attachment() instanceof NioSubscription)
+								((NioSubscription)key.attachment()).checkTimeout(now);
+						}
+					}
+				} catch (Exception e) {
+					logger.error("Unexpected exception in the selector loop", e);
+				}
+			}
+			for(SelectionKey key:selector.keys()) {
+				try {
+					key.channel().close();
+				} catch (IOException e) {
+					//ignore
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				logger.warn("An Exception occurred while closing the selector", e);
+			}
+		}
+	}
+
+	private enum ConnectionState {CONNECTING, WRITING, HEADERS, BODY, CLOSED}
+
+	/**
+	 * The subscription whose stream is read by a selector loop. All the connection state
+	 * is accessed only from the thread of the selector loop, the received frames are
+	 * queued and delivered in order on the dispatch executor.
+	 */
+	private class NioSubscription implements CometSubscription, FrameListener, ResponseListener {
+
+		private final String uuid = UUID.randomUUID().toString();
+
+		private final String endpointUrl;
+
+		private final Charset charset;
+
+		/**
+		 * The content type expected, asked for in the Accept header if not null
+		 */
+		private final String accept;
+
+		private final CometMessageListener<CometMessage> listener;
+
+		private final SelectorLoop loop;
+
+		private final AtomicBoolean active = new AtomicBoolean(true);
+
+		private final AtomicLong messagesReceived = new AtomicLong();
+
+		private volatile String lastMessageId;
+
+		private final Queue<byte[]> pendingFrames = new ConcurrentLinkedQueue<byte[]>();
+
+		private final AtomicInteger pendingCount = new AtomicInteger();
+
+		private final AtomicBoolean dispatching = new AtomicBoolean();
+
+		private volatile boolean readSuspended;
+
+		//The connection state, accessed from the selector thread only
+
+		private SocketChannel channel;
+
+		private SelectionKey key;
+
+		private ConnectionState state = ConnectionState.CLOSED;
+
+		private ByteBuffer request;
+
+		private HttpStreamParser parser;
+
+		private CometMessageSerializer serializer;
+
+		private long connectStarted;
+
+		private long lastRead;
+
+		private boolean holdsConnectPermit;
+
+		private long messagesAtConnect;
+
+		private int failedAttempts;
+
+		NioSubscription(String endpointUrl, Charset charset, String accept,
+				CometMessageListener<CometMessage> listener, SelectorLoop loop) {
+			this.endpointUrl = endpointUrl;
+			this.charset = charset;
+			this.accept = accept;
+			this.listener = listener;
+			this.loop = loop;
+		}
+
+		/**
+		 * Schedules the connection after the given delay, the host is resolved on the
+		 * reconnect scheduler so that the selector thread never blocks
+		 */
+		void scheduleConnect(long delay) {
+			try {
+				reconnectScheduler.schedule(new Runnable() {
+					public void run() {
+						if(!active.get())
+							return;
+						if(pendingCount.get() > 0) {
+							//The resume token is known only once the frames received are delivered
+							scheduleConnect(getReconnectDelay(0));
+							return;
+						}
+						if(!connectPermits.tryAcquire()) {
+							//Too many connecting at once, retry shortly
+							scheduleConnect(getReconnectDelay(0));
+							return;
+						}
+						final URI uri;
+						final InetSocketAddress address;
+						try {
+							uri = new URI(getResumeUrl(endpointUrl, lastMessageId));
+							address = new InetSocketAddress(uri.getHost(),
+									uri.getPort() > 0 ? uri.getPort() : 80);
+						} catch (URISyntaxException e) {
+							connectPermits.release();
+							logger.error("Invalid subscription URL for \"" + endpointUrl + "\"", e);
+							unsubscribe();
+							return;
+						}
+						loop.execute(new Runnable() {
+							public void run() {
+								holdsConnectPermit = true;
+								connect(uri, address);
+							}
+						});
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			} catch (RuntimeException e) {
+				//The transport is being destroyed
+				unsubscribe();
+			}
+		}
+
+		private void connect(URI uri, InetSocketAddress address) {
+			if(!active.get()) {
+				releaseConnectPermit();
+				return;
+			}
+			try {
+				if(address.isUnresolved())
+					throw new IOException("Cannot resolve the host " + uri.getHost());
+				String path = uri.getRawPath();
+				if(!StringUtils.hasLength(path))
+					path = "/";
+				if(uri.getRawQuery() != null)
+					path = path + "?" + uri.getRawQuery();
+				String host = uri.getPort() > 0 ? uri.getHost() + ":" + uri.getPort() : uri.getHost();
+				request = ByteBuffer.wrap(new StringBuilder(path.length() + host.length() + 100)
+						.append("GET ").append(path).append(" HTTP/1.1\r\n")
+						.append("Host: ").append(host).append("\r\n")
+						.append(ACCEPT).append(": ").append(accept != null ? accept : "*/*").append("\r\n")
+						.append("Cache-Control: no-cache\r\n")
+						.append(getCompression() != null ? ACCEPT_ENCODING + ": " + GZIP + ", " + DEFLATE + "\r\n" : "")
+						.append("Connection: keep-alive\r\n\r\n")
+						.toString().getBytes(ASCII));
+				parser = new HttpStreamParser(createFrameDecoder(), this, this);
+				messagesAtConnect = messagesReceived.get();
+				connectStarted = System.currentTimeMillis();
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				channel.socket().setKeepAlive(true);
+				if(channel.connect(address)) {
+					state = ConnectionState.WRITING;
+					key = channel.register(loop.selector, SelectionKey.OP_WRITE, this);
+				} else {
+					state = ConnectionState.CONNECTING;
+					key = channel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+				}
+			} catch (IOException e) {
+				connectionFailed(e);
+			}
+		}
+
+		void finishConnect() throws IOException {
+			if(channel.finishConnect()) {
+				state = ConnectionState.WRITING;
+				key.interestOps(SelectionKey.OP_WRITE);
+			}
+		}
+
+		void writeRequest() throws IOException {
+			channel.write(request);
+			if(!request.hasRemaining()) {
+				request = null;
+				state = ConnectionState.HEADERS;
+				lastRead = System.currentTimeMillis();
+				key.interestOps(readSuspended ? 0 : SelectionKey.OP_READ);
+			}
+		}
+
+		void read(ByteBuffer buffer) throws IOException {
+			buffer.clear();
+			int read = channel.read(buffer);
+			if(read < 0) {
+				streamEnded(null);
+				return;
+			}
+			lastRead = System.currentTimeMillis();
+			if(read > 0) {
+				try {
+					parser.parse(buffer.array(), 0, read);
+				} catch (CometMessagingTransportException e) {
+					//Thrown by the decoder, e.g. a frame exceeds the maxFrameSize or a length is corrupt
+					if(active.get())
+						logger.error("Aborting the subscription stream from \"" + endpointUrl 
+								+ "\" as it cannot be split into frames", e);
+					streamEnded(e);
+				}
+			}
+		}
+
+		/**
+		 * Invoked by the parser on the selector thread once the response headers are read
+		 */
+		public void headersParsed(String contentType) {
+			serializer = getSerializerForContentType(contentType);
+			state = ConnectionState.BODY;
+			releaseConnectPermit();
+			if(lastMessageId != null || failedAttempts > 0)
+				nioReconnects.incrementAndGet();
+		}
+
+		public void bodyEnded() {
+			streamEnded(null);
+		}
+
+		/**
+		 * Invoked by the frame decoder on the selector thread, the frame is copied and
+		 * queued for delivery as the decoder's buffer is reused
+		 */
+		public void onFrame(byte[] buffer, int offset, int length) {
+			pendingFrames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+			if(pendingCount.incrementAndGet() >= maxPendingMessages && !readSuspended) {
+				readSuspended = true;
+				if(key != null && key.isValid())
+					key.interestOps(0);
+			}
+			scheduleDispatch();
+		}
+
+		private void scheduleDispatch() {
+			if(dispatching.compareAndSet(false, true)) {
+				try {
+					dispatchExecutor.execute(new Runnable() {
+						public void run() {
+							dispatch();
+						}
+					});
+				} catch (RuntimeException e) {
+					dispatching.set(false);
+					logger.error("The dispatch executor rejected the messages of \"" + endpointUrl + "\"", e);
+				}
+			}
+		}
+
+		/**
+		 * Delivers the queued frames in order, at most one thread dispatches the frames
+		 * of a subscription at any time
+		 */
+		private void dispatch() {
+			byte[] frame;
+			int delivered = 0;
+			while(delivered < 256 && (frame = pendingFrames.poll()) != null) {
+				pendingCount.decrementAndGet();
+				delivered++;
+				if(!active.get())
+					continue;
+				CometDeliveryEvent event = new CometDeliveryEvent();
+				event.begin();
+				try {
+					CometMessage message = deserializeFrame(serializer, frame, 0, frame.length, charset);
+					messagesReceived.incrementAndGet();
+					String resumeToken = getResumeToken(message);
+					if(resumeToken != null)
+						lastMessageId = resumeToken;
+					listener.onMessage(message);
+					commitDeliveryEvent(event, endpointUrl, frame.length);
+				} catch (RuntimeException e) {
+					logger.error("Failed to deliver the message \"" + new String(frame, charset) + "\"", e);
+				}
+			}
+			dispatching.set(false);
+			if(readSuspended && pendingCount.get() <= maxPendingMessages / 2) {
+				loop.execute(new Runnable() {
+					public void run() {
+						if(readSuspended && pendingCount.get() <= maxPendingMessages / 2) {
+							readSuspended = false;
+							if(state == ConnectionState.BODY || state == ConnectionState.HEADERS)
+								key.interestOps(SelectionKey.OP_READ);
+						}
+					}
+				});
+			}
+			if(!pendingFrames.isEmpty())
+				scheduleDispatch();
+		}
+
+		void checkTimeout(long now) {
+			if(state == ConnectionState.CONNECTING || state == ConnectionState.WRITING) {
+				if(getConnectionTimeout() > 0 && now - connectStarted > getConnectionTimeout())
+					connectionFailed(new SocketTimeoutException("Timed out connecting to \"" + endpointUrl + "\""));
+			} else if(!readSuspended && getSubscriptionSocketTimeout() > 0
+					&& now - lastRead > getSubscriptionSocketTimeout()) {
+				connectionFailed(new SocketTimeoutException("Timed out reading from \"" + endpointUrl + "\""));
+			}
+		}
+
+		void connectionFailed(Exception e) {
+			if(active.get())
+				logger.warn("The subscription stream from \"" + endpointUrl + "\" broke", e);
+			streamEnded(e);
+		}
+
+		/**
+		 * Closes the connection and schedules the reconnection if the subscription is active,
+		 * a stream that could not be split into frames counts as a failed attempt
+		 */
+		private void streamEnded(Exception e) {
+			closeChannel();
+			if(!active.get())
+				return;
+			if(!(e instanceof CometMessagingTransportException) 
+					&& (messagesReceived.get() > messagesAtConnect || pendingCount.get() > 0))
+				failedAttempts = 0;
+			if(!isAutoReconnect()) {
+				unsubscribe();
+				return;
+			}
+			if(getMaxReconnectAttempts() >= 0 && failedAttempts >= getMaxReconnectAttempts()) {
+				logger.error("Giving up the subscription to \"" + endpointUrl + "\" after "
+						+ failedAttempts + " attempts to reconnect");
+				unsubscribe();
+				return;
+			}
+			scheduleConnect(getReconnectDelay(failedAttempts++));
+		}
+
+		private void closeChannel() {
+			state = ConnectionState.CLOSED;
+			releaseConnectPermit();
+			if(key != null) {
+				key.cancel();
+				key = null;
+			}
+			if(channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					//ignore
+				}
+				channel = null;
+			}
+			if(parser != null) {
+				parser.close();
+				parser = null;
+			}
+			request = null;
+		}
+
+		private void releaseConnectPermit() {
+			if(holdsConnectPermit) {
+				holdsConnectPermit = false;
+				connectPermits.release();
+			}
+		}
+
+		public String getSubscriptionIdentifier() {
+			return uuid;
+		}
+
+		public boolean unsubscribe() {
+			nioSubscriptions.remove(uuid, this);
+			if(!active.compareAndSet(true, false))
+				return false;
+			pendingFrames.clear();
+			pendingCount.set(0);
+			loop.execute(new Runnable() {
+				public void run() {
+					closeChannel();
+				}
+			});
+			return true;
+		}
+
+		public boolean isActive() {
+			return active.get();
+		}
+
+		public long getMessagesReceived() {
+			return messagesReceived.get();
+		}
+	}
+}
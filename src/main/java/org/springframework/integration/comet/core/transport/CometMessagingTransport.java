@@ -15,6 +15,8 @@
  */
 package org.springframework.integration.comet.core.transport;
 
+import java.util.concurrent.CompletableFuture;
+
 import org.springframework.integration.comet.core.CometMessage;
 import org.springframework.integration.comet.core.CometMessageListener;
 import org.springframework.integration.comet.core.CometSubscription;
@@ -40,6 +42,18 @@ public interface CometMessagingTransport {
 	 */
 	void send(String endpointUrl,String contentType,CometMessage message);
 	
+	/**
+	 * Implementation class will transport this {@link CometMessage} to the endpoint provided
+	 * without blocking the caller, the returned future completes exceptionally with a 
+	 * {@link CometMessagingTransportException} if the message cannot be transported
+	 * 
+	 * @param endpointUrl The endpoint URL to which the message is to be sent
+	 * @param contentType The content type of the request to be sent
+	 * @param message the Comet Message to be posted
+	 * @return the future that completes once the message is transported
+	 */
+	CompletableFuture<Void> sendAsync(String endpointUrl,String contentType,CometMessage message);
+	
 	/**
 	 * Subscribe to the given endpoint URL receive the messages over
 	 * throws {@link CometMessagingTransportException} if the received message is garbled
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.transport;
+
+/**
+ * Decodes the frames of a stream where each message is followed by a delimiter,
+ * e.g. a new line. Empty frames are discarded.
+ *
+ * @author Amol Nayak
+ *
+ */
+public class DelimiterFrameDecoder extends AbstractFrameDecoder {
+
+	private final byte[] delimiter;
+
+	/**
+	 * The number of bytes of the current frame already searched for the delimiter
+	 */
+	private int scanned;
+
+	/**
+	 * @param delimiter
+	 * @param initialCapacity
+	 * @param maxFrameSize
+	 */
+	public DelimiterFrameDecoder(byte[] delimiter, int initialCapacity, int maxFrameSize) {
+		super(initialCapacity, maxFrameSize);
+		if(delimiter == null || delimiter.length == 0)
+			throw new IllegalArgumentException("A non empty delimiter is required");
+		this.delimiter = delimiter.clone();
+	}
+
+	@Override
+	protected int decodeFrame(byte[] buffer, int start, int end, FrameListener listener) {
+		//The delimiter may have been partially received at the end of the last scan
+		int from = Math.max(start, start + scanned - delimiter.length + 1);
+		int index = indexOf(delimiter, from, end);
+		if(index < 0) {
+			scanned = end - start;
+			return 0;
+		}
+		scanned = 0;
+		int length = index - start;
+		if(length > 0)
+			listener.onFrame(buffer, start, length);
+		return length + delimiter.length;
+	}
+
+	@Override
+	protected void resetFrame() {
+		scanned = 0;
+	}
+}
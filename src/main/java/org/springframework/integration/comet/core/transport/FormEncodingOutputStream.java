@@ -0,0 +1,96 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.transport;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * The stream that application/x-www-form-urlencoded encodes the bytes written to it the 
+ * same way as {@link java.net.URLEncoder}, so that a serializer can write the value of a
+ * request parameter directly into the request body. 
+ * 
+ * @author Amol Nayak
+ *
+ */
+class FormEncodingOutputStream extends ByteArrayOutputStream {
+
+	private static final byte[] HEX = {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
+	
+	private static final boolean[] UNRESERVED = new boolean[128];
+	
+	static {
+		for(int i = 'a'; i <= 'z'; i++)
+			UNRESERVED[i] = true;
+		for(int i = 'A'; i <= 'Z'; i++)
+			UNRESERVED[i] = true;
+		for(int i = '0'; i <= '9'; i++)
+			UNRESERVED[i] = true;
+		UNRESERVED['.'] = true;
+		UNRESERVED['-'] = true;
+		UNRESERVED['*'] = true;
+		UNRESERVED['_'] = true;
+	}
+	
+	FormEncodingOutputStream(int initialSize) {
+		super(initialSize);
+	}
+	
+	@Override
+	public void write(int b) {
+		b &= 0xFF;
+		if(b < 128 && UNRESERVED[b]) {
+			super.write(b);
+		} else if(b == ' ') {
+			super.write('+');
+		} else {
+			super.write('%');
+			super.write(HEX[b >> 4]);
+			super.write(HEX[b & 0x0F]);
+		}
+	}
+	
+	@Override
+	public void write(byte[] bytes, int offset, int length) {
+		for(int i = offset; i < offset + length; i++) {
+			if(count + 3 > buf.length)
+				grow(count + 3);
+			int b = bytes[i] & 0xFF;
+			if(b < 128 && UNRESERVED[b]) {
+				buf[count++] = (byte)b;
+			} else if(b == ' ') {
+				buf[count++] = '+';
+			} else {
+				buf[count++] = '%';
+				buf[count++] = HEX[b >> 4];
+				buf[count++] = HEX[b & 0x0F];
+			}
+		}
+	}
+	
+	/**
+	 * Writes the given bytes as is, without encoding them
+	 * @param bytes
+	 */
+	void writeRaw(byte[] bytes) {
+		super.write(bytes, 0, bytes.length);
+	}
+	
+	private void grow(int capacity) {
+		byte[] newBuf = new byte[Math.max(buf.length * 2, capacity)];
+		System.arraycopy(buf, 0, newBuf, 0, count);
+		buf = newBuf;
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.transport;
+
+/**
+ * The ways in which the messages streamed by the endpoint over a long lived
+ * response are separated from each other
+ *
+ * @author Amol Nayak
+ *
+ */
+public enum FramingMode {
+
+	/**
+	 * Messages are JSON documents written one after the other, see {@link JsonFrameDecoder}
+	 */
+	JSON,
+
+	/**
+	 * Each message is followed by a delimiter, see {@link DelimiterFrameDecoder}
+	 */
+	DELIMITER,
+
+	/**
+	 * Each message is preceded by its length in bytes, see {@link LengthPrefixFrameDecoder}
+	 */
+	LENGTH_PREFIX
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.transport;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.springframework.integration.comet.core.transport.AbstractFrameDecoder.FrameListener;
+
+/**
+ * Parses the HTTP response of a streaming subscription from the bytes read in pieces of
+ * any size, as they arrive on a non blocking connection. The status line and the headers
+ * are accumulated and parsed first, the body is then read up to the Content-Length, in the
+ * chunked transfer encoding or till the connection closes, inflated if gzip or deflate
+ * encoded and passed to the frame decoder.
+ *
+ * A parser instance holds the state of one response and is not thread safe.
+ *
+ * @author Amol Nayak
+ *
+ */
+class HttpStreamParser {
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private static final byte[] HEADERS_END = {'\r','\n','\r','\n'};
+
+	private static final int MAX_HEADERS_SIZE = 16 * 1024;
+
+	private enum ChunkState {SIZE, DATA, DATA_END, TRAILER}
+
+	/**
+	 * The fields of the gzip header in order, the deflate data follows them
+	 */
+	private enum GzipState {FIXED, EXTRA_LENGTH, EXTRA, NAME, COMMENT, HEADER_CRC, DATA}
+
+	private static final int GZIP_FHCRC = 2;
+
+	private static final int GZIP_FEXTRA = 4;
+
+	private static final int GZIP_FNAME = 8;
+
+	private static final int GZIP_FCOMMENT = 16;
+
+	/**
+	 * The callback notified of the progress of the response
+	 */
+	interface ResponseListener {
+
+		/**
+		 * Invoked once the headers of a successful response are parsed
+		 *
+		 * @param contentType the content type of the body, null if not given
+		 */
+		void headersParsed(String contentType);
+
+		/**
+		 * Invoked once the whole body is read, not invoked if the body ends only when
+		 * the connection closes
+		 */
+		void bodyEnded();
+	}
+
+	private final AbstractFrameDecoder decoder;
+
+	private final FrameListener frameListener;
+
+	private final ResponseListener responseListener;
+
+	private byte[] headers;
+
+	private int headersLength;
+
+	private boolean inBody;
+
+	private boolean ended;
+
+	private boolean chunked;
+
+	private long remaining;
+
+	private ChunkState chunkState;
+
+	private long chunkSize;
+
+	private int lineLength;
+
+	/**
+	 * Inflates the body of a gzip or deflate encoded stream, null if it is not encoded
+	 */
+	private Inflater inflater;
+
+	private byte[] inflated;
+
+	/**
+	 * The field of the gzip header being read, null if the body is not gzip encoded
+	 */
+	private GzipState gzipState;
+
+	private int gzipFlags;
+
+	/**
+	 * The number of bytes of the current gzip header field read
+	 */
+	private int gzipFieldRead;
+
+	private int gzipExtraLength;
+
+	HttpStreamParser(AbstractFrameDecoder decoder, FrameListener frameListener,
+			ResponseListener responseListener) {
+		this.decoder = decoder;
+		this.frameListener = frameListener;
+		this.responseListener = responseListener;
+	}
+
+	/**
+	 * Parses the next bytes of the response, the bytes are not referenced after the
+	 * method returns and hence the buffer can be reused
+	 *
+	 * @throws IOException if the response is malformed, is not successful or has an
+	 * unsupported content encoding
+	 */
+	void parse(byte[] bytes, int offset, int length) throws IOException {
+		if(ended)
+			return;
+		if(!inBody) {
+			int consumed = readHeaders(bytes, offset, length);
+			if(!inBody)
+				return;
+			offset += consumed;
+			length -= consumed;
+		}
+		if(chunked)
+			processChunked(bytes, offset, length);
+		else
+			processBody(bytes, offset, length);
+	}
+
+	/**
+	 * Releases the inflater, the bytes parsed afterwards are ignored
+	 */
+	void close() {
+		ended = true;
+		if(inflater != null) {
+			inflater.end();
+			inflater = null;
+		}
+		headers = null;
+	}
+
+	/**
+	 * Accumulates the response headers and parses them once complete
+	 * @return the number of bytes consumed
+	 */
+	private int readHeaders(byte[] bytes, int offset, int length) throws IOException {
+		if(headers == null)
+			headers = new byte[Math.max(512, length)];
+		int from = Math.max(0, headersLength - HEADERS_END.length + 1);
+		if(headersLength + length > headers.length) {
+			if(headersLength + length > MAX_HEADERS_SIZE)
+				throw new IOException("Response headers exceed " + MAX_HEADERS_SIZE + " bytes");
+			headers = Arrays.copyOf(headers, Math.min(MAX_HEADERS_SIZE,
+					Math.max(headers.length * 2, headersLength + length)));
+		}
+		System.arraycopy(bytes, offset, headers, headersLength, length);
+		headersLength += length;
+		int end = indexOf(headers, HEADERS_END, from, headersLength);
+		if(end < 0)
+			return length;
+		parseHeaders(new String(headers, 0, end, ASCII));
+		int consumed = length - (headersLength - end - HEADERS_END.length);
+		headers = null;
+		headersLength = 0;
+		return consumed;
+	}
+
+	private void parseHeaders(String responseHeaders) throws IOException {
+		String[] lines = responseHeaders.split("\r\n");
+		String[] statusLine = lines[0].split(" ", 3);
+		int status;
+		try {
+			status = Integer.parseInt(statusLine[1]);
+		} catch (RuntimeException e) {
+			throw new IOException("Invalid status line \"" + lines[0] + "\"");
+		}
+		if(status >= 300)
+			throw new IOException("The endpoint responded with status " + status + " to the subscription");
+		chunked = false;
+		remaining = -1;
+		String contentType = null;
+		String contentEncoding = null;
+		for(int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if(colon <= 0)
+				continue;
+			String name = lines[i].substring(0, colon).trim();
+			String value = lines[i].substring(colon + 1).trim();
+			if("Transfer-Encoding".equalsIgnoreCase(name))
+				chunked = value.toLowerCase().contains("chunked");
+			else if(AbstractCometMessagingTransport.CONTENT_LENGTH.equalsIgnoreCase(name))
+				remaining = Long.parseLong(value);
+			else if(AbstractCometMessagingTransport.CONTENT_TYPE.equalsIgnoreCase(name))
+				contentType = value;
+			else if(AbstractCometMessagingTransport.CONTENT_ENCODING.equalsIgnoreCase(name))
+				contentEncoding = value;
+		}
+		if(contentEncoding != null && !"identity".equalsIgnoreCase(contentEncoding)) {
+			if(AbstractCometMessagingTransport.DEFLATE.equalsIgnoreCase(contentEncoding)) {
+				inflater = new Inflater();
+			} else if(AbstractCometMessagingTransport.GZIP.equalsIgnoreCase(contentEncoding)
+					|| "x-gzip".equalsIgnoreCase(contentEncoding)) {
+				//The header is skipped and the trailer ignored, the deflate data is raw
+				inflater = new Inflater(true);
+				gzipState = GzipState.FIXED;
+			} else {
+				throw new IOException("Unsupported content encoding \"" + contentEncoding + "\"");
+			}
+			inflated = new byte[8192];
+		}
+		chunkState = ChunkState.SIZE;
+		chunkSize = 0;
+		lineLength = 0;
+		inBody = true;
+		responseListener.headersParsed(contentType);
+	}
+
+	private void processBody(byte[] bytes, int offset, int length) throws IOException {
+		if(remaining >= 0) {
+			length = (int)Math.min(length, remaining);
+			remaining -= length;
+		}
+		if(length > 0)
+			decodeBody(bytes, offset, length);
+		if(remaining == 0)
+			endBody();
+	}
+
+	/**
+	 * Passes the bytes of the body to the frame decoder, inflating them first if 
+	 * the stream is compressed
+	 */
+	private void decodeBody(byte[] bytes, int offset, int length) throws IOException {
+		if(inflater == null) {
+			decoder.decode(bytes, offset, length, frameListener);
+			return;
+		}
+		if(gzipState != null && gzipState != GzipState.DATA) {
+			int consumed = readGzipHeader(bytes, offset, length);
+			offset += consumed;
+			length -= consumed;
+			if(length == 0)
+				return;
+		}
+		inflater.setInput(bytes, offset, length);
+		//All the input is consumed before returning as the read buffer is reused
+		while(!inflater.needsInput() && !inflater.finished()) {
+			int count;
+			try {
+				count = inflater.inflate(inflated);
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt deflate stream: " + e.getMessage());
+			}
+			if(count > 0)
+				decoder.decode(inflated, 0, count, frameListener);
+			else if(inflater.needsDictionary())
+				throw new IOException("Corrupt deflate stream: a preset dictionary is required");
+		}
+	}
+
+	/**
+	 * Skips the fields of the gzip header found in the given bytes
+	 * @return the number of bytes consumed
+	 */
+	private int readGzipHeader(byte[] bytes, int offset, int length) throws IOException {
+		int end = offset + length;
+		int index = offset;
+		while(index < end && gzipState != GzipState.DATA) {
+			int b = bytes[index++] & 0xff;
+			switch (gzipState) {
+				case FIXED:
+					//The magic number and the deflate compression method
+					if((gzipFieldRead == 0 && b != 0x1f) || (gzipFieldRead == 1 && b != 0x8b)
+							|| (gzipFieldRead == 2 && b != 8))
+						throw new IOException("Corrupt gzip stream: invalid header");
+					if(gzipFieldRead == 3)
+						gzipFlags = b;
+					if(++gzipFieldRead == 10)
+						nextGzipField();
+					break;
+				case EXTRA_LENGTH:
+					gzipExtraLength |= b << (8 * gzipFieldRead);
+					if(++gzipFieldRead == 2)
+						nextGzipField();
+					break;
+				case EXTRA:
+					if(++gzipFieldRead == gzipExtraLength)
+						nextGzipField();
+					break;
+				case NAME:
+				case COMMENT:
+					//Zero terminated
+					if(b == 0)
+						nextGzipField();
+					break;
+				case HEADER_CRC:
+					if(++gzipFieldRead == 2)
+						nextGzipField();
+					break;
+				default:
+					break;
+			}
+		}
+		return index - offset;
+	}
+
+	/**
+	 * Moves to the next field of the gzip header present as per its flags
+	 */
+	private void nextGzipField() {
+		gzipFieldRead = 0;
+		GzipState[] states = GzipState.values();
+		for(int i = gzipState.ordinal() + 1; i < states.length; i++) {
+			if(isGzipFieldPresent(states[i])) {
+				gzipState = states[i];
+				return;
+			}
+		}
+	}
+
+	private boolean isGzipFieldPresent(GzipState field) {
+		switch (field) {
+			case EXTRA_LENGTH:
+				return (gzipFlags & GZIP_FEXTRA) != 0;
+			case EXTRA:
+				return (gzipFlags & GZIP_FEXTRA) != 0 && gzipExtraLength > 0;
+			case NAME:
+				return (gzipFlags & GZIP_FNAME) != 0;
+			case COMMENT:
+				return (gzipFlags & GZIP_FCOMMENT) != 0;
+			case HEADER_CRC:
+				return (gzipFlags & GZIP_FHCRC) != 0;
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * Decodes the chunked transfer encoding passing the chunk data to the frame decoder
+	 */
+	private void processChunked(byte[] bytes, int offset, int length) throws IOException {
+		int end = offset + length;
+		int index = offset;
+		while(index < end && !ended) {
+			switch (chunkState) {
+				case SIZE:
+					byte b = bytes[index++];
+					if(b == '\n') {
+						lineLength = 0;
+						if(chunkSize == 0) {
+							chunkState = ChunkState.TRAILER;
+						} else {
+							chunkState = ChunkState.DATA;
+							remaining = chunkSize;
+						}
+					} else if(b != '\r' && lineLength >= 0) {
+						int digit = Character.digit(b, 16);
+						if(digit < 0)
+							//Chunk extension, ignored till the end of the line
+							lineLength = -1;
+						else
+							chunkSize = chunkSize * 16 + digit;
+					}
+					break;
+				case DATA:
+					int count = (int)Math.min(end - index, remaining);
+					decodeBody(bytes, index, count);
+					index += count;
+					remaining -= count;
+					if(remaining == 0)
+						chunkState = ChunkState.DATA_END;
+					break;
+				case DATA_END:
+					if(bytes[index++] == '\n') {
+						chunkState = ChunkState.SIZE;
+						chunkSize = 0;
+						lineLength = 0;
+					}
+					break;
+				case TRAILER:
+					byte t = bytes[index++];
+					if(t == '\n') {
+						if(lineLength == 0) {
+							endBody();
+							return;
+						}
+						lineLength = 0;
+					} else if(t != '\r') {
+						lineLength++;
+					}
+					break;
+			}
+		}
+	}
+
+	private void endBody() {
+		ended = true;
+		responseListener.bodyEnded();
+	}
+
+	private static int indexOf(byte[] bytes, byte[] pattern, int from, int to) {
+		outer:
+		for(int i = from; i <= to - pattern.length; i++) {
+			for(int j = 0; j < pattern.length; j++) {
+				if(bytes[i + j] != pattern[j])
+					continue outer;
+			}
+			return i;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.transport;
+
+/**
+ * Decodes the frames of a stream of JSON documents written one after the other without
+ * any delimiter, which is how a JSON serialized message is broadcast by the endpoint.
+ * The extent of a frame is found by matching the braces and brackets of the document
+ * outside of the string literals. Any bytes before the start of a document are discarded.
+ *
+ * @author Amol Nayak
+ *
+ */
+public class JsonFrameDecoder extends AbstractFrameDecoder {
+
+	/**
+	 * The number of bytes of the current frame already scanned
+	 */
+	private int scanned;
+
+	private int depth;
+
+	private boolean inString;
+
+	private boolean escaped;
+
+	/**
+	 * @param initialCapacity
+	 * @param maxFrameSize
+	 */
+	public JsonFrameDecoder(int initialCapacity, int maxFrameSize) {
+		super(initialCapacity, maxFrameSize);
+	}
+
+	@Override
+	protected int decodeFrame(byte[] buffer, int start, int end, FrameListener listener) {
+		if(scanned == 0) {
+			//Discard anything that is not the start of a document
+			int index = start;
+			while(index < end && buffer[index] != '{' && buffer[index] != '[')
+				index++;
+			if(index > start)
+				return index - start;
+		}
+		for(int i = start + scanned; i < end; i++) {
+			byte b = buffer[i];
+			if(inString) {
+				if(escaped)
+					escaped = false;
+				else if(b == '\\')
+					escaped = true;
+				else if(b == '"')
+					inString = false;
+			} else if(b == '"') {
+				inString = true;
+			} else if(b == '{' || b == '[') {
+				depth++;
+			} else if(b == '}' || b == ']') {
+				if(--depth == 0) {
+					int length = i - start + 1;
+					resetFrame();
+					listener.onFrame(buffer, start, length);
+					return length;
+				}
+			}
+		}
+		scanned = end - start;
+		return 0;
+	}
+
+	@Override
+	protected void resetFrame() {
+		scanned = 0;
+		depth = 0;
+		inString = false;
+		escaped = false;
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.transport;
+
+/**
+ * Decodes the frames of a stream where each message is preceded by its length in bytes
+ * as ASCII digits and a separator, e.g. <code>12|{"payload":1}</code>. The length counts
+ * the encoded bytes of the message and not its characters, a message with multibyte
+ * characters has a length greater than that of the String it is decoded to. The streams
+ * prefixing the messages with their number of characters should be read with another 
+ * {@link FramingMode}.
+ *
+ * @author Amol Nayak
+ *
+ */
+public class LengthPrefixFrameDecoder extends AbstractFrameDecoder {
+
+	private final byte separator;
+
+	/**
+	 * The length of the current frame, -1 if the header is not yet read
+	 */
+	private int frameLength = -1;
+
+	/**
+	 * The number of bytes of the length header including the separator
+	 */
+	private int headerLength;
+
+	/**
+	 * The maximum length of a message, the buffer also makes room for the length header
+	 */
+	private final int maxFrameSize;
+
+	/**
+	 * @param separator
+	 * @param initialCapacity
+	 * @param maxFrameSize the maximum length of a message, excluding its length header
+	 */
+	public LengthPrefixFrameDecoder(byte separator, int initialCapacity, int maxFrameSize) {
+		super(initialCapacity, (int)Math.min(Integer.MAX_VALUE, 
+				(long)maxFrameSize + String.valueOf(maxFrameSize).length() + 1));
+		if(separator >= '0' && separator <= '9')
+			throw new IllegalArgumentException("The separator cannot be a digit");
+		this.separator = separator;
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	@Override
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	@Override
+	protected int decodeFrame(byte[] buffer, int start, int end, FrameListener listener) {
+		if(frameLength < 0) {
+			long length = 0;
+			int index = start;
+			for(; index < end && buffer[index] != separator; index++) {
+				byte b = buffer[index];
+				if(b < '0' || b > '9')
+					throw new CometMessagingTransportException("Expected the length of the frame but found \""
+							+ (char)b + "\"", null, null);
+				length = length * 10 + (b - '0');
+				if(length > getMaxFrameSize())
+					throw new CometMessagingTransportException("Frame exceeds the maximum frame size of "
+							+ getMaxFrameSize() + " bytes", null, null);
+			}
+			if(index == end)
+				return 0;
+			if(index == start)
+				throw new CometMessagingTransportException("Missing the length of the frame", null, null);
+			frameLength = (int)length;
+			headerLength = index - start + 1;
+		}
+		if(end - start < headerLength + frameLength)
+			return 0;
+		int consumed = headerLength + frameLength;
+		int offset = start + headerLength;
+		int length = frameLength;
+		resetFrame();
+		listener.onFrame(buffer, offset, length);
+		return consumed;
+	}
+
+	@Override
+	protected void resetFrame() {
+		frameLength = -1;
+		headerLength = 0;
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.integration.comet.core.CometMessage;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Accumulates the messages published to the same endpoint, content type and charset
+ * and sends them as one request once the batch has maxBatchSize messages or the
+ * oldest message in it has waited maxBatchDelay milliseconds, whichever happens first.
+ *
+ * @author Amol Nayak
+ *
+ */
+class PublishBatcher {
+
+	private final AbstractCometMessagingTransport transport;
+
+	private final int maxBatchSize;
+
+	private final long maxBatchDelay;
+
+	private final ScheduledExecutorService scheduler;
+
+	private final ConcurrentMap<String, Batch> batches = new ConcurrentHashMap<String, Batch>();
+
+	PublishBatcher(AbstractCometMessagingTransport transport,int maxBatchSize,long maxBatchDelay) {
+		this.transport = transport;
+		this.maxBatchSize = maxBatchSize;
+		this.maxBatchDelay = maxBatchDelay;
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("comet-batch-");
+		threadFactory.setDaemon(true);
+		scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+	}
+
+	/**
+	 * Adds the message to the batch of its endpoint, the message is serialized and
+	 * encoded on the calling thread.
+	 *
+	 * @return the future that completes once the batch containing the message is sent
+	 */
+	CompletableFuture<Void> add(String endpointUrl,String contentType,String charset,CometMessage message) {
+		byte[] requestMessage = transport.encode(endpointUrl, contentType, charset, message);
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		String key = endpointUrl + "|" + contentType + "|" + charset;
+		while(true) {
+			Batch batch = batches.get(key);
+			if(batch == null) {
+				batch = new Batch(key, endpointUrl, contentType, charset);
+				Batch existing = batches.putIfAbsent(key, batch);
+				if(existing != null)
+					batch = existing;
+			}
+			boolean full = false;
+			synchronized (batch) {
+				if(batch.closed)
+					//Already being sent, a new batch will replace it
+					continue;
+				batch.add(requestMessage, message, future);
+				if(batch.size() == 1)
+					scheduleFlush(batch);
+				if(batch.size() >= maxBatchSize) {
+					batch.closed = true;
+					batches.remove(key, batch);
+					full = true;
+				}
+			}
+			if(full)
+				dispatch(batch);
+			return future;
+		}
+	}
+
+	/**
+	 * Sends all the pending batches and stops the scheduler
+	 */
+	void shutdown() {
+		scheduler.shutdownNow();
+		for(Batch batch:batches.values())
+			flush(batch);
+	}
+
+	private void scheduleFlush(final Batch batch) {
+		try {
+			scheduler.schedule(new Runnable() {
+				public void run() {
+					flush(batch);
+				}
+			}, maxBatchDelay, TimeUnit.MILLISECONDS);
+		} catch (RuntimeException e) {
+			//Scheduler is shut down, the batch will be sent by shutdown
+		}
+	}
+
+	private void flush(Batch batch) {
+		synchronized (batch) {
+			if(batch.closed)
+				return;
+			batch.closed = true;
+			batches.remove(batch.key, batch);
+		}
+		dispatch(batch);
+	}
+
+	private void dispatch(final Batch batch) {
+		try {
+			transport.getSendExecutor().execute(new Runnable() {
+				public void run() {
+					try {
+						transport.sendBatch(batch.endpointUrl,
+								transport.createRequestHeaders(batch.contentType),
+								batch.requestMessages, batch.charset, batch.messages);
+					} catch (Throwable e) {
+						batch.fail(e);
+						return;
+					}
+					batch.complete();
+				}
+			});
+		} catch (TaskRejectedException e) {
+			batch.fail(new CometMessagingTransportException(
+					"The send executor rejected the batch", e, batch.endpointUrl, null));
+		}
+	}
+
+	/**
+	 * The messages accumulated for one endpoint, content type and charset
+	 */
+	private class Batch {
+
+		private final String key;
+
+		private final String endpointUrl;
+
+		private final String contentType;
+
+		private final String charset;
+
+		private final List<byte[]> requestMessages = new ArrayList<byte[]>(maxBatchSize);
+
+		private final List<CometMessage> messages = new ArrayList<CometMessage>(maxBatchSize);
+
+		private final List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>(maxBatchSize);
+
+		private boolean closed;
+
+		Batch(String key, String endpointUrl, String contentType, String charset) {
+			this.key = key;
+			this.endpointUrl = endpointUrl;
+			this.contentType = contentType;
+			this.charset = charset;
+		}
+
+		void add(byte[] requestMessage,CometMessage message,CompletableFuture<Void> future) {
+			requestMessages.add(requestMessage);
+			messages.add(message);
+			futures.add(future);
+		}
+
+		int size() {
+			return futures.size();
+		}
+
+		void complete() {
+			for(CompletableFuture<Void> future:futures)
+				future.complete(null);
+		}
+
+		void fail(Throwable e) {
+			for(CompletableFuture<Void> future:futures)
+				future.completeExceptionally(e);
+		}
+	}
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.transport;
+
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.websocket.WebSocket;
+import org.eclipse.jetty.websocket.WebSocket.Connection;
+import org.springframework.integration.comet.core.CometMessage;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Keeps up to maxConnectionsPerEndpoint open web socket connections per endpoint for
+ * sending the messages. A send uses the open connection with the fewest sends in progress,
+ * a new connection is opened only if all the open ones are busy and the limit is not
+ * reached. Connections closed by the peer or failing a send are discarded and replaced
+ * on demand, and a periodic check discards the connections that are closed or have
+ * not been used for idleTimeout milliseconds.
+ *
+ * @author Amol Nayak
+ *
+ */
+class WebSocketConnectionPool {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final CometMessagingJettyWebSocketTransport transport;
+
+	private final int maxConnectionsPerEndpoint;
+
+	private final long idleTimeout;
+
+	private final ScheduledExecutorService scheduler;
+
+	private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+
+	private volatile boolean shutdown;
+
+	WebSocketConnectionPool(CometMessagingJettyWebSocketTransport transport,
+			int maxConnectionsPerEndpoint, long idleTimeout, long healthCheckInterval) {
+		this.transport = transport;
+		this.maxConnectionsPerEndpoint = maxConnectionsPerEndpoint;
+		this.idleTimeout = idleTimeout;
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("comet-ws-pool-");
+		threadFactory.setDaemon(true);
+		scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				checkConnections();
+			}
+		}, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends the messages in order over one of the pooled connections to the endpoint,
+	 * a send failing on a connection that was already open is retried once on a new one
+	 *
+	 * @param endpointUrl
+	 * @param requestMessages the bytes of the frames, UTF-8 text for the text frames
+	 * @param binary whether the frames are binary
+	 * @param messages the messages being sent, used for reporting failures
+	 */
+	void send(String endpointUrl, List<byte[]> requestMessages, boolean binary, List<CometMessage> messages) {
+		int sent = 0;
+		boolean retried = false;
+		while(true) {
+			PooledConnection connection = acquire(endpointUrl, messages.get(sent));
+			boolean reused = connection.sends > 0;
+			try {
+				synchronized (connection) {
+					while(sent < requestMessages.size()) {
+						byte[] frame = requestMessages.get(sent);
+						if(binary)
+							connection.connection.sendMessage(frame, 0, frame.length);
+						else
+							connection.connection.sendMessage(new String(frame, UTF_8));
+						sent++;
+					}
+					connection.sends++;
+					connection.lastUsed = System.currentTimeMillis();
+				}
+				return;
+			} catch (Exception e) {
+				discard(endpointUrl, connection);
+				if(reused && !retried) {
+					//The connection might have been closed while idle
+					retried = true;
+					continue;
+				}
+				transport.logger.error("Exception occurred while transporting the message over the web socket", e);
+				throw new CometMessagingTransportException(e.getMessage(), e, endpointUrl, messages.get(sent));
+			} finally {
+				connection.inFlight.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of open connections to the given endpoint
+	 */
+	int getConnectionCount(String endpointUrl) {
+		Endpoint endpoint = endpoints.get(endpointUrl);
+		return endpoint == null ? 0 : endpoint.connections.size();
+	}
+	
+	/**
+	 * Gets the number of open connections to all the endpoints
+	 */
+	int getConnectionCount() {
+		int count = 0;
+		for(Endpoint endpoint:endpoints.values())
+			count += endpoint.connections.size();
+		return count;
+	}
+
+	/**
+	 * Closes all the pooled connections and stops the health check
+	 */
+	void shutdown() {
+		shutdown = true;
+		scheduler.shutdownNow();
+		for(Endpoint endpoint:endpoints.values()) {
+			for(PooledConnection connection:endpoint.connections)
+				connection.connection.disconnect();
+			endpoint.connections.clear();
+		}
+		endpoints.clear();
+	}
+
+	/**
+	 * Picks the least loaded open connection starting at a rotating index so that the
+	 * equally loaded connections are used in turn, opening a new connection if all are
+	 * busy. The in flight count of the returned connection is incremented.
+	 * 
+	 * The slot of a new connection is reserved holding the lock of the endpoint, the 
+	 * handshake is made without it so that the sends over the open connections and the
+	 * other opens are not held up. A send finding neither an open connection nor a free
+	 * slot waits for the connections being opened.
+	 */
+	private PooledConnection acquire(String endpointUrl, CometMessage message) {
+		if(shutdown)
+			throw new CometMessagingTransportException("The transport is destroyed", endpointUrl, message);
+		Endpoint endpoint = endpoints.get(endpointUrl);
+		if(endpoint == null) {
+			endpoint = new Endpoint();
+			Endpoint existing = endpoints.putIfAbsent(endpointUrl, endpoint);
+			if(existing != null)
+				endpoint = existing;
+		}
+		while(true) {
+			PooledConnection selected = select(endpoint);
+			if(selected == null || (selected.inFlight.get() > 0
+					&& endpoint.connections.size() + endpoint.opening < maxConnectionsPerEndpoint)) {
+				boolean reserved = false;
+				synchronized (endpoint) {
+					//Check again as another thread might have opened one meanwhile
+					if(endpoint.connections.size() + endpoint.opening < maxConnectionsPerEndpoint) {
+						endpoint.opening++;
+						reserved = true;
+					} else if(selected == null) {
+						awaitOpen(endpoint, endpointUrl, message);
+					}
+				}
+				if(reserved)
+					return openReserved(endpointUrl, endpoint, message);
+				continue;
+			}
+			selected.inFlight.incrementAndGet();
+			if(selected.connection.isOpen())
+				return selected;
+			selected.inFlight.decrementAndGet();
+			discard(endpointUrl, selected);
+		}
+	}
+
+	/**
+	 * Opens a connection in the slot reserved, releasing the slot and waking up the 
+	 * sends waiting for it whether the connection could be opened or not
+	 */
+	private PooledConnection openReserved(String endpointUrl, Endpoint endpoint, CometMessage message) {
+		PooledConnection opened = null;
+		try {
+			opened = open(endpointUrl, endpoint, message);
+			opened.inFlight.incrementAndGet();
+		} finally {
+			synchronized (endpoint) {
+				endpoint.opening--;
+				if(opened != null)
+					endpoint.connections.add(opened);
+				endpoint.notifyAll();
+			}
+		}
+		if(shutdown) {
+			//Not closed by the shutdown as it was not pooled yet
+			opened.connection.disconnect();
+			throw new CometMessagingTransportException("The transport is destroyed", endpointUrl, message);
+		}
+		return opened;
+	}
+
+	/**
+	 * Waits, holding the lock of the endpoint, while the connections are being opened
+	 * and none is open yet
+	 */
+	private void awaitOpen(Endpoint endpoint, String endpointUrl, CometMessage message) {
+		try {
+			while(endpoint.opening > 0 && endpoint.connections.isEmpty())
+				endpoint.wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CometMessagingTransportException("Interrupted while waiting for a connection to be opened", 
+					e, endpointUrl, message);
+		}
+	}
+
+	private PooledConnection select(Endpoint endpoint) {
+		List<PooledConnection> connections = endpoint.connections;
+		int size = connections.size();
+		if(size == 0)
+			return null;
+		int start = (endpoint.next.getAndIncrement() & Integer.MAX_VALUE) % size;
+		PooledConnection selected = null;
+		int minInFlight = Integer.MAX_VALUE;
+		for(int i = 0; i < size; i++) {
+			PooledConnection connection;
+			try {
+				connection = connections.get((start + i) % size);
+			} catch (IndexOutOfBoundsException e) {
+				//Discarded concurrently
+				break;
+			}
+			int inFlight = connection.inFlight.get();
+			if(inFlight < minInFlight) {
+				minInFlight = inFlight;
+				selected = connection;
+				if(inFlight == 0)
+					break;
+			}
+		}
+		return selected;
+	}
+
+	private PooledConnection open(final String endpointUrl, final Endpoint endpoint, CometMessage message) {
+		final PooledConnection pooled = new PooledConnection();
+		pooled.connection = transport.openConnection(endpointUrl, new WebSocket.OnTextMessage() {
+
+			public void onOpen(Connection connection) {
+
+			}
+
+			public void onClose(int closeCode, String closeMessage) {
+				endpoint.connections.remove(pooled);
+			}
+
+			public void onMessage(String message) {
+
+			}
+		}, message);
+		pooled.lastUsed = System.currentTimeMillis();
+		return pooled;
+	}
+
+	private void discard(String endpointUrl, PooledConnection connection) {
+		Endpoint endpoint = endpoints.get(endpointUrl);
+		if(endpoint != null)
+			endpoint.connections.remove(connection);
+		connection.connection.disconnect();
+	}
+
+	/**
+	 * Discards the connections that are closed or idle for longer than the idle timeout
+	 */
+	private void checkConnections() {
+		long now = System.currentTimeMillis();
+		for(Endpoint endpoint:endpoints.values()) {
+			for(PooledConnection connection:endpoint.connections) {
+				if(!connection.connection.isOpen()) {
+					endpoint.connections.remove(connection);
+				} else if(idleTimeout > 0 && connection.inFlight.get() == 0
+						&& now - connection.lastUsed > idleTimeout) {
+					endpoint.connections.remove(connection);
+					connection.connection.disconnect();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The connections open to one endpoint
+	 */
+	private static class Endpoint {
+
+		private final List<PooledConnection> connections = new CopyOnWriteArrayList<PooledConnection>();
+
+		private final AtomicInteger next = new AtomicInteger();
+
+		/**
+		 * The number of connections being opened, updated holding the lock of the endpoint
+		 */
+		private volatile int opening;
+	}
+
+	private static class PooledConnection {
+
+		private Connection connection;
+
+		/**
+		 * The number of sends using or waiting for this connection
+		 */
+		private final AtomicInteger inFlight = new AtomicInteger();
+
+		/**
+		 * The number of sends completed, updated holding the lock of the connection
+		 */
+		private volatile long sends;
+
+		private volatile long lastUsed;
+	}
+}
@@ -20,6 +20,7 @@ import javax.servlet.Servlet;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.eclipse.jetty.webapp.WebAppContext;
 
 /**
@@ -47,6 +48,15 @@ public class EmbeddedCometServer {
 		server = new Server(port);
 	}
 	
+	/**
+	 * Initializes the server with a pool of at most maxThreads threads serving the requests,
+	 * a port 0 picks an ephemeral port, see {@link #getPort()}
+	 */
+	public void initialize(int port, int maxThreads) {
+		server = new Server(port);
+		server.setThreadPool(new QueuedThreadPool(maxThreads));
+	}
+	
 	public void addServlet(Class<Servlet> servlet,String contextPath,String urlMapping) {
 		ServletContextHandler handler = new ServletContextHandler(ServletContextHandler.SESSIONS);
 		handler.addServlet(new ServletHolder(servlet), urlMapping);
@@ -81,4 +91,11 @@ public class EmbeddedCometServer {
 	public void stop() throws Exception {
 		server.stop();
 	}
+	
+	/**
+	 * The port the server listens on, the actual port once started if initialized with port 0
+	 */
+	public int getPort() {
+		return server.getConnectors()[0].getLocalPort();
+	}
 }
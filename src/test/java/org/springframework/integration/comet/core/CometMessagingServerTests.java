@@ -0,0 +1,149 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.integration.comet.core.providers.CometServiceProvider;
+import org.springframework.integration.comet.core.serializers.CometMessageJSONSerializer;
+import org.springframework.integration.comet.core.serializers.CometMessageSerializer;
+import org.springframework.integration.comet.core.serializers.CometMessageSmileSerializer;
+
+/**
+ * Tests the messages published to the {@link CometMessagingServer} as raw bodies, against
+ * stubs of the servlet request and response
+ * 
+ * @author Amol Nayak
+ *
+ */
+public class CometMessagingServerTests {
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static final String SMILE = "application/x-jackson-smile";
+	
+	private final List<CometMessage> broadcasts = new ArrayList<CometMessage>();
+	
+	private CometMessagingServer<Object> server;
+	
+	@Before
+	public void setUp() {
+		server = new CometMessagingServer<Object>();
+		server.setSerializerMap(Collections.<String, CometMessageSerializer>singletonMap(
+				SMILE, new CometMessageSmileSerializer()));
+		server.setCometProvider(new CometServiceProvider() {
+			public void receiveSubscription(String topic, HttpServletRequest request, 
+					HttpServletResponse response) {
+				
+			}
+			
+			public void broadcast(String topic, CometMessage message) {
+				assertEquals("topic", topic);
+				broadcasts.add(message);
+			}
+		});
+	}
+	
+	@Test
+	public void rawSmilePublishIsBroadcast() throws Exception {
+		CometMessage message = new CometMessage(null, "\u00e9t\u00e9", String.class.getName());
+		byte[] body = new CometMessageSmileSerializer().serialize(message).getBytes("ISO-8859-1");
+		assertEquals(HttpServletResponse.SC_OK, publish(SMILE, body));
+		assertEquals(1, broadcasts.size());
+		assertEquals("\u00e9t\u00e9", broadcasts.get(0).getPayload());
+	}
+	
+	@Test
+	public void rawJsonPublishIsBroadcast() throws Exception {
+		CometMessage message = new CometMessage(null, "\u00e9t\u00e9", String.class.getName());
+		byte[] body = new CometMessageJSONSerializer().serialize(message).getBytes(UTF8);
+		assertEquals(HttpServletResponse.SC_OK, publish("application/json; charset=UTF-8", body));
+		assertEquals(1, broadcasts.size());
+		assertEquals("\u00e9t\u00e9", broadcasts.get(0).getPayload());
+	}
+	
+	@Test
+	public void rawPublishOfAnUnknownContentTypeIsRejected() throws Exception {
+		assertEquals(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, publish("text/xml", "<a/>".getBytes(UTF8)));
+		assertTrue(broadcasts.isEmpty());
+		assertEquals(1, server.getRejectedPublishCount());
+	}
+	
+	/**
+	 * Publishes the body to the topic, returns the status responded
+	 */
+	private int publish(final String contentType, byte[] body) throws IOException {
+		final ByteArrayInputStream in = new ByteArrayInputStream(body);
+		final ServletInputStream servletIn = new ServletInputStream() {
+			@Override
+			public int read() throws IOException {
+				return in.read();
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return in.read(b, off, len);
+			}
+		};
+		final int contentLength = body.length;
+		HttpServletRequest request = (HttpServletRequest)Proxy.newProxyInstance(getClass().getClassLoader(), 
+				new Class<?>[]{HttpServletRequest.class}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if("getRequestURI".equals(name))
+					return "/pubsub/topic";
+				if("getMethod".equals(name))
+					return "POST";
+				if("getContentType".equals(name))
+					return contentType;
+				if("getContentLength".equals(name))
+					return contentLength;
+				if("getInputStream".equals(name))
+					return servletIn;
+				return null;
+			}
+		});
+		final AtomicInteger status = new AtomicInteger();
+		HttpServletResponse response = (HttpServletResponse)Proxy.newProxyInstance(getClass().getClassLoader(), 
+				new Class<?>[]{HttpServletResponse.class}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if("sendError".equals(method.getName()) || "setStatus".equals(method.getName()))
+					status.set((Integer)args[0]);
+				return null;
+			}
+		});
+		server.receivePublish(request, response);
+		return status.get();
+	}
+}
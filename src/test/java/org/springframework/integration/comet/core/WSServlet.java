@@ -16,9 +16,8 @@
 package org.springframework.integration.comet.core;
 
 import java.io.IOException;
-import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -36,7 +35,7 @@ import org.eclipse.jetty.websocket.WebSocketFactory;
 public class WSServlet extends HttpServlet {
 	
 	private WebSocketFactory wsFactory;
-	private final Set<EchoWebSocket> members = new HashSet<EchoWebSocket>(20);
+	private final Set<EchoWebSocket> members = new CopyOnWriteArraySet<EchoWebSocket>();
 	/**
 	 * 
 	 */
@@ -72,23 +71,18 @@ public class WSServlet extends HttpServlet {
 	class EchoWebSocket implements WebSocket.OnTextMessage {
 
 		private Connection conn;
-		private ReentrantLock lock = new ReentrantLock();
 
 		public void onClose(int closeCode, String message) {
-			lock.lock();
 			members.remove(this);
-			lock.unlock();
 		}
 
 		public void onOpen(Connection conn) {
 			this.conn = conn;
-			lock.lock();
 			members.add(this);
-			lock.unlock();
 		}
 
 		public void onMessage(String message) {
-			lock.lock();
+			//Iterates a snapshot, no lock is held while sending
 			for(EchoWebSocket sock:members) {		
 				try {
 					sock.conn.sendMessage(message);
@@ -96,7 +90,6 @@ public class WSServlet extends HttpServlet {
 					e.printStackTrace();
 				}
 			}
-			lock.unlock();
 		}	
 	}
 }
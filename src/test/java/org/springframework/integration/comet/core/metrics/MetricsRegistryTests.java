@@ -0,0 +1,108 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.integration.comet.core.CometMessage;
+import org.springframework.integration.comet.core.CometMessageListener;
+import org.springframework.integration.comet.core.CometSubscription;
+import org.springframework.integration.comet.core.metrics.SimpleMetricsRegistry.SimpleHistogram;
+import org.springframework.integration.comet.core.transport.AbstractCometMessagingTransport;
+
+/**
+ * Tests the in memory metrics registry and the metrics recorded by the transport
+ * 
+ * @author Amol Nayak
+ *
+ */
+public class MetricsRegistryTests {
+
+	@Test
+	public void metersIdentifiedByNameAndTags() {
+		SimpleMetricsRegistry registry = new SimpleMetricsRegistry();
+		assertSame(registry.counter("sent", "transport", "a"), registry.counter("sent", "transport", "a"));
+		registry.counter("sent", "transport", "a").add(3);
+		registry.counter("sent", "transport", "b").increment();
+		assertEquals(3, registry.getCount("sent", "transport", "a"));
+		assertEquals(1, registry.getCount("sent", "transport", "b"));
+		assertEquals("sent{transport=a}", SimpleMetricsRegistry.getMeterId("sent", "transport", "a"));
+	}
+	
+	@Test
+	public void histogramPercentilesBoundedByTheirBucket() {
+		SimpleMetricsRegistry registry = new SimpleMetricsRegistry();
+		MetricsRegistry.Histogram histogram = registry.histogram("latency");
+		for(int i = 1; i <= 100; i++)
+			histogram.record(i);
+		SimpleHistogram recorded = registry.getHistogram("latency");
+		assertEquals(100, recorded.getCount());
+		assertEquals(5050, recorded.getSum());
+		assertEquals(100, recorded.getMax());
+		//The values below 64 have a bucket of their own
+		assertEquals(50, recorded.getPercentile(0.5));
+		assertEquals(99, recorded.getPercentile(0.99));
+		
+		MetricsRegistry.Histogram latency = registry.histogram("latency", "topic", "news");
+		for(long i = 1; i <= 1000; i++)
+			latency.record(i * 1000000);
+		long median = registry.getHistogram("latency", "topic", "news").getPercentile(0.5);
+		//Within the 1/32 relative error of the buckets
+		assertTrue(median >= 500000000 && median <= 500000000 + 500000000 / 32);
+	}
+	
+	@Test
+	public void transportRecordsTheSends() throws Exception {
+		SimpleMetricsRegistry registry = new SimpleMetricsRegistry();
+		StubTransport transport = new StubTransport();
+		transport.setMetricsRegistry(registry);
+		transport.setMetricsName("stub");
+		transport.initializeTransport();
+		CometMessage message = new CometMessage();
+		message.setPayload("payload");
+		transport.send("http://localhost/pubsub/topic", "application/json", message);
+		transport.send("http://localhost/pubsub/topic", "application/json", message);
+		SimpleHistogram latency = registry.getHistogram(MetricNames.TRANSPORT_PUBLISH_LATENCY, "transport", "stub");
+		assertEquals(2, latency.getCount());
+		assertEquals(2, registry.getHistogram(MetricNames.TRANSPORT_SERIALIZATION_TIME, "transport", "stub").getCount());
+		assertEquals(2 * transport.lastRequestMessage.length, 
+				registry.getCount(MetricNames.TRANSPORT_BYTES_OUT, "transport", "stub"));
+		Map<String, Long> values = registry.getValues();
+		assertTrue(values.containsKey(SimpleMetricsRegistry.getMeterId(MetricNames.TRANSPORT_IN_FLIGHT_SENDS, "transport", "stub")));
+		transport.destroyTransport();
+	}
+	
+	private static class StubTransport extends AbstractCometMessagingTransport {
+		
+		private byte[] lastRequestMessage;
+
+		public CometSubscription subscribe(String endpointUrl, String expectedContentType, 
+				String expectedEncoding, CometMessageListener<CometMessage> listener) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		protected void doSend(String endpointString, Map<String, String> requestHeaders, 
+				byte[] requestMessage, String contentEncoding, CometMessage message) {
+			lastRequestMessage = requestMessage;
+		}
+	}
+}
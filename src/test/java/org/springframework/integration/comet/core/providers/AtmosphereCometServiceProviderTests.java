@@ -0,0 +1,543 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.providers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.integration.comet.core.CometHeaderValueContainer;
+import org.springframework.integration.comet.core.CometMessage;
+import org.springframework.integration.comet.core.serializers.CometMessageSerializer;
+import org.springframework.integration.comet.core.serializers.CometMessageSmileSerializer;
+import org.springframework.integration.comet.core.transport.AbstractFrameDecoder.FrameListener;
+import org.springframework.integration.comet.core.transport.FramingMode;
+import org.springframework.integration.comet.core.transport.LengthPrefixFrameDecoder;
+
+/**
+ * Tests the fan out of the {@link AtmosphereCometServiceProvider} to subscribers whose 
+ * requests are not served by atmosphere, each subscription holding its own thread, 
+ * against stubs of the servlet request and response
+ * 
+ * @author Amol Nayak
+ *
+ */
+public class AtmosphereCometServiceProviderTests {
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static final Pattern PAYLOAD = Pattern.compile("\"payload\":\"([^\"]*)\"");
+	
+	private static final String TOPIC = "topic";
+	
+	private static final String SMILE = "application/x-jackson-smile";
+	
+	private AtmosphereCometServiceProvider provider;
+	
+	private final List<Thread> subscriptions = new ArrayList<Thread>();
+	
+	@After
+	public void tearDown() throws Exception {
+		if(provider != null)
+			provider.destroy();
+		for(Thread subscription:subscriptions)
+			subscription.join(5000);
+	}
+	
+	@Test
+	public void subscriberReceivesBroadcasts() throws Exception {
+		provider = createProvider();
+		final SubscriberStream out = new SubscriberStream(null, false);
+		subscribe(TOPIC, null, out);
+		provider.broadcast(TOPIC, createMessage("a", null));
+		provider.broadcast(TOPIC, createMessage("b", null));
+		provider.broadcast("other", createMessage("c", null));
+		await(new Callable<Boolean>() {
+			public Boolean call() {
+				return out.getPayloads().size() == 2;
+			}
+		});
+		assertEquals(Arrays.asList("a", "b"), out.getPayloads());
+		assertArrayEquals(new String[]{TOPIC}, provider.getTopicNames());
+		assertEquals(3, provider.getBroadcastCount());
+	}
+	
+	@Test
+	public void smileSubscriptionIsLengthPrefixed() throws Exception {
+		provider = new AtmosphereCometServiceProvider();
+		provider.setWriterPoolSize(2);
+		provider.setFramingMode(FramingMode.DELIMITER);
+		final CometMessageSmileSerializer smile = new CometMessageSmileSerializer();
+		provider.setSerializerMap(Collections.<String, CometMessageSerializer>singletonMap(SMILE, smile));
+		provider.afterPropertiesSet();
+		final SubscriberStream smileOut = new SubscriberStream(null, false);
+		SubscriberStream jsonOut = new SubscriberStream(null, false);
+		subscribeWith(TOPIC, Collections.singletonMap("Accept", SMILE + ", application/json"), smileOut);
+		subscribeWith(TOPIC, Collections.singletonMap("Accept", "application/json"), jsonOut);
+		provider.broadcast(TOPIC, createMessage("a", null));
+		provider.broadcast(TOPIC, createMessage("\u00e9t\u00e9", null));
+		final List<String> payloads = new ArrayList<String>();
+		await(new Callable<Boolean>() {
+			public Boolean call() {
+				payloads.clear();
+				byte[] written = smileOut.getBytes();
+				new LengthPrefixFrameDecoder((byte)'|', 16, 1024).decode(written, 0, written.length, 
+						new FrameListener() {
+							public void onFrame(byte[] buffer, int offset, int length) {
+								payloads.add((String)smile.deserialize(buffer, offset, length).getPayload());
+							}
+						});
+				return payloads.size() == 2;
+			}
+		});
+		assertEquals(Arrays.asList("a", "\u00e9t\u00e9"), payloads);
+		//The text content types keep the configured framing
+		assertEquals(Arrays.asList("a", "\u00e9t\u00e9"), awaitPayloads(jsonOut, 2));
+		assertEquals('\n', (char)jsonOut.getBytes()[jsonOut.getBytes().length - 1]);
+	}
+	
+	@Test
+	public void failingSubscriberIsClosed() throws Exception {
+		provider = createProvider();
+		subscribe(TOPIC, null, new SubscriberStream(null, false));
+		Thread failing = subscribe(TOPIC, null, new SubscriberStream(null, true));
+		assertEquals(2, provider.getSubscriberCount(TOPIC));
+		provider.broadcast(TOPIC, createMessage("a", null));
+		failing.join(5000);
+		assertFalse(failing.isAlive());
+		assertEquals(1, provider.getSubscriberCount(TOPIC));
+		assertEquals(1, provider.getSubscriberIdentifiers(TOPIC).length);
+	}
+	
+	@Test
+	public void topicWithoutSubscribersIsRetired() throws Exception {
+		provider = createProvider();
+		SubscriberStream out = new SubscriberStream(null, false);
+		Thread subscription = subscribe(TOPIC, null, out);
+		assertArrayEquals(new String[]{TOPIC}, provider.getTopicNames());
+		assertTrue(provider.closeSubscriber(TOPIC, provider.getSubscriberIdentifiers(TOPIC)[0]));
+		subscription.join(5000);
+		assertFalse(subscription.isAlive());
+		assertEquals(0, provider.getTopicNames().length);
+		//Broadcasts without subscribers do not bring the topic back
+		provider.broadcast(TOPIC, createMessage("a", null));
+		assertEquals(0, provider.getTopicNames().length);
+		//A new subscriber gets a new topic
+		subscribe(TOPIC, null, new SubscriberStream(null, false));
+		assertEquals(1, provider.getSubscriberCount(TOPIC));
+	}
+	
+	@Test
+	public void dropOldestKeepsTheLatestMessages() throws Exception {
+		SubscriberStream out = overflow(OverflowPolicy.DROP_OLDEST, createMessage("b", null), 
+				createMessage("c", null), createMessage("d", null), createMessage("e", null));
+		assertEquals(2, provider.getDroppedMessageCount());
+		assertEquals(2, provider.getTopicDroppedMessageCount(TOPIC));
+		assertEquals(0, provider.getCoalescedMessageCount());
+		assertEquals(Arrays.asList("a", "d", "e"), awaitPayloads(out, 3));
+	}
+	
+	@Test
+	public void dropNewestKeepsTheQueuedMessages() throws Exception {
+		SubscriberStream out = overflow(OverflowPolicy.DROP_NEWEST, createMessage("b", null), 
+				createMessage("c", null), createMessage("d", null), createMessage("e", null));
+		assertEquals(2, provider.getDroppedMessageCount());
+		assertEquals(2, provider.getTopicDroppedMessageCount(TOPIC));
+		assertEquals(Arrays.asList("a", "b", "c"), awaitPayloads(out, 3));
+	}
+	
+	@Test
+	public void coalesceReplacesTheMessageWithTheSameKey() throws Exception {
+		//d replaces b in its place, e has no message to replace and drops the oldest, d
+		SubscriberStream out = overflow(OverflowPolicy.COALESCE, createMessage("b", "x"), 
+				createMessage("c", "y"), createMessage("d", "x"), createMessage("e", "z"));
+		assertEquals(1, provider.getCoalescedMessageCount());
+		assertEquals(1, provider.getDroppedMessageCount());
+		assertEquals(Arrays.asList("a", "c", "e"), awaitPayloads(out, 3));
+	}
+	
+	@Test
+	public void disconnectClosesTheSlowSubscriber() throws Exception {
+		SubscriberStream out = overflow(OverflowPolicy.DISCONNECT, createMessage("b", null), 
+				createMessage("c", null), createMessage("d", null));
+		assertEquals(1, provider.getSlowSubscriberDisconnects());
+		assertEquals(0, provider.getDroppedMessageCount());
+		assertEquals(0, provider.getSubscriberCount(TOPIC));
+		subscriptions.get(0).join(5000);
+		assertFalse(subscriptions.get(0).isAlive());
+		//The queued messages are discarded with the subscriber
+		assertEquals(Arrays.asList("a"), awaitPayloads(out, 1));
+	}
+	
+	@Test
+	public void backlogReplayedAfterTheSequence() throws Exception {
+		provider = createProvider(4, 10);
+		for(int i = 1; i <= 6; i++)
+			provider.broadcast(TOPIC, createMessage("m" + i, null));
+		assertEquals(6, provider.getLastSequence(TOPIC));
+		assertEquals(4, provider.getBacklogDepth(TOPIC));
+		SubscriberStream older = new SubscriberStream(null, false);
+		SubscriberStream middle = new SubscriberStream(null, false);
+		SubscriberStream beyond = new SubscriberStream(null, false);
+		SubscriberStream none = new SubscriberStream(null, false);
+		//Older than the ring, only the messages still in it are replayed
+		subscribe(TOPIC, "1", older);
+		subscribe(TOPIC, "4", middle);
+		//Not a sequence of this topic, e.g. given before a restart
+		subscribe(TOPIC, "99", beyond);
+		subscribe(TOPIC, null, none);
+		provider.broadcast(TOPIC, createMessage("m7", null));
+		assertEquals(Arrays.asList("m3", "m4", "m5", "m6", "m7"), awaitPayloads(older, 5));
+		assertEquals(Arrays.asList("m5", "m6", "m7"), awaitPayloads(middle, 3));
+		assertEquals(Arrays.asList("m3", "m4", "m5", "m6", "m7"), awaitPayloads(beyond, 5));
+		assertEquals(Arrays.asList("m7"), awaitPayloads(none, 1));
+	}
+	
+	@Test
+	public void backlogReplayBoundedByTheQueue() throws Exception {
+		provider = createProvider(10, 10);
+		provider.setMaxQueuedMessages(3);
+		for(int i = 1; i <= 6; i++)
+			provider.broadcast(TOPIC, createMessage("m" + i, null));
+		SubscriberStream out = new SubscriberStream(null, false);
+		subscribe(TOPIC, "0", out);
+		assertEquals(Arrays.asList("m4", "m5", "m6"), awaitPayloads(out, 3));
+		assertEquals(3, provider.getDroppedMessageCount());
+		assertEquals(3, provider.getTopicDroppedMessageCount(TOPIC));
+	}
+	
+	@Test
+	public void subscribeRacingBroadcastsGetsEveryMessageOnce() throws Exception {
+		final int count = 5000;
+		provider = createProvider(count, 10);
+		provider.setMaxQueuedMessages(count);
+		Thread broadcaster = new Thread(new Runnable() {
+			public void run() {
+				for(int i = 1; i <= count; i++) {
+					provider.broadcast(TOPIC, createMessage("m" + i, null));
+					if(i % 20 == 0) {
+						try {
+							Thread.sleep(1);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}
+		});
+		broadcaster.start();
+		List<SubscriberStream> outs = new ArrayList<SubscriberStream>();
+		List<Long> sinces = new ArrayList<Long>();
+		for(int i = 1; i <= 5; i++) {
+			final int sequence = i * count / 6;
+			await(new Callable<Boolean>() {
+				public Boolean call() {
+					return provider.getLastSequence(TOPIC) >= sequence;
+				}
+			});
+			//Resumes a few messages back while the broadcasts go on
+			long since = provider.getLastSequence(TOPIC) - 10;
+			SubscriberStream out = new SubscriberStream(null, false);
+			subscribe(TOPIC, String.valueOf(since), out);
+			outs.add(out);
+			sinces.add(since);
+		}
+		broadcaster.join(10000);
+		for(int i = 0; i < outs.size(); i++) {
+			List<String> expected = new ArrayList<String>();
+			for(long sequence = sinces.get(i) + 1; sequence <= count; sequence++)
+				expected.add("m" + sequence);
+			assertEquals(expected, awaitPayloads(outs.get(i), expected.size()));
+		}
+		assertEquals(0, provider.getDroppedMessageCount());
+	}
+	
+	@Test
+	public void idleTopicsRetiredWithTheirBacklog() throws Exception {
+		provider = createProvider(4, 10);
+		provider.broadcast("idle", createMessage("m1", null));
+		provider.broadcast("idle", createMessage("m2", null));
+		subscribe(TOPIC, null, new SubscriberStream(null, false));
+		Thread.sleep(5);
+		provider.retireIdleTopics();
+		assertArrayEquals(new String[]{TOPIC}, provider.getTopicNames());
+		assertEquals(1, provider.getRetiredTopicCount());
+		//Starts over as after a restart
+		provider.broadcast("idle", createMessage("m3", null));
+		assertEquals(1, provider.getLastSequence("idle"));
+		assertEquals(1, provider.getBacklogDepth("idle"));
+	}
+	
+	@Test
+	public void topicsPastTheMaximumRetireTheLeastRecentlyActive() throws Exception {
+		provider = createProvider(4, 2);
+		provider.broadcast("a", createMessage("m1", null));
+		Thread.sleep(2);
+		provider.broadcast("b", createMessage("m1", null));
+		Thread.sleep(2);
+		provider.broadcast("c", createMessage("m1", null));
+		List<String> names = Arrays.asList(provider.getTopicNames());
+		assertEquals(2, names.size());
+		assertTrue(names.containsAll(Arrays.asList("b", "c")));
+		subscribe("b", null, new SubscriberStream(null, false));
+		subscribe("c", null, new SubscriberStream(null, false));
+		//All the topics have subscribers
+		AtomicInteger error = new AtomicInteger();
+		provider.receiveSubscription("d", 
+				stub(HttpServletRequest.class, Collections.<String, String>emptyMap(), null, null), 
+				stub(HttpServletResponse.class, null, new SubscriberStream(null, false), error));
+		assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, error.get());
+		provider.broadcast("d", createMessage("m1", null));
+		assertEquals(0, provider.getLastSequence("d"));
+		assertEquals(1, provider.getRetiredTopicCount());
+	}
+	
+	/**
+	 * Subscribes with a queue of 2 messages, broadcasts a first message "a" whose write 
+	 * blocks, then the given messages, and lets the writes go on
+	 */
+	private SubscriberStream overflow(OverflowPolicy policy, CometMessage... messages) throws Exception {
+		provider = new AtmosphereCometServiceProvider();
+		provider.setMaxQueuedMessages(2);
+		provider.setOverflowPolicy(policy);
+		provider.setCoalesceHeader("key");
+		provider.setWriterPoolSize(2);
+		provider.afterPropertiesSet();
+		CountDownLatch release = new CountDownLatch(1);
+		SubscriberStream out = new SubscriberStream(release, false);
+		subscribe(TOPIC, null, out);
+		try {
+			provider.broadcast(TOPIC, createMessage("a", null));
+			out.awaitWrite();
+			for(CometMessage message:messages)
+				provider.broadcast(TOPIC, message);
+		} finally {
+			release.countDown();
+		}
+		return out;
+	}
+	
+	private static List<String> awaitPayloads(final SubscriberStream out, final int count) throws Exception {
+		await(new Callable<Boolean>() {
+			public Boolean call() {
+				return out.getPayloads().size() >= count;
+			}
+		});
+		//Give the writer a chance to write more than expected
+		Thread.sleep(50);
+		return out.getPayloads();
+	}
+	
+	private AtmosphereCometServiceProvider createProvider() throws Exception {
+		AtmosphereCometServiceProvider provider = new AtmosphereCometServiceProvider();
+		provider.setWriterPoolSize(2);
+		provider.afterPropertiesSet();
+		return provider;
+	}
+	
+	/**
+	 * Creates a provider keeping a backlog, the idle topics are retired only when 
+	 * the test asks for it
+	 */
+	private AtmosphereCometServiceProvider createProvider(int backlogSize, int maxTopics) throws Exception {
+		AtmosphereCometServiceProvider provider = new AtmosphereCometServiceProvider();
+		provider.setWriterPoolSize(2);
+		provider.setBacklogSize(backlogSize);
+		provider.setMaxTopics(maxTopics);
+		provider.setTopicIdleTimeout(0);
+		provider.afterPropertiesSet();
+		return provider;
+	}
+	
+	/**
+	 * Starts a subscription to the topic holding its own thread, and waits for the 
+	 * subscriber to be added
+	 */
+	private Thread subscribe(String topic, String since, SubscriberStream out) throws Exception {
+		return subscribeWith(topic, since == null ? Collections.<String, String>emptyMap() 
+				: Collections.singletonMap("since", since), out);
+	}
+	
+	/**
+	 * Subscribes with a request having the given parameters and headers
+	 */
+	private Thread subscribeWith(final String topic, Map<String, String> parameters, SubscriberStream out) 
+			throws Exception {
+		final HttpServletRequest request = stub(HttpServletRequest.class, 
+				new HashMap<String, String>(parameters), null, null);
+		final HttpServletResponse response = stub(HttpServletResponse.class, null, out, null);
+		final int subscribers = provider.getSubscriberCount(topic);
+		Thread subscription = new Thread(new Runnable() {
+			public void run() {
+				try {
+					provider.receiveSubscription(topic, request, response);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}, "subscriber-" + subscriptions.size());
+		subscription.setDaemon(true);
+		subscriptions.add(subscription);
+		subscription.start();
+		await(new Callable<Boolean>() {
+			public Boolean call() {
+				return provider.getSubscriberCount(topic) > subscribers;
+			}
+		});
+		return subscription;
+	}
+	
+	private static CometMessage createMessage(String payload, String key) {
+		Map<String, CometHeaderValueContainer> headers = key == null ? null 
+				: Collections.singletonMap("key", new CometHeaderValueContainer(key, String.class.getName()));
+		return new CometMessage(headers, payload, String.class.getName());
+	}
+	
+	private static void await(Callable<Boolean> condition) throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(!condition.call()) {
+			if(System.currentTimeMillis() > deadline)
+				throw new AssertionError("Timed out waiting for the condition");
+			Thread.sleep(5);
+		}
+	}
+	
+	/**
+	 * Creates a stub of the servlet interface returning the given parameters, also used 
+	 * as the headers, and output stream, null, false or zero from the other methods. The status of an error sent
+	 * is set in the given error if not null
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> T stub(Class<T> type, final Map<String, String> parameters, 
+			final ServletOutputStream out, final AtomicInteger error) {
+		return (T)Proxy.newProxyInstance(AtmosphereCometServiceProviderTests.class.getClassLoader(), 
+				new Class<?>[]{type}, new InvocationHandler() {
+			
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				Class<?> returnType = method.getReturnType();
+				if("getParameter".equals(method.getName()) || "getHeader".equals(method.getName()))
+					return parameters.get(args[0]);
+				if("sendError".equals(method.getName()) && error != null)
+					error.set((Integer)args[0]);
+				if(returnType == ServletOutputStream.class)
+					return out;
+				if(returnType == boolean.class)
+					return Boolean.FALSE;
+				if(returnType == int.class)
+					return 0;
+				if(returnType == long.class)
+					return 0L;
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Records the bytes written to a subscriber, optionally blocking the first write 
+	 * till released or failing all of them
+	 */
+	private static class SubscriberStream extends ServletOutputStream {
+		
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		
+		private final CountDownLatch release;
+		
+		private final CountDownLatch writing = new CountDownLatch(1);
+		
+		private final boolean failing;
+		
+		SubscriberStream(CountDownLatch release, boolean failing) {
+			this.release = release;
+			this.failing = failing;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte)b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if(failing)
+				throw new IOException("Broken pipe");
+			writing.countDown();
+			if(release != null) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted");
+				}
+			}
+			synchronized (bytes) {
+				bytes.write(b, off, len);
+			}
+		}
+		
+		/**
+		 * Waits for the writer of the subscriber to begin a write
+		 */
+		void awaitWrite() throws InterruptedException {
+			assertTrue(writing.await(5, TimeUnit.SECONDS));
+		}
+		
+		byte[] getBytes() {
+			synchronized (bytes) {
+				return bytes.toByteArray();
+			}
+		}
+		
+		/**
+		 * Gets the payloads of the messages written
+		 */
+		List<String> getPayloads() {
+			String written;
+			synchronized (bytes) {
+				written = new String(bytes.toByteArray(), UTF8);
+			}
+			List<String> payloads = new ArrayList<String>();
+			Matcher matcher = PAYLOAD.matcher(written);
+			while(matcher.find())
+				payloads.add(matcher.group(1));
+			return payloads;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.transport;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.springframework.integration.comet.core.transport.AbstractFrameDecoder.FrameListener;
+
+/**
+ * Tests for the frame decoders used by the streaming subscriptions
+ * 
+ * @author Amol Nayak
+ *
+ */
+public class FrameDecoderTests {
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private final List<String> frames = new ArrayList<String>();
+	
+	private final FrameListener listener = new FrameListener() {
+		public void onFrame(byte[] buffer, int offset, int length) {
+			frames.add(new String(buffer, offset, length, UTF8));
+		}
+	};
+
+	@Test
+	public void jsonFramesSplitAcrossReads() {
+		String stream = "{\"payload\":\"a}{\\\"b\"}[1,{\"x\":[]}]{\"payload\":\"\u00e9\"}";
+		feedByteByByte(new JsonFrameDecoder(4, 1024), stream);
+		assertEquals(Arrays.asList("{\"payload\":\"a}{\\\"b\"}", "[1,{\"x\":[]}]", 
+				"{\"payload\":\"\u00e9\"}"), frames);
+	}
+	
+	@Test
+	public void jsonFramesCoalescedInOneRead() throws Exception {
+		String stream = "<!-- padding -->\n{\"a\":1}  \r\n{\"b\":2}{\"c\":";
+		JsonFrameDecoder decoder = new JsonFrameDecoder(8, 1024);
+		ByteArrayInputStream in = new ByteArrayInputStream(stream.getBytes(UTF8));
+		while(decoder.readFrom(in, listener) != -1);
+		assertEquals(Arrays.asList("{\"a\":1}", "{\"b\":2}"), frames);
+		assertEquals(5, decoder.getPendingBytes());
+	}
+	
+	@Test
+	public void delimitedFrames() {
+		String stream = "first\r\n\r\nsecond\r\nthird\r\n";
+		feedByteByByte(new DelimiterFrameDecoder("\r\n".getBytes(UTF8), 2, 64), stream);
+		assertEquals(Arrays.asList("first", "second", "third"), frames);
+	}
+	
+	@Test
+	public void lengthPrefixedFrames() {
+		String stream = "5|hello10|{\"a\":\"|1\"}0|3|abc";
+		feedByteByByte(new LengthPrefixFrameDecoder((byte)'|', 4, 64), stream);
+		assertEquals(Arrays.asList("hello", "{\"a\":\"|1\"}", "", "abc"), frames);
+	}
+	
+	@Test
+	public void lengthPrefixCountsBytes() {
+		//\u00e9 is encoded in 2 bytes and \u20ac in 3
+		String stream = "2|\u00e96|\u20acuro2|ok";
+		feedByteByByte(new LengthPrefixFrameDecoder((byte)'|', 4, 64), stream);
+		assertEquals(Arrays.asList("\u00e9", "\u20acuro", "ok"), frames);
+	}
+	
+	@Test
+	public void lengthPrefixAllowsMessagesOfTheMaximumSize() {
+		String stream = "16|0123456789abcdef";
+		feedByteByByte(new LengthPrefixFrameDecoder((byte)'|', 4, 16), stream);
+		assertEquals(Arrays.asList("0123456789abcdef"), frames);
+	}
+	
+	@Test(expected=CometMessagingTransportException.class)
+	public void lengthPrefixRejectsMessagesPastTheMaximumSize() {
+		byte[] bytes = "17|0123456789abcdefg".getBytes(UTF8);
+		new LengthPrefixFrameDecoder((byte)'|', 4, 16).decode(bytes, 0, bytes.length, listener);
+	}
+	
+	@Test
+	public void commentsNotSkippedWhenDisabled() {
+		DelimiterFrameDecoder decoder = new DelimiterFrameDecoder(new byte[]{'\n'}, 16, 64);
+		decoder.setSkipPadding(false);
+		byte[] bytes = "<!-- x -->\n y\n".getBytes(UTF8);
+		decoder.decode(bytes, 0, bytes.length, listener);
+		assertEquals(Arrays.asList("<!-- x -->", " y"), frames);
+	}
+	
+	@Test(expected=CometMessagingTransportException.class)
+	public void frameExceedingMaxSize() {
+		byte[] bytes = "{\"payload\":\"this frame does not fit\"}".getBytes(UTF8);
+		new JsonFrameDecoder(4, 16).decode(bytes, 0, bytes.length, listener);
+	}
+	
+	@Test(expected=CometMessagingTransportException.class)
+	public void corruptLengthPrefix() {
+		byte[] bytes = "12x|abc".getBytes(UTF8);
+		new LengthPrefixFrameDecoder((byte)'|', 4, 64).decode(bytes, 0, bytes.length, listener);
+	}
+	
+	private void feedByteByByte(AbstractFrameDecoder decoder, String stream) {
+		byte[] bytes = stream.getBytes(UTF8);
+		for(int i = 0; i < bytes.length; i++)
+			decoder.decode(bytes, i, 1, listener);
+		assertEquals(0, decoder.getPendingBytes());
+	}
+}
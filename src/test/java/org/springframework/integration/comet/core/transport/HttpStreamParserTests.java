@@ -0,0 +1,225 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+import org.springframework.integration.comet.core.transport.AbstractFrameDecoder.FrameListener;
+import org.springframework.integration.comet.core.transport.HttpStreamParser.ResponseListener;
+
+/**
+ * Tests for the parser of the streaming responses read by the NIO transport, every
+ * response is fed split at every pair of byte boundaries
+ * 
+ * @author Amol Nayak
+ *
+ */
+public class HttpStreamParserTests {
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private final List<String> frames = new ArrayList<String>();
+	
+	private String contentType;
+	
+	private boolean headersParsed;
+	
+	private boolean bodyEnded;
+	
+	private final FrameListener frameListener = new FrameListener() {
+		public void onFrame(byte[] buffer, int offset, int length) {
+			frames.add(new String(buffer, offset, length, UTF8));
+		}
+	};
+	
+	private final ResponseListener responseListener = new ResponseListener() {
+		public void headersParsed(String type) {
+			headersParsed = true;
+			contentType = type;
+		}
+		
+		public void bodyEnded() {
+			bodyEnded = true;
+		}
+	};
+
+	@Test
+	public void contentLengthBody() throws Exception {
+		byte[] body = "first\nsecond\n".getBytes(UTF8);
+		byte[] response = concat(("HTTP/1.1 200 OK\r\nContent-Type: application/json; charset=UTF-8\r\n" 
+				+ "Content-Length: " + body.length + "\r\n\r\n").getBytes(UTF8), body, 
+				"ignored\n".getBytes(UTF8));
+		for(int i = 0; i <= response.length; i++) {
+			for(int j = i; j <= response.length; j++) {
+				parse(response, i, j);
+				assertEquals(Arrays.asList("first", "second"), frames);
+				assertEquals("application/json; charset=UTF-8", contentType);
+				assertTrue(bodyEnded);
+			}
+		}
+	}
+	
+	@Test
+	public void bodyReadTillTheConnectionCloses() throws Exception {
+		byte[] response = "HTTP/1.1 200 OK\r\nConnection: close\r\n\r\nfirst\nsecond\nthi".getBytes(UTF8);
+		for(int i = 0; i <= response.length; i++) {
+			for(int j = i; j <= response.length; j++) {
+				parse(response, i, j);
+				assertEquals(Arrays.asList("first", "second"), frames);
+				assertTrue(headersParsed);
+				assertFalse(bodyEnded);
+			}
+		}
+	}
+	
+	@Test
+	public void chunkedBodyWithExtensionsAndTrailers() throws Exception {
+		byte[] response = ("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n" 
+				+ "4;name=value\r\nfirs\r\n" 
+				+ "A\r\nt\nsecond\nt\r\n" 
+				+ "5 ; last\r\nhird\n\r\n" 
+				+ "0;end\r\nX-Checksum: 1f\r\nX-Count: 3\r\n\r\n" 
+				+ "6\r\nignored\n\r\n").getBytes(UTF8);
+		for(int i = 0; i <= response.length; i++) {
+			for(int j = i; j <= response.length; j++) {
+				parse(response, i, j);
+				assertEquals(Arrays.asList("first", "second", "third"), frames);
+				assertTrue(bodyEnded);
+			}
+		}
+	}
+	
+	@Test
+	public void deflateEncodedChunkedBody() throws Exception {
+		Deflater deflater = new Deflater();
+		deflater.setInput("first\nsecond\nthird\n".getBytes(UTF8));
+		deflater.finish();
+		byte[] compressed = new byte[256];
+		int length = deflater.deflate(compressed);
+		deflater.end();
+		int half = length / 2;
+		byte[] response = concat(
+				"HTTP/1.1 200 OK\r\nContent-Encoding: deflate\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes(UTF8), 
+				(Integer.toHexString(half) + "\r\n").getBytes(UTF8), Arrays.copyOf(compressed, half), 
+				("\r\n" + Integer.toHexString(length - half) + "\r\n").getBytes(UTF8), 
+				Arrays.copyOfRange(compressed, half, length), "\r\n0\r\n\r\n".getBytes(UTF8));
+		for(int i = 0; i <= response.length; i++) {
+			for(int j = i; j <= response.length; j++) {
+				parse(response, i, j);
+				assertEquals(Arrays.asList("first", "second", "third"), frames);
+				assertTrue(bodyEnded);
+			}
+		}
+	}
+	
+	@Test
+	public void gzipEncodedBody() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(out);
+		gzip.write("first\nsecond\nthird\n".getBytes(UTF8));
+		gzip.close();
+		byte[] compressed = out.toByteArray();
+		//The same stream with the optional extra, name, comment and header crc fields
+		byte[] header = Arrays.copyOf(compressed, 10);
+		header[3] = 2 | 4 | 8 | 16;
+		byte[] withFields = concat(header, new byte[]{3, 0, 'e', 'x', 't'}, "name\0comment\0".getBytes(UTF8), 
+				new byte[]{0x12, 0x34}, Arrays.copyOfRange(compressed, 10, compressed.length));
+		for(byte[] body:new byte[][]{compressed, withFields}) {
+			byte[] response = concat(("HTTP/1.1 200 OK\r\nContent-Encoding: gzip\r\n" 
+					+ "Content-Length: " + body.length + "\r\n\r\n").getBytes(UTF8), body);
+			for(int i = 0; i <= response.length; i++) {
+				for(int j = i; j <= response.length; j++) {
+					parse(response, i, j);
+					assertEquals(Arrays.asList("first", "second", "third"), frames);
+					assertTrue(bodyEnded);
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void unsuccessfulStatusesRejected() throws Exception {
+		for(String status:new String[]{"302 Found\r\nLocation: http://localhost/other", 
+				"304 Not Modified", "404 Not Found\r\nContent-Length: 9", "503 Service Unavailable"}) {
+			assertRejected(("HTTP/1.1 " + status + "\r\n\r\nnot found").getBytes(UTF8), 
+					"The endpoint responded with status " + status.substring(0, 3) + " to the subscription");
+		}
+	}
+	
+	@Test
+	public void malformedResponsesRejected() throws Exception {
+		assertRejected("HTTP/1.1 200 OK\r\nContent-Encoding: br\r\n\r\nfirst\n".getBytes(UTF8), 
+				"Unsupported content encoding \"br\"");
+		assertRejected("garbage\r\n\r\n".getBytes(UTF8), "Invalid status line \"garbage\"");
+	}
+	
+	private void assertRejected(byte[] response, String message) {
+		for(int i = 0; i <= response.length; i++) {
+			for(int j = i; j <= response.length; j++) {
+				try {
+					parse(response, i, j);
+					fail("Expected the response to be rejected");
+				} catch (IOException e) {
+					assertEquals(message, e.getMessage());
+				}
+				assertFalse(headersParsed);
+				assertTrue(frames.isEmpty());
+			}
+		}
+	}
+	
+	/**
+	 * Parses the response in three pieces split at the given indices with a new parser
+	 */
+	private void parse(byte[] response, int first, int second) throws IOException {
+		frames.clear();
+		contentType = null;
+		headersParsed = false;
+		bodyEnded = false;
+		HttpStreamParser parser = new HttpStreamParser(
+				new DelimiterFrameDecoder("\n".getBytes(UTF8), 4, 64), frameListener, responseListener);
+		//The read buffer is reused, the parser should not hold on to the bytes
+		byte[] buffer = new byte[response.length];
+		int[] bounds = {0, first, second, response.length};
+		for(int i = 0; i < 3; i++) {
+			int length = bounds[i + 1] - bounds[i];
+			System.arraycopy(response, bounds[i], buffer, 0, length);
+			parser.parse(buffer, 0, length);
+			Arrays.fill(buffer, (byte)'x');
+		}
+		parser.close();
+	}
+	
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for(byte[] part:parts)
+			out.write(part, 0, part.length);
+		return out.toByteArray();
+	}
+}
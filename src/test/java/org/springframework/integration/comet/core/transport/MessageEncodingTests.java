@@ -0,0 +1,203 @@
+/*
+ * Copyright 2002-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.integration.comet.core.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.integration.comet.core.CometHeaderValueContainer;
+import org.springframework.integration.comet.core.CometMessage;
+import org.springframework.integration.comet.core.CometMessageListener;
+import org.springframework.integration.comet.core.CometSubscription;
+import org.springframework.integration.comet.core.serializers.CometMessageJSONSerializer;
+import org.springframework.integration.comet.core.serializers.CometMessageSerializer;
+import org.springframework.integration.comet.core.serializers.CometMessageSmileSerializer;
+import org.springframework.util.FileCopyUtils;
+
+/**
+ * Tests that the byte oriented serialization produces the same request bodies and 
+ * messages as the String based one 
+ * 
+ * @author Amol Nayak
+ *
+ */
+public class MessageEncodingTests {
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	@Test
+	public void formEncodingMatchesURLEncoder() throws Exception {
+		String value = "{\"payload\":\"a b+c&d=e%f~g.h-i*j_k\u00e9\u4e2d\ud83d\ude00\"}\r\n";
+		FormEncodingOutputStream out = new FormEncodingOutputStream(4);
+		byte[] bytes = value.getBytes(UTF8);
+		out.write(bytes, 0, 10);
+		for(int i = 10; i < bytes.length; i++)
+			out.write(bytes[i]);
+		assertEquals(URLEncoder.encode(value, "UTF-8"), new String(out.toByteArray(), ASCII));
+	}
+	
+	@Test
+	public void streamAndStringEncodingsProduceTheSameBody() throws Exception {
+		CometMessage message = new CometMessage();
+		message.setPayload("caf\u00e9 & co");
+		message.setHeaders(Collections.singletonMap("id", new CometHeaderValueContainer("42", null)));
+		StubTransport transport = new StubTransport();
+		String streamed = new String(transport.encodeMessage("text/plain", "UTF-8", message), ASCII);
+		
+		CometMessageJSONSerializer serializer = new CometMessageJSONSerializer();
+		String expected = "message=" + URLEncoder.encode(serializer.serialize(message), "UTF-8");
+		assertEquals(expected, streamed);
+	}
+	
+	@Test
+	public void commonPrefixOnlyInTheStringForm() throws Exception {
+		CometMessage message = new CometMessage();
+		message.setPayload("payload");
+		CometMessageJSONSerializer serializer = new CometMessageJSONSerializer();
+		serializer.setCommonPrefix("message");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		serializer.serialize(message, out);
+		assertEquals("message=" + new String(out.toByteArray(), UTF8), serializer.serialize(message));
+		assertEquals("payload", serializer.deserialize(new ByteArrayInputStream(out.toByteArray())).getPayload());
+	}
+	
+	@Test
+	public void rawBodyIsTheSerializedMessage() throws Exception {
+		CometMessage message = new CometMessage();
+		message.setPayload("caf\u00e9 & co");
+		StubTransport transport = new StubTransport();
+		transport.setRawBody(true);
+		byte[] body = transport.encodeMessage("text/plain", "UTF-8", message);
+		assertEquals(new CometMessageJSONSerializer().serialize(message), new String(body, UTF8));
+		assertEquals("text/plain", transport.createRequestHeaders("text/plain").get("Content-Type"));
+	}
+	
+	@Test
+	public void rawBinaryBodyIgnoresTheRequestedCharset() throws Exception {
+		CometMessage message = new CometMessage();
+		message.setPayload("caf\u00e9 & co");
+		message.setHeaders(Collections.singletonMap("id", new CometHeaderValueContainer("42", null)));
+		CometMessageSmileSerializer smile = new CometMessageSmileSerializer();
+		StubTransport transport = new StubTransport();
+		transport.setRawBody(true);
+		transport.setSerializerMap(Collections.<String, CometMessageSerializer>singletonMap(
+				"application/x-jackson-smile", smile));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		smile.serialize(message, out);
+		assertArrayEquals(out.toByteArray(), 
+				transport.encodeMessage("application/x-jackson-smile", "UTF-8", message));
+	}
+	
+	@Test
+	public void compressedBodiesDecompressed() throws Exception {
+		byte[] body = "message=%7B%22payload%22%3A%22aaaaaaaaaaaaaaaaaaaaaaaaaaaa%22%7D".getBytes(ASCII);
+		StubTransport transport = new StubTransport();
+		for(String encoding:new String[]{"gzip", "deflate"}) {
+			byte[] compressed = transport.compress(body, encoding, null);
+			InputStream in = AbstractCometMessagingTransport.decompress(encoding, 
+					new ByteArrayInputStream(compressed));
+			assertArrayEquals(body, FileCopyUtils.copyToByteArray(in));
+		}
+		transport.setCompression("gzip");
+		assertFalse(transport.isCompressible(body.length));
+		transport.setCompressionThreshold(body.length);
+		assertTrue(transport.isCompressible(body.length));
+	}
+	
+	@Test
+	public void binaryFramesRoundTrip() throws Exception {
+		CometMessage message = new CometMessage();
+		message.setPayload("caf\u00e9 caf\u00e9 caf\u00e9 caf\u00e9 caf\u00e9 caf\u00e9");
+		CometMessageSmileSerializer smile = new CometMessageSmileSerializer();
+		CometMessagingJettyWebSocketTransport transport = new CometMessagingJettyWebSocketTransport();
+		transport.setBinaryFrames(true);
+		transport.setDefaultMessageSerializer(smile);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		smile.serialize(message, out);
+		//The plain binary frames are the bytes of the serializer, even with a compression set
+		transport.setCompression("gzip");
+		transport.setCompressionThreshold(1);
+		byte[] frame = transport.encodeMessage("application/x-jackson-smile", "UTF-8", message);
+		assertArrayEquals(out.toByteArray(), frame);
+		assertEquals(message.getPayload(), 
+				transport.deserializeBinaryMessage(smile, frame, 0, frame.length).getPayload());
+		transport.setCompressedBinaryFrames(true);
+		transport.setCompressionThreshold(1024);
+		frame = transport.encodeMessage("application/x-jackson-smile", "UTF-8", message);
+		assertEquals(CometMessagingJettyWebSocketTransport.FRAME_UNCOMPRESSED, frame[0]);
+		assertArrayEquals(out.toByteArray(), Arrays.copyOfRange(frame, 1, frame.length));
+		transport.setCompressionThreshold(1);
+		byte[] flags = {CometMessagingJettyWebSocketTransport.FRAME_GZIP, 
+				CometMessagingJettyWebSocketTransport.FRAME_DEFLATE};
+		String[] codecs = {"gzip", "deflate"};
+		for(int i = 0; i < codecs.length; i++) {
+			transport.setCompression(codecs[i]);
+			frame = transport.encodeMessage("application/x-jackson-smile", "UTF-8", message);
+			assertEquals(flags[i], frame[0]);
+			//The frames are received in a region of a larger buffer
+			byte[] buffer = new byte[frame.length + 4];
+			System.arraycopy(frame, 0, buffer, 2, frame.length);
+			assertEquals(message.getPayload(), 
+					transport.deserializeBinaryMessage(smile, buffer, 2, frame.length).getPayload());
+		}
+	}
+	
+	@Test
+	public void textFrameLengthIsTheEncodedLength() {
+		for(String text:new String[]{"", "message=%7B%7D", "{\"payload\":\"\u00e9t\u00e9\"}", 
+				"\u4e2d\u6587", "\ud83d\ude00 \ud83d\ude00"}) {
+			assertEquals(text.getBytes(UTF8).length, AbstractWebSocketTransport.utf8Length(text));
+		}
+	}
+	
+	@Test
+	public void framesDeserializedFromBytes() {
+		CometMessageJSONSerializer serializer = new CometMessageJSONSerializer();
+		CometMessage sent = new CometMessage();
+		sent.setPayload("caf\u00e9");
+		byte[] frame = ("xx" + serializer.serialize(sent) + "yy").getBytes(UTF8);
+		CometMessage message = new StubTransport().deserializeFrame(serializer, frame, 2, frame.length - 4, UTF8);
+		assertEquals("caf\u00e9", message.getPayload());
+	}
+	
+	private static class StubTransport extends AbstractCometMessagingTransport {
+
+		public CometSubscription subscribe(String endpointUrl, String expectedContentType, 
+				String expectedEncoding, CometMessageListener<CometMessage> listener) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		protected void doSend(String endpointString, Map<String, String> requestHeaders, 
+				byte[] requestMessage, String contentEncoding, CometMessage message) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}